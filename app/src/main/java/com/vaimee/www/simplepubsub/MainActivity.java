@@ -111,12 +111,8 @@ public class MainActivity extends AppCompatActivity implements  MyListener {
                         text.append("\n");
                         break;
                     case SEND_MESSAGE:
-                        // To avoid network activity on main thread!
-                        new Thread(){
-                            public void run(){
-                                producer.publish();
-                            }
-                        }.start();
+                        // The update is executed by the producer worker threads (no network activity on main thread)
+                        producer.publish();
                         break;
                 }
             }
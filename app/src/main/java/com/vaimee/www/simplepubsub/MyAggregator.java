@@ -68,7 +68,7 @@ public class MyAggregator extends Aggregator {
         log.debug("@MyAggregator::onAddedResults");
 
         // Remove the published messages
-        for (Bindings bindings : results.getBindings()) {
+        for (Bindings bindings : results) {
             // Extract the "message" binding value
             String message = bindings.getBindingValue("message");
             String text = bindings.getBindingValue("text");
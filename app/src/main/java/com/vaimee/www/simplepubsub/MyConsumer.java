@@ -57,7 +57,7 @@ public class MyConsumer extends Consumer {
     @Override
     public void onAddedResults(BindingsResults results) {
         log.debug("@MyConsumer::onAddedResults");
-        for (Bindings bindings : results.getBindings()) {
+        for (Bindings bindings : results) {
             String text = bindings.getBindingValue("text");
 
             mListener.showMessage("(+) "+text);
@@ -68,7 +68,7 @@ public class MyConsumer extends Consumer {
     public void onRemovedResults(BindingsResults results) {
         log.debug("@MyConsumer::onRemovedResults");
 
-        for (Bindings bindings : results.getBindings()) {
+        for (Bindings bindings : results) {
             String message = bindings.getBindingValue("message");
             String text = bindings.getBindingValue("text");
             String time = bindings.getBindingValue("time");
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import it.unibo.arces.wot.sepa.android.logging.LogManager;
 import it.unibo.arces.wot.sepa.android.logging.Logger;
+import it.unibo.arces.wot.sepa.api.IResponseHandler;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.response.Response;
@@ -34,14 +35,18 @@ public class MyProducer extends Producer {
         super(new ApplicationProfile(activity.getActivity().getAssets().open("pubsub.jsap")), "PUBLISH_A_MESSAGE");
     }
 
-    public boolean publish() {
+    public void publish() {
         // Create the forced bindings
         Bindings forcedBindings = new Bindings();
         forcedBindings.addBinding("text",new RDFTermLiteral("Message #"+n++));
 
-        // Issue the update
-        Response ret = update(forcedBindings);
-        if (ret.isUpdateResponse()) log.debug("Message published");
-        return ret.isUpdateResponse();
+        // Issue the update (the response is received on a worker thread)
+        updateAsync(forcedBindings, new IResponseHandler() {
+            @Override
+            public void onResponse(Response ret) {
+                if (ret.isUpdateResponse()) log.debug("Message published");
+                else log.error(ret.toString());
+            }
+        });
     }
 }
@@ -13,6 +13,21 @@ public class Logger {
         this.name = name;
     }
 
+    /**
+     * Checks if debug messages are logged (e.g., adb shell setprop log.tag.SEPAWebsocketClient DEBUG), so that
+     * messages that are expensive to build (e.g., on each received frame) can be skipped.
+     *
+     * @return true if debug messages are logged
+     */
+    public boolean isDebugEnabled() {
+        try {
+            return Log.isLoggable(name, Log.DEBUG);
+        } catch (IllegalArgumentException e) {
+            // Tag too long (before API 24)
+            return true;
+        }
+    }
+
     public void debug(String text) {
         Log.d(name, "debug: " + text);
     }
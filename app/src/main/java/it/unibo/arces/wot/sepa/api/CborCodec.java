@@ -0,0 +1,432 @@
+/* This class converts JSON messages to and from CBOR (RFC 8949)
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * The CBOR (RFC 8949) encoding of the messages of the subscribe WebSocket:
+ * a binary frame carries the same JSON structure as a text frame (e.g., a
+ * notification with its added and removed results).
+ * <p>
+ * The stringref extension (tags 256 and 25, see
+ * http://cbor.schmorp.de/stringref) is supported: a string repeated in the
+ * message (e.g., the "type", "value", "uri" and "literal" strings of each
+ * binding, the variables and the IRIs) is sent once and then referred by its
+ * index. A decoded reference is the same String instance.
+ * <p>
+ * The mapping of the CBOR items without a JSON equivalent: byte strings are
+ * base64 strings, "undefined" is null, the tags other than stringref are
+ * ignored (the tagged item is decoded) and the keys of the maps that are not
+ * strings are converted to strings.
+ */
+final class CborCodec {
+    /**
+     * The media type of the CBOR messages.
+     */
+    static final String MEDIA_TYPE = "application/cbor";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_DEPTH = 256;
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // Major types
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+
+    // Tags
+    private static final int TAG_STRINGREF = 25;
+    private static final int TAG_STRINGREF_NAMESPACE = 256;
+
+    // Additional information
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    private CborCodec() {
+    }
+
+    /**
+     * Decodes a CBOR data item.
+     *
+     * @param buffer the frame (read until the end of the item)
+     * @return the JSON element
+     * @throws JsonSyntaxException if the frame is not a well-formed CBOR item
+     */
+    static JsonElement decode(ByteBuffer buffer) {
+        try {
+            JsonElement ret = new Decoder(buffer).read(0);
+            if (buffer.hasRemaining()) throw new JsonSyntaxException("Unexpected data after the CBOR item");
+            return ret;
+        } catch (BufferUnderflowException e) {
+            throw new JsonSyntaxException("Truncated CBOR item");
+        }
+    }
+
+    /**
+     * Encodes a JSON element (e.g., by a broker or by a test).
+     *
+     * @param json       the element
+     * @param stringRefs true to send the repeated strings once (stringref namespace)
+     * @return the CBOR item
+     */
+    static byte[] encode(JsonElement json, boolean stringRefs) {
+        Encoder encoder = new Encoder(stringRefs);
+        if (stringRefs) encoder.head(TAG, TAG_STRINGREF_NAMESPACE);
+        encoder.write(json);
+        return encoder.out.toByteArray();
+    }
+
+    /**
+     * The minimum length of a string to be added to the stringref table: a
+     * reference must be shorter than the string. The length is the one of the
+     * encoded string (i.e., the UTF-8 bytes of a text string).
+     */
+    private static boolean isReferenceable(int length, int tableSize) {
+        if (tableSize < 24) return length >= 3;
+        if (tableSize < 256) return length >= 4;
+        if (tableSize < 65536) return length >= 5;
+        if (tableSize < 4294967296L) return length >= 7;
+        return length >= 11;
+    }
+
+    /**
+     * The base64 (RFC 4648) encoding of a byte string, with padding and without
+     * line breaks.
+     */
+    static String base64(byte[] bytes) {
+        StringBuilder ret = new StringBuilder((bytes.length + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            ret.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append(BASE64[(n >>> 6) & 0x3f]).append(BASE64[n & 0x3f]);
+        }
+        if (i + 1 == bytes.length) {
+            int n = (bytes[i] & 0xff) << 16;
+            ret.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append("==");
+        } else if (i + 2 == bytes.length) {
+            int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            ret.append(BASE64[n >>> 18]).append(BASE64[(n >>> 12) & 0x3f]).append(BASE64[(n >>> 6) & 0x3f]).append('=');
+        }
+        return ret.toString();
+    }
+
+    private static final class Decoder {
+        private final ByteBuffer buffer;
+        // The string tables of the nested stringref namespaces (null outside a namespace)
+        private ArrayList<String> strings = null;
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        JsonElement read(int depth) {
+            if (depth > MAX_DEPTH) throw new JsonSyntaxException("CBOR item nested too deeply");
+
+            int initial = buffer.get() & 0xff;
+            int major = initial >>> 5;
+            int info = initial & 0x1f;
+
+            switch (major) {
+                case UNSIGNED: {
+                    long value = argument(info);
+                    if (value >= 0) return new JsonPrimitive(value);
+                    return new JsonPrimitive(unsigned(value));
+                }
+                case NEGATIVE: {
+                    long value = argument(info);
+                    if (value >= 0) return new JsonPrimitive(-1 - value);
+                    return new JsonPrimitive(BigInteger.ONE.negate().subtract(unsigned(value)));
+                }
+                case BYTES: {
+                    byte[] value = bytes(info, BYTES);
+                    return new JsonPrimitive(reference(base64(value), value.length, info));
+                }
+                case TEXT:
+                    return new JsonPrimitive(text(info));
+                case ARRAY: {
+                    JsonArray array = new JsonArray();
+                    if (info == INDEFINITE) {
+                        while (!isBreak()) array.add(read(depth + 1));
+                    } else {
+                        long n = length(info);
+                        for (long i = 0; i < n; i++) array.add(read(depth + 1));
+                    }
+                    return array;
+                }
+                case MAP: {
+                    JsonObject object = new JsonObject();
+                    if (info == INDEFINITE) {
+                        while (!isBreak()) object.add(key(depth + 1), read(depth + 1));
+                    } else {
+                        long n = length(info);
+                        for (long i = 0; i < n; i++) object.add(key(depth + 1), read(depth + 1));
+                    }
+                    return object;
+                }
+                case TAG:
+                    return tagged(argument(info), depth);
+                default:
+                    return simple(info);
+            }
+        }
+
+        private JsonElement tagged(long tag, int depth) {
+            if (tag == TAG_STRINGREF_NAMESPACE) {
+                ArrayList<String> outer = strings;
+                strings = new ArrayList<String>();
+                try {
+                    return read(depth + 1);
+                } finally {
+                    strings = outer;
+                }
+            }
+
+            if (tag == TAG_STRINGREF) {
+                if (strings == null) throw new JsonSyntaxException("Stringref outside a stringref namespace");
+                JsonElement index = read(depth + 1);
+                if (!index.isJsonPrimitive() || !index.getAsJsonPrimitive().isNumber())
+                    throw new JsonSyntaxException("Invalid stringref: " + index);
+                long i = index.getAsLong();
+                if (i < 0 || i >= strings.size()) throw new JsonSyntaxException("Unknown stringref: " + i);
+                return new JsonPrimitive(strings.get((int) i));
+            }
+
+            // Other tags (e.g., date/time) are not interpreted
+            return read(depth + 1);
+        }
+
+        private JsonElement simple(int info) {
+            switch (info) {
+                case 20:
+                    return new JsonPrimitive(false);
+                case 21:
+                    return new JsonPrimitive(true);
+                case 22:
+                case 23:
+                    return JsonNull.INSTANCE;
+                case 24:
+                    buffer.get();
+                    return JsonNull.INSTANCE;
+                case 25:
+                    return new JsonPrimitive(half(buffer.getShort() & 0xffff));
+                case 26:
+                    return new JsonPrimitive(buffer.getFloat());
+                case 27:
+                    return new JsonPrimitive(buffer.getDouble());
+                case INDEFINITE:
+                    throw new JsonSyntaxException("Unexpected break");
+                default:
+                    if (info < 20) return JsonNull.INSTANCE;
+                    throw new JsonSyntaxException("Invalid simple value: " + info);
+            }
+        }
+
+        private String key(int depth) {
+            JsonElement key = read(depth);
+            if (key.isJsonPrimitive()) return key.getAsString();
+            return key.toString();
+        }
+
+        private String text(int info) {
+            // A stringref is resolved into the same String instance
+            byte[] value = bytes(info, TEXT);
+            return reference(new String(value, UTF8), value.length, info);
+        }
+
+        private String reference(String value, int length, int info) {
+            if (strings != null && info != INDEFINITE && isReferenceable(length, strings.size()))
+                strings.add(value);
+            return value;
+        }
+
+        private byte[] bytes(int info, int major) {
+            if (info != INDEFINITE) {
+                long n = length(info);
+                if (n > buffer.remaining()) throw new JsonSyntaxException("Truncated CBOR string");
+                byte[] ret = new byte[(int) n];
+                buffer.get(ret);
+                return ret;
+            }
+
+            // Chunks of the same major type
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (!isBreak()) {
+                int initial = buffer.get() & 0xff;
+                if (initial >>> 5 != major || (initial & 0x1f) == INDEFINITE)
+                    throw new JsonSyntaxException("Invalid chunk of an indefinite length string");
+                byte[] chunk = bytes(initial & 0x1f, major);
+                out.write(chunk, 0, chunk.length);
+            }
+            return out.toByteArray();
+        }
+
+        private boolean isBreak() {
+            if (!buffer.hasRemaining()) throw new BufferUnderflowException();
+            if ((buffer.get(buffer.position()) & 0xff) != BREAK) return false;
+            buffer.get();
+            return true;
+        }
+
+        private long length(int info) {
+            long n = argument(info);
+            if (n < 0 || n > Integer.MAX_VALUE) throw new JsonSyntaxException("CBOR length too large");
+            return n;
+        }
+
+        /**
+         * The argument of the initial byte (a negative value is an unsigned 64 bit integer).
+         */
+        private long argument(int info) {
+            if (info < 24) return info;
+            switch (info) {
+                case 24:
+                    return buffer.get() & 0xffL;
+                case 25:
+                    return buffer.getShort() & 0xffffL;
+                case 26:
+                    return buffer.getInt() & 0xffffffffL;
+                case 27:
+                    return buffer.getLong();
+                default:
+                    throw new JsonSyntaxException("Invalid CBOR additional information: " + info);
+            }
+        }
+
+        private static BigInteger unsigned(long value) {
+            return BigInteger.valueOf(value & Long.MAX_VALUE).setBit(63);
+        }
+
+        private static double half(int bits) {
+            int exponent = (bits >> 10) & 0x1f;
+            int mantissa = bits & 0x3ff;
+            double value;
+            if (exponent == 0) value = mantissa * Math.pow(2, -24);
+            else if (exponent == 31) value = (mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN);
+            else value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            return ((bits & 0x8000) != 0 ? -value : value);
+        }
+    }
+
+    private static final class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // String ==> index (null if stringref is not used)
+        private final HashMap<String, Integer> strings;
+
+        Encoder(boolean stringRefs) {
+            strings = (stringRefs ? new HashMap<String, Integer>() : null);
+        }
+
+        void write(JsonElement json) {
+            if (json == null || json.isJsonNull()) {
+                out.write(0xf6);
+            } else if (json.isJsonObject()) {
+                JsonObject object = json.getAsJsonObject();
+                head(MAP, object.entrySet().size());
+                for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+                    text(member.getKey());
+                    write(member.getValue());
+                }
+            } else if (json.isJsonArray()) {
+                JsonArray array = json.getAsJsonArray();
+                head(ARRAY, array.size());
+                for (JsonElement element : array) write(element);
+            } else {
+                JsonPrimitive primitive = json.getAsJsonPrimitive();
+                if (primitive.isBoolean()) out.write(primitive.getAsBoolean() ? 0xf5 : 0xf4);
+                else if (primitive.isNumber()) number(primitive.getAsNumber());
+                else text(primitive.getAsString());
+            }
+        }
+
+        private void number(Number number) {
+            String value = number.toString();
+            try {
+                long n = Long.parseLong(value);
+                if (n >= 0) head(UNSIGNED, n);
+                else head(NEGATIVE, -1 - n);
+                return;
+            } catch (NumberFormatException e) {
+                // Not an integer
+            }
+
+            out.write((SIMPLE << 5) | 27);
+            long bits = Double.doubleToLongBits(number.doubleValue());
+            for (int i = 7; i >= 0; i--) out.write((int) (bits >>> (8 * i)));
+        }
+
+        private void text(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+
+            if (strings != null) {
+                Integer index = strings.get(value);
+                if (index != null) {
+                    head(TAG, TAG_STRINGREF);
+                    head(UNSIGNED, index);
+                    return;
+                }
+                if (isReferenceable(bytes.length, strings.size())) strings.put(value, strings.size());
+            }
+
+            head(TEXT, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void head(int major, long argument) {
+            int type = major << 5;
+            if (argument < 24) {
+                out.write(type | (int) argument);
+            } else if (argument < 0x100) {
+                out.write(type | 24);
+                out.write((int) argument);
+            } else if (argument < 0x10000) {
+                out.write(type | 25);
+                out.write((int) (argument >> 8));
+                out.write((int) argument);
+            } else if (argument < 0x100000000L) {
+                out.write(type | 26);
+                for (int i = 3; i >= 0; i--) out.write((int) (argument >> (8 * i)));
+            } else {
+                out.write(type | 27);
+                for (int i = 7; i >= 0; i--) out.write((int) (argument >> (8 * i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/* This class checks that the WebSocket of the subscriptions is alive
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+/**
+ * The heartbeat of the WebSocket of a {@link SEPAWebsocketManager}.
+ * <p>
+ * Every <i>interval</i> ms the client sends a WebSocket ping and measures the
+ * round trip time when the pong is received. The interval between the pings
+ * sent by the broker (i.e., the "ping" messages) is measured as well. If
+ * nothing is received for <i>timeout</i> ms (e.g., a half-open socket after a
+ * network change), the socket is closed: the manager is notified as for any
+ * broken socket (and it opens the socket again if reconnection is enabled).
+ * <p>
+ * The monitor is attached to each socket opened by the manager: the
+ * statistics cover all the sockets.
+ */
+class HeartbeatMonitor implements Runnable {
+    private static final Logger logger = LogManager.getLogger("HeartbeatMonitor");
+
+    private static final int SAMPLES = 256;
+
+    final long interval;
+    final long timeout;
+
+    private SEPAWebsocketClient client = null;
+    private ScheduledFuture<?> task = null;
+
+    // Last message received (ms)
+    private long lastReceived;
+    // Last client ping sent (ms) and the one waiting for the pong (0 if none)
+    private long lastPingSent = 0;
+    private long pendingPing = 0;
+    // Last broker ping received (ms, 0 if none)
+    private long lastBrokerPing = 0;
+
+    private final LatencyTracker roundTrip = new LatencyTracker(SAMPLES);
+    private final LatencyTracker brokerPingInterval = new LatencyTracker(SAMPLES);
+    private long pings = 0;
+    private long pongs = 0;
+    private long lostPongs = 0;
+    private long deadSockets = 0;
+
+    /**
+     * Instantiates a new monitor.
+     *
+     * @param interval the interval between two client pings (ms)
+     * @param timeout  the time without any message after that the socket is closed (ms)
+     */
+    HeartbeatMonitor(long interval, long timeout) {
+        if (interval <= 0) throw new IllegalArgumentException("Heartbeat interval must be > 0");
+        if (timeout <= 0) throw new IllegalArgumentException("Heartbeat timeout must be > 0");
+
+        this.interval = interval;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts monitoring an open socket.
+     *
+     * @param client    the client of the socket
+     * @param scheduler the scheduler of the checks
+     */
+    synchronized void attach(SEPAWebsocketClient client, ScheduledExecutorService scheduler) {
+        detach();
+
+        this.client = client;
+        lastReceived = System.currentTimeMillis();
+        lastPingSent = lastReceived;
+        pendingPing = 0;
+        lastBrokerPing = 0;
+
+        // Checked often enough to detect the silence within a quarter of the timeout
+        long period = Math.max(Math.min(interval, timeout / 4), 10);
+        task = scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops monitoring the socket (e.g., closed).
+     */
+    synchronized void detach() {
+        if (task != null) task.cancel(false);
+        task = null;
+        client = null;
+    }
+
+    /**
+     * A message has been received.
+     *
+     * @param client the client that has received the message
+     * @param ping   true for the pings of the broker
+     */
+    synchronized void received(SEPAWebsocketClient client, boolean ping) {
+        if (client != this.client) return;
+
+        lastReceived = System.currentTimeMillis();
+        if (!ping) return;
+
+        if (lastBrokerPing != 0) brokerPingInterval.record(lastReceived - lastBrokerPing);
+        lastBrokerPing = lastReceived;
+    }
+
+    /**
+     * The pong of a client ping has been received.
+     *
+     * @param client the client that has received the pong
+     */
+    synchronized void pong(SEPAWebsocketClient client) {
+        if (client != this.client) return;
+
+        lastReceived = System.currentTimeMillis();
+        if (pendingPing == 0) return;
+
+        pongs++;
+        roundTrip.record(lastReceived - pendingPing);
+        pendingPing = 0;
+    }
+
+    @Override
+    public void run() {
+        SEPAWebsocketClient dead = null;
+        long silence;
+
+        synchronized (this) {
+            if (client == null) return;
+
+            long now = System.currentTimeMillis();
+            silence = now - lastReceived;
+
+            if (silence >= timeout) {
+                deadSockets++;
+                dead = client;
+                detach();
+            } else if (now - lastPingSent >= interval) {
+                // A pong has not been received but the socket is alive
+                if (pendingPing != 0) lostPongs++;
+
+                try {
+                    client.sendPing();
+                    pings++;
+                    pendingPing = now;
+                } catch (WebsocketNotConnectedException e) {
+                    pendingPing = 0;
+                }
+                lastPingSent = now;
+            }
+        }
+
+        if (dead != null) {
+            logger.warn("Nothing received for " + silence + " ms: closing " + dead.getURI());
+            dead.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+        }
+    }
+
+    /**
+     * Gets the heartbeat statistics.
+     * <p>
+     * {"interval":5000,"timeout":15000,"silence":1203,"pings":120,"pongs":119,"lostPongs":1,"deadSockets":0,
+     * "roundTrip":{"p50":42,"p95":95,"p99":180,"max":310,"histogram":{"1":0,"2":0,...,"64":81,"128":30,"256":7,...}},
+     * "brokerPings":{"p50":5000,"p95":5004,"p99":5011,"max":5210}}
+     * <p>
+     * The keys of the histogram are the upper limits (excluded) of the buckets in ms ("inf" for the last one).
+     *
+     * @return the statistics
+     */
+    synchronized JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("interval", new JsonPrimitive(interval));
+        stats.add("timeout", new JsonPrimitive(timeout));
+        if (client != null) stats.add("silence", new JsonPrimitive(System.currentTimeMillis() - lastReceived));
+        stats.add("pings", new JsonPrimitive(pings));
+        stats.add("pongs", new JsonPrimitive(pongs));
+        stats.add("lostPongs", new JsonPrimitive(lostPongs));
+        stats.add("deadSockets", new JsonPrimitive(deadSockets));
+
+        JsonObject rtt = getLatency(roundTrip);
+        JsonObject histogram = new JsonObject();
+        long[] counts = roundTrip.getHistogram();
+        for (int i = 0; i < counts.length; i++) {
+            long limit = LatencyTracker.getBucketLimit(i);
+            histogram.add(limit == Long.MAX_VALUE ? "inf" : Long.toString(limit), new JsonPrimitive(counts[i]));
+        }
+        rtt.add("histogram", histogram);
+        stats.add("roundTrip", rtt);
+
+        stats.add("brokerPings", getLatency(brokerPingInterval));
+        return stats;
+    }
+
+    private static JsonObject getLatency(LatencyTracker tracker) {
+        JsonObject ret = new JsonObject();
+        ret.add("p50", new JsonPrimitive(tracker.getPercentile(50)));
+        ret.add("p95", new JsonPrimitive(tracker.getPercentile(95)));
+        ret.add("p99", new JsonPrimitive(tracker.getPercentile(99)));
+        ret.add("max", new JsonPrimitive(tracker.getMax()));
+        return ret;
+    }
+}
@@ -0,0 +1,32 @@
+/* This interface is implemented by the providers of the authorization of the secure requests
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+
+public interface IAuthorizationProvider {
+    /**
+     * Called each time a secure request is sent (e.g., when a subscription is
+     * made again after a reconnection), so that the current token is used.
+     *
+     * @return the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @throws SEPASecurityException if the token is not available
+     */
+    String getAuthorization() throws SEPASecurityException;
+}
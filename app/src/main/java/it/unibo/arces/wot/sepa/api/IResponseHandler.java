@@ -0,0 +1,38 @@
+/* This interface is implemented by the callers of the asynchronous SPARQL 1.1 SE Protocol primitives
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import it.unibo.arces.wot.sepa.commons.response.Response;
+
+public interface IResponseHandler {
+    /**
+     * Called when the response of an asynchronous request is available.
+     * <p>
+     * It is called by a worker thread (or by the thread receiving the
+     * response), unless the response is available when the request is made:
+     * a request rejected with a 429 error response (too many requests in
+     * flight), a request that cannot be sent (e.g., not connected) or a query
+     * whose results are cached. In those cases it is called by the caller
+     * thread, before the request method returns. A handler updating the UI
+     * has to post the response to the UI thread in any case.
+     *
+     * @param response the response (an ErrorResponse in case of failure)
+     */
+    void onResponse(Response response);
+}
@@ -0,0 +1,132 @@
+/* This class keeps track of the latency of the most recent requests
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.Arrays;
+
+/**
+ * The latency of the last <i>size</i> requests (a circular buffer). The
+ * percentiles are computed again every <i>size/8</i> new samples.
+ * <p>
+ * All the samples are also counted in a histogram with power of two buckets:
+ * [0, 1) [1, 2) [2, 4) ... [2^(BUCKETS-2), infinite) ms.
+ */
+public class LatencyTracker {
+    public static final int BUCKETS = 18;
+
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    // Sorted copy of the samples (computed lazily)
+    private long[] sorted = null;
+    private int sinceSort = 0;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long max = -1;
+
+    /**
+     * Instantiates a new latency tracker.
+     *
+     * @param size the number of samples
+     */
+    public LatencyTracker(int size) {
+        if (size <= 0) throw new IllegalArgumentException("Size must be > 0");
+        samples = new long[size];
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param latency the latency in ms
+     */
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+        sinceSort++;
+
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && latency >= getBucketLimit(bucket)) bucket++;
+        histogram[bucket]++;
+        if (latency > max) max = latency;
+    }
+
+    /**
+     * Gets the upper limit (excluded) of a bucket of the histogram.
+     *
+     * @param bucket the bucket
+     * @return the limit in ms (Long.MAX_VALUE for the last bucket)
+     */
+    public static long getBucketLimit(int bucket) {
+        if (bucket >= BUCKETS - 1) return Long.MAX_VALUE;
+        return 1L << bucket;
+    }
+
+    /**
+     * Gets the number of samples of each bucket (see {@link #getBucketLimit(int)}),
+     * since the tracker has been created.
+     *
+     * @return the counts
+     */
+    public synchronized long[] getHistogram() {
+        return Arrays.copyOf(histogram, BUCKETS);
+    }
+
+    /**
+     * Gets the maximum latency since the tracker has been created.
+     *
+     * @return the latency in ms or -1 if no sample has been recorded
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the number of samples.
+     *
+     * @return the number of samples (at most the size of the tracker)
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the latency.
+     *
+     * @param percentile the percentile (e.g., 95)
+     * @return the latency in ms or -1 if no sample has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return -1;
+
+        if (sorted == null || sinceSort > Math.max(samples.length / 8, 1) || sorted.length != count) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            sinceSort = 0;
+        }
+
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.min(Math.max(index, 0), count - 1)];
+    }
+
+    public String toString() {
+        return "p50=" + getPercentile(50) + "ms p95=" + getPercentile(95) + "ms p99=" + getPercentile(99) + "ms (" + getCount() + " samples)";
+    }
+}
@@ -0,0 +1,368 @@
+/* This class delivers the notifications of a client by worker threads
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+import it.unibo.arces.wot.sepa.api.SPARQL11SEProperties.NotificationOverflowPolicy;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.ARBindingsResults;
+
+/**
+ * Delivers the notifications to a handler by an executor, so that a slow
+ * handler does not stop the thread reading the WebSocket (which is shared by
+ * all the subscriptions of the process).
+ * <p>
+ * Each subscription has a bounded queue. The notifications of a subscription
+ * are delivered in order, one at a time. The notifications of different
+ * subscriptions may be delivered at the same time if the executor has more
+ * than one thread. When a queue is full:
+ * <ul>
+ * <li>BLOCK: the caller (i.e., the thread reading the socket shared by all the subscriptions) waits for room</li>
+ * <li>DROP_OLDEST: the oldest queued notification is discarded</li>
+ * <li>CONFLATE: the notification is merged with the last queued one</li>
+ * </ul>
+ * If conflation is enabled (see {@link #setConflation(boolean)}), all the
+ * notifications queued for a subscription are merged into their net effect
+ * before being delivered: a handler that falls behind catches up with a
+ * single call. A binding added and then removed is not notified at all, and
+ * notifications that cancel out completely are not delivered.
+ */
+public class NotificationDispatcher {
+    private static final Logger logger = LogManager.getLogger("NotificationDispatcher");
+
+    // Notifications delivered by a task before giving way to the other subscriptions
+    private static final int BATCH = 32;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    private final ISubscriptionHandler handler;
+    private final int capacity;
+    private final NotificationOverflowPolicy policy;
+
+    private final Executor executor;
+    // The executor created by the dispatcher (null if provided by the caller)
+    private final ExecutorService ownExecutor;
+
+    // SPUID ==> queue
+    private final ConcurrentHashMap<String, SubscriptionQueue> queues = new ConcurrentHashMap<String, SubscriptionQueue>();
+
+    private volatile boolean closed = false;
+    private volatile boolean conflation = false;
+
+    /**
+     * The notifications of a subscription waiting to be delivered. At most one
+     * task of a queue is submitted to the executor.
+     */
+    private class SubscriptionQueue implements Runnable {
+        private final ArrayDeque<Notification> notifications = new ArrayDeque<Notification>();
+        private boolean scheduled = false;
+
+        // Gauges
+        private int maxQueued = 0;
+        private long delivered = 0;
+        private long dropped = 0;
+        private long conflated = 0;
+        private long cancelled = 0;
+
+        void offer(Notification notify) {
+            synchronized (this) {
+                while (notifications.size() >= capacity && !closed) {
+                    if (policy == NotificationOverflowPolicy.DROP_OLDEST) {
+                        notifications.poll();
+                        dropped++;
+                    } else if (policy == NotificationOverflowPolicy.CONFLATE) {
+                        notify = conflate(notifications.pollLast(), notify);
+                        conflated++;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped++;
+                            return;
+                        }
+                    }
+                }
+
+                notifications.add(notify);
+                if (notifications.size() > maxQueued) maxQueued = notifications.size();
+
+                if (scheduled) return;
+                scheduled = true;
+            }
+
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.error("Notifications cannot be delivered: " + e.getMessage());
+                synchronized (this) {
+                    dropped += notifications.size();
+                    notifications.clear();
+                    scheduled = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Notification notify;
+                boolean merged = false;
+                synchronized (this) {
+                    notify = notifications.poll();
+                    if (notify == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    // The handler is late: it gets the net effect of the queued notifications
+                    if (conflation) {
+                        while (!notifications.isEmpty()) {
+                            notify = conflate(notify, notifications.poll());
+                            conflated++;
+                            merged = true;
+                        }
+                    }
+                    // Room for a blocked caller
+                    notifyAll();
+                }
+
+                if (merged && isEmpty(notify)) {
+                    synchronized (this) {
+                        cancelled++;
+                    }
+                    continue;
+                }
+
+                try {
+                    handler.onSemanticEvent(notify);
+                } catch (RuntimeException e) {
+                    logger.error("Notification handler exception: " + e);
+                }
+
+                synchronized (this) {
+                    delivered++;
+                }
+            }
+
+            // Gives way to the other subscriptions
+            schedule();
+        }
+
+        synchronized JsonObject getStatistics() {
+            JsonObject stats = new JsonObject();
+            stats.add("queued", new JsonPrimitive(notifications.size()));
+            stats.add("maxQueued", new JsonPrimitive(maxQueued));
+            stats.add("delivered", new JsonPrimitive(delivered));
+            stats.add("dropped", new JsonPrimitive(dropped));
+            stats.add("conflated", new JsonPrimitive(conflated));
+            stats.add("cancelled", new JsonPrimitive(cancelled));
+            return stats;
+        }
+
+        synchronized int size() {
+            return notifications.size();
+        }
+
+        synchronized void close() {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Instantiates a new dispatcher with its own worker threads (daemon).
+     *
+     * @param handler  the handler of the notifications
+     * @param capacity the maximum number of queued notifications of a subscription
+     * @param policy   what happens when the queue of a subscription is full
+     * @param threads  the number of worker threads
+     */
+    public NotificationDispatcher(ISubscriptionHandler handler, int capacity, NotificationOverflowPolicy policy, int threads) {
+        this(handler, capacity, policy, newExecutor(threads), true);
+    }
+
+    /**
+     * Instantiates a new dispatcher.
+     *
+     * @param handler  the handler of the notifications
+     * @param capacity the maximum number of queued notifications of a subscription
+     * @param policy   what happens when the queue of a subscription is full
+     * @param executor the executor delivering the notifications (it is not shut down by {@link #close()})
+     */
+    public NotificationDispatcher(ISubscriptionHandler handler, int capacity, NotificationOverflowPolicy policy, Executor executor) {
+        this(handler, capacity, policy, executor, false);
+    }
+
+    private NotificationDispatcher(ISubscriptionHandler handler, int capacity, NotificationOverflowPolicy policy,
+                                   Executor executor, boolean own) {
+        if (handler == null) throw new IllegalArgumentException("Handler is null");
+        if (capacity <= 0) throw new IllegalArgumentException("Queue size must be > 0");
+        if (policy == null) throw new IllegalArgumentException("Overflow policy is null");
+        if (executor == null) throw new IllegalArgumentException("Executor is null");
+
+        this.handler = handler;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.executor = executor;
+        this.ownExecutor = (own ? (ExecutorService) executor : null);
+    }
+
+    private static ExecutorService newExecutor(int n) {
+        if (n <= 0) throw new IllegalArgumentException("Threads must be > 0");
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NotificationDispatcher-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Enables or disables the conflation of the queued notifications.
+     *
+     * @param enabled true to merge the notifications queued for a subscription before delivering them
+     */
+    public void setConflation(boolean enabled) {
+        conflation = enabled;
+    }
+
+    public boolean isConflationEnabled() {
+        return conflation;
+    }
+
+    /**
+     * Queues a notification (see {@link NotificationOverflowPolicy} for what
+     * happens if the queue of the subscription is full).
+     *
+     * @param notify the notification
+     */
+    public void dispatch(Notification notify) {
+        if (closed) {
+            logger.warn("Dispatcher closed. Notification discarded: " + notify.getSpuid());
+            return;
+        }
+
+        SubscriptionQueue queue = queues.get(notify.getSpuid());
+        if (queue == null) {
+            SubscriptionQueue created = new SubscriptionQueue();
+            queue = queues.putIfAbsent(notify.getSpuid(), created);
+            if (queue == null) queue = created;
+        }
+        queue.offer(notify);
+    }
+
+    /**
+     * Removes the queue of a subscription (e.g., unsubscribed). The queued
+     * notifications are delivered.
+     *
+     * @param spuid the subscription identifier
+     */
+    public void remove(String spuid) {
+        queues.remove(spuid);
+    }
+
+    /**
+     * Merges two consecutive notifications of the same subscription.
+     */
+    private static Notification conflate(Notification older, Notification newer) {
+        if (older.getARBindingsResults() == null || newer.getARBindingsResults() == null) return newer;
+        ARBindingsResults merged = ARBindingsResults.merge(older.getARBindingsResults(), newer.getARBindingsResults());
+        return new Notification(newer.getSpuid(), merged,
+                newer.getAsJsonObject().get("sequence") != null ? newer.getSequence() : 0);
+    }
+
+    private static boolean isEmpty(Notification notify) {
+        ARBindingsResults results = notify.getARBindingsResults();
+        return results != null && results.getAddedBindings().isEmpty() && results.getRemovedBindings().isEmpty();
+    }
+
+    /**
+     * Gets the number of queued notifications (of all the subscriptions).
+     *
+     * @return the number of queued notifications
+     */
+    public int getQueued() {
+        int ret = 0;
+        for (SubscriptionQueue queue : queues.values()) ret += queue.size();
+        return ret;
+    }
+
+    /**
+     * Stops queuing notifications. The queued notifications are delivered and
+     * the threads created by the dispatcher are stopped. Callers blocked on a
+     * full queue are released.
+     */
+    public void close() {
+        closed = true;
+        for (SubscriptionQueue queue : queues.values()) queue.close();
+        if (ownExecutor != null) ownExecutor.shutdown();
+    }
+
+    /**
+     * Gets the queue depth gauges.
+     * <p>
+     * {"policy":"CONFLATE","conflation":false,"queueSize":1000,"queued":12,"subscriptions":{"spuid-1":{"queued":12,"maxQueued":230,"delivered":10452,"dropped":0,"conflated":0,"cancelled":0}}}
+     *
+     * @return the statistics
+     */
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("policy", new JsonPrimitive(policy.name()));
+        stats.add("conflation", new JsonPrimitive(conflation));
+        stats.add("queueSize", new JsonPrimitive(capacity));
+        stats.add("queued", new JsonPrimitive(getQueued()));
+        JsonObject subscriptions = new JsonObject();
+        for (Map.Entry<String, SubscriptionQueue> queue : queues.entrySet())
+            subscriptions.add(queue.getKey(), queue.getValue().getStatistics());
+        stats.add("subscriptions", subscriptions);
+        return stats;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+}
@@ -0,0 +1,265 @@
+/* This class implements the permessage-deflate WebSocket extension (RFC 7692)
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.CompressionExtension;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+/**
+ * The permessage-deflate extension (RFC 7692) of the client side of a
+ * WebSocket: the broker compresses the messages it sends (e.g., notifications
+ * with many added or removed bindings).
+ * <p>
+ * The extension is offered in the opening handshake and it is used only if
+ * the broker accepts it. The messages sent by the client (i.e., subscribe and
+ * unsubscribe requests) are small and they are not compressed (the protocol
+ * allows it).
+ * <p>
+ * The copies of an extension (one for each connection) share the counters of
+ * the received bytes before and after decompression. The native memory of the
+ * inflater is allocated by the first compressed message and released when the
+ * connection is closed (see {@link #reset()}): the extension offered by the
+ * manager and its copies that are never used do not hold any.
+ * <p>
+ * Compressed data that cannot be inflated is a protocol error: the connection
+ * is closed with code 1002.
+ */
+public class PerMessageDeflateExtension extends CompressionExtension {
+    private static final Logger logger = LogManager.getLogger("PerMessageDeflateExtension");
+
+    private static final String EXTENSION = "permessage-deflate";
+
+    // Removed by the sender from the end of each compressed message
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    // Created by the first compressed message (null after reset)
+    private Inflater inflater = null;
+    private final byte[] buffer = new byte[4096];
+
+    // The broker compresses each message without the previous ones
+    private boolean serverNoContextTakeover = false;
+
+    // True while the fragments of a compressed message are received
+    private boolean inflating = false;
+
+    // Counters (shared by the copies)
+    private final AtomicLong compressedBytes;
+    private final AtomicLong uncompressedBytes;
+    private final AtomicLong compressedMessages;
+
+    public PerMessageDeflateExtension() {
+        this(new AtomicLong(0), new AtomicLong(0), new AtomicLong(0));
+    }
+
+    private PerMessageDeflateExtension(AtomicLong compressedBytes, AtomicLong uncompressedBytes, AtomicLong compressedMessages) {
+        this.compressedBytes = compressedBytes;
+        this.uncompressedBytes = uncompressedBytes;
+        this.compressedMessages = compressedMessages;
+    }
+
+    @Override
+    public void decodeFrame(Framedata frame) throws InvalidDataException {
+        switch (frame.getOpcode()) {
+            case TEXT:
+            case BINARY:
+                // The first fragment tells if the message is compressed
+                inflating = frame.isRSV1();
+                break;
+            case CONTINUOUS:
+                break;
+            default:
+                return;
+        }
+        if (!inflating) return;
+
+        if (!(frame instanceof FramedataImpl1))
+            throw new InvalidDataException(CloseFrame.EXTENSION, "Unsupported frame: " + frame.getClass().getName());
+
+        ByteBuffer payload = frame.getPayloadData();
+        int length = payload.remaining();
+        byte[] input = new byte[length + (frame.isFin() ? TAIL.length : 0)];
+        payload.get(input, 0, length);
+        if (frame.isFin()) System.arraycopy(TAIL, 0, input, length, TAIL.length);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(length * 4, 64));
+        if (inflater == null) inflater = new Inflater(true);
+        inflater.setInput(input);
+        try {
+            int n;
+            while ((n = inflater.inflate(buffer)) > 0) output.write(buffer, 0, n);
+        } catch (DataFormatException e) {
+            throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, "Invalid compressed data: " + e.getMessage());
+        }
+        if (inflater.needsDictionary()) throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, "Invalid compressed data");
+
+        FramedataImpl1 decoded = (FramedataImpl1) frame;
+        decoded.setPayload(ByteBuffer.wrap(output.toByteArray()));
+        decoded.setRSV1(false);
+
+        compressedBytes.addAndGet(length);
+        uncompressedBytes.addAndGet(output.size());
+
+        if (frame.isFin()) {
+            inflating = false;
+            compressedMessages.incrementAndGet();
+            // A new deflate stream starts with the next message
+            if (serverNoContextTakeover || inflater.finished()) inflater.reset();
+        }
+    }
+
+    @Override
+    public void encodeFrame(Framedata frame) {
+        // The messages of the client are not compressed
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+        return false;
+    }
+
+    /**
+     * Accepts the extension returned by the broker (e.g.,
+     * "permessage-deflate; server_no_context_takeover; client_max_window_bits=15").
+     *
+     * @param inputExtension the value of the Sec-WebSocket-Extensions header
+     * @return true if the broker has accepted permessage-deflate with parameters supported by the client
+     */
+    @Override
+    public boolean acceptProvidedExtensionAsClient(String inputExtension) {
+        if (inputExtension == null) return false;
+
+        for (String extension : inputExtension.split(",")) {
+            String[] parameters = extension.split(";");
+            if (!parameters[0].trim().equalsIgnoreCase(EXTENSION)) continue;
+
+            boolean noContextTakeover = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String[] parameter = parameters[i].trim().split("=");
+                String name = parameter[0].trim();
+                if (name.equals("server_no_context_takeover")) noContextTakeover = true;
+                else if (name.equals("server_max_window_bits")) {
+                    // The inflater window (32K) is large enough for any window
+                    if (parameter.length != 2 || !isWindowBits(parameter[1])) return false;
+                } else if (!name.equals("client_no_context_takeover") && !name.equals("client_max_window_bits")) {
+                    logger.warn("Unknown " + EXTENSION + " parameter: " + name);
+                    return false;
+                }
+            }
+
+            serverNoContextTakeover = noContextTakeover;
+            logger.debug("Negotiated: " + extension.trim());
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value.trim().replace("\"", ""));
+            return bits >= 8 && bits <= 15;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient() {
+        // The client does not compress, so the broker may drop the context of its decompressor
+        return EXTENSION + "; client_no_context_takeover";
+    }
+
+    @Override
+    public String getProvidedExtensionAsServer() {
+        return "";
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new PerMessageDeflateExtension(compressedBytes, uncompressedBytes, compressedMessages);
+    }
+
+    /**
+     * Called when the connection is closed: the inflater is released.
+     */
+    @Override
+    public void reset() {
+        if (inflater != null) inflater.end();
+        inflater = null;
+        inflating = false;
+    }
+
+    /**
+     * Gets the payload bytes of the compressed messages, as received.
+     *
+     * @return the number of bytes before decompression
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Gets the payload bytes of the compressed messages, once decompressed.
+     *
+     * @return the number of bytes after decompression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    /**
+     * Gets the compression counters.
+     * <p>
+     * {"compressedMessages":120,"compressedBytes":48211,"uncompressedBytes":503377}
+     *
+     * @return the statistics
+     */
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("compressedMessages", new JsonPrimitive(compressedMessages.get()));
+        stats.add("compressedBytes", new JsonPrimitive(compressedBytes.get()));
+        stats.add("uncompressedBytes", new JsonPrimitive(uncompressedBytes.get()));
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "PerMessageDeflateExtension";
+    }
+}
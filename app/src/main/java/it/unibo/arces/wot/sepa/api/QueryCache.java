@@ -0,0 +1,201 @@
+/* This class implements a cache of the results of SPARQL 1.1 queries
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * A LRU cache of query results, bounded by number of entries and by size.
+ * <p>
+ * The key is the SPARQL query as sent to the endpoint and the value is the
+ * results document (application/sparql-results+json) as received. Entries
+ * expire after <i>ttl</i> ms and they are all invalidated by any update.
+ * <p>
+ * A query that is in progress while an update is sent is not cached: its
+ * results may have been computed before the update.
+ */
+public class QueryCache {
+
+    private static class CachedResults {
+        final String results;
+        final long expires;
+
+        CachedResults(String results, long expires) {
+            this.results = results;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttl;
+
+    // Access ordered: the least recently used entry is the first
+    private final LinkedHashMap<String, CachedResults> entries = new LinkedHashMap<String, CachedResults>(16, 0.75f, true);
+    private long bytes = 0;
+
+    // Incremented by each update
+    private long generation = 0;
+
+    // Statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+
+    /**
+     * Instantiates a new query cache.
+     *
+     * @param maxEntries the maximum number of cached queries
+     * @param maxBytes   the maximum size (characters of queries and results)
+     * @param ttl        the time (ms) after that an entry expires (0 means never)
+     */
+    public QueryCache(int maxEntries, long maxBytes, long ttl) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("Max entries must be > 0");
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets the cached results of a query.
+     *
+     * @param sparql the query
+     * @return the results or <i>null</i> if not cached (or expired)
+     */
+    public synchronized String get(String sparql) {
+        CachedResults entry = entries.get(sparql);
+
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            remove(sparql, entry);
+            expirations++;
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.results;
+    }
+
+    /**
+     * Gets the current generation: it must be passed to {@link #put(String, String, long)}
+     * to cache the results of a query sent now.
+     *
+     * @return the generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the results of a query, unless an update has been sent after
+     * the query.
+     *
+     * @param sparql     the query
+     * @param results    the results
+     * @param generation the generation when the query was sent
+     */
+    public synchronized void put(String sparql, String results, long generation) {
+        if (generation != this.generation) return;
+
+        long size = size(sparql, results);
+        if (size > maxBytes) return;
+
+        CachedResults old = entries.remove(sparql);
+        if (old != null) bytes -= size(sparql, old.results);
+
+        entries.put(sparql, new CachedResults(results, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE));
+        bytes += size;
+
+        Iterator<Map.Entry<String, CachedResults>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, CachedResults> eldest = it.next();
+            it.remove();
+            bytes -= size(eldest.getKey(), eldest.getValue().results);
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all the entries (e.g., because an update has been sent).
+     */
+    public synchronized void invalidate() {
+        generation++;
+        if (entries.isEmpty()) return;
+
+        entries.clear();
+        bytes = 0;
+        invalidations++;
+    }
+
+    private void remove(String sparql, CachedResults entry) {
+        entries.remove(sparql);
+        bytes -= size(sparql, entry.results);
+    }
+
+    private static long size(String sparql, String results) {
+        return sparql.length() + results.length();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Gets the cache statistics.
+     * <p>
+     * {"entries":12,"bytes":34567,"hits":1023,"misses":57,"evictions":0,"expirations":40,"invalidations":5}
+     *
+     * @return the statistics
+     */
+    public synchronized JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("entries", new JsonPrimitive(entries.size()));
+        stats.add("bytes", new JsonPrimitive(bytes));
+        stats.add("hits", new JsonPrimitive(hits));
+        stats.add("misses", new JsonPrimitive(misses));
+        stats.add("evictions", new JsonPrimitive(evictions));
+        stats.add("expirations", new JsonPrimitive(expirations));
+        stats.add("invalidations", new JsonPrimitive(invalidations));
+        return stats;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+}
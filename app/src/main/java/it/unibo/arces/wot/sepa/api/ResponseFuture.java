@@ -0,0 +1,102 @@
+/* This class represents a response that will be available in the future
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+
+/**
+ * A future response that is completed explicitly (e.g., when the response to
+ * a batch of requests, or a message received on a WebSocket, is available).
+ * The handler (if any) is called once by the thread that completes the future.
+ * <p>
+ * Requests cannot be cancelled: {@link #cancel(boolean)} always returns false.
+ */
+public class ResponseFuture implements Future<Response> {
+    private static final Logger logger = LogManager.getLogger("ResponseFuture");
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final IResponseHandler handler;
+    private volatile Response response = null;
+
+    /**
+     * Instantiates a new future response.
+     *
+     * @param handler the handler of the response (may be null)
+     */
+    public ResponseFuture(IResponseHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Completes the future. Only the first call has effect.
+     *
+     * @param response the response
+     * @return true if the future has been completed by this call
+     */
+    public boolean complete(Response response) {
+        synchronized (this) {
+            if (this.response != null) return false;
+            this.response = response;
+        }
+        done.countDown();
+
+        if (handler != null) {
+            try {
+                handler.onResponse(response);
+            } catch (RuntimeException e) {
+                logger.error("Response handler exception: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return response != null;
+    }
+
+    @Override
+    public Response get() throws InterruptedException {
+        done.await();
+        return response;
+    }
+
+    @Override
+    public Response get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) throw new TimeoutException();
+        return response;
+    }
+}
@@ -1,15 +1,29 @@
 package it.unibo.arces.wot.sepa.api;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import it.unibo.arces.wot.sepa.android.logging.LogManager;
 import it.unibo.arces.wot.sepa.android.logging.Logger;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
@@ -17,15 +31,95 @@ import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
 import it.unibo.arces.wot.sepa.commons.response.UnsubscribeResponse;
 
+/**
+ * The WebSocket client of the SPARQL 1.1 SE Subscribe Language.
+ * <p>
+ * Many subscribe and unsubscribe requests can be in progress at the same time
+ * on the same socket. Responses are correlated with the pending requests:
+ * <ul>
+ * <li>a subscribe response by the alias (a unique alias is added to the requests without alias)</li>
+ * <li>an unsubscribe response by the SPUID</li>
+ * </ul>
+ * If a response cannot be correlated (e.g., a broker that does not return the
+ * alias), it completes the oldest pending request of the same kind. An error
+ * response is correlated by the alias (subscribe) or by the SPUID
+ * (unsubscribe). If it has neither, it completes the oldest pending request
+ * only if all the pending requests are of the same kind. Otherwise it is passed
+ * to {@link ISubscriptionHandler#onError(ErrorResponse)}, and the pending
+ * requests complete with their own response or with their timeout. An error is
+ * never used to complete a request of the other kind.
+ * <p>
+ * A subscribe request abandoned by the caller (e.g., on timeout, see
+ * {@link #waitResponse(Future, long)}) is remembered by its alias until the
+ * socket is closed: if it is answered late, the subscription is unsubscribed,
+ * so that the broker does not keep sending notifications nobody is waiting for.
+ * <p>
+ * The messages may be received both as text frames (JSON) and as binary
+ * frames (CBOR). The binary encoding of the notifications is requested by the
+ * "accept" member of the subscribe requests (see
+ * {@link #setBinaryNotifications(boolean)}): a broker that does not support it
+ * keeps sending JSON.
+ */
 public class SEPAWebsocketClient extends WebSocketClient {
     protected static Logger logger = LogManager.getLogger("SEPAWebsocketClient");
 
     private ISubscriptionHandler handler;
-    private Response response = new ErrorResponse(500, "null");
-    private boolean responseReceived = false;
+
+    /**
+     * A request waiting for the response.
+     */
+    private static class PendingRequest {
+        final boolean subscribe;
+        // The alias (subscribe) or the SPUID (unsubscribe)
+        final String key;
+        // The authorization of a secure request (null if not secure)
+        final String authorization;
+        final ResponseFuture response;
+
+        PendingRequest(boolean subscribe, String key, String authorization, IResponseHandler handler) {
+            this.subscribe = subscribe;
+            this.key = key;
+            this.authorization = authorization;
+            this.response = new ResponseFuture(handler);
+        }
+    }
+
+    private static final int MAX_ABANDONED = 1024;
+
+    // Pending requests in the order they have been sent
+    private final LinkedHashMap<Long, PendingRequest> pending = new LinkedHashMap<Long, PendingRequest>();
+
+    // Alias ==> abandoned subscribe request (the oldest ones are forgotten)
+    private final LinkedHashMap<String, PendingRequest> abandoned = new LinkedHashMap<String, PendingRequest>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PendingRequest> eldest) {
+            return size() > MAX_ABANDONED;
+        }
+    };
+    private final AtomicLong requestId = new AtomicLong(0);
+
+    // Set before the handler is notified that the socket is closed
+    private volatile boolean closed = false;
+
+    // Notified of the received messages (may be null)
+    private volatile HeartbeatMonitor heartbeat = null;
+
+    // The subscribe requests ask for CBOR notifications
+    private volatile boolean binaryNotifications = false;
 
     public SEPAWebsocketClient(URI wsUrl, ISubscriptionHandler handler) {
-        super(wsUrl);
+        this(wsUrl, handler, new Draft_6455());
+    }
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param wsUrl   the URL
+     * @param handler the handler of the notifications
+     * @param draft   the protocol with the extensions offered to the broker (e.g., {@link PerMessageDeflateExtension})
+     */
+    public SEPAWebsocketClient(URI wsUrl, ISubscriptionHandler handler, Draft draft) {
+        super(wsUrl, draft);
 
         if (handler == null) {
             logger.fatal("Notification handler is null. Client cannot be initialized");
@@ -35,41 +129,284 @@ public class SEPAWebsocketClient extends WebSocketClient {
         this.handler = handler;
     }
 
-    private synchronized Response waitResponse(long timeout) {
-        if (!responseReceived)
-            try {
-                wait(timeout);
-            } catch (InterruptedException e) {
-                return new ErrorResponse(500, e.getMessage());
+    /**
+     * Sends a subscribe request.
+     *
+     * @param sparql  the SPARQL query
+     * @param alias   the alias (if null, a unique alias is used to correlate the response)
+     * @param handler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribe(String sparql, String alias, IResponseHandler handler) {
+        return subscribe(sparql, alias, null, handler);
+    }
+
+    /**
+     * Sends a secure subscribe request.
+     *
+     * @param sparql        the SPARQL query
+     * @param alias         the alias (if null, a unique alias is used to correlate the response)
+     * @param authorization the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @param handler       the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribe(String sparql, String alias, String authorization, IResponseHandler handler) {
+        long id = requestId.incrementAndGet();
+        if (alias == null) alias = "sepa-request-" + id;
+
+        JsonObject request = new JsonObject();
+        request.add("subscribe", new JsonPrimitive(sparql));
+        request.add("alias", new JsonPrimitive(alias));
+        if (authorization != null) request.add("authorization", new JsonPrimitive(authorization));
+        if (binaryNotifications) request.add("accept", new JsonPrimitive(CborCodec.MEDIA_TYPE));
+
+        return send(id, new PendingRequest(true, alias, authorization, handler), request.toString());
+    }
+
+    /**
+     * Sends an unsubscribe request.
+     *
+     * @param spuid   the subscription identifier
+     * @param handler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> unsubscribe(String spuid, IResponseHandler handler) {
+        return unsubscribe(spuid, null, handler);
+    }
+
+    /**
+     * Sends a secure unsubscribe request.
+     *
+     * @param spuid         the subscription identifier
+     * @param authorization the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @param handler       the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> unsubscribe(String spuid, String authorization, IResponseHandler handler) {
+        JsonObject request = new JsonObject();
+        request.add("unsubscribe", new JsonPrimitive(spuid));
+        if (authorization != null) request.add("authorization", new JsonPrimitive(authorization));
+
+        return send(requestId.incrementAndGet(), new PendingRequest(false, spuid, authorization, handler), request.toString());
+    }
+
+    private Future<Response> send(long id, PendingRequest request, String message) {
+        synchronized (pending) {
+            purge();
+            pending.put(id, request);
+        }
+
+        try {
+            send(message);
+        } catch (WebsocketNotConnectedException e) {
+            synchronized (pending) {
+                pending.remove(id);
             }
+            request.response.complete(new ErrorResponse(408, "Not connected"));
+        }
 
-        return response;
+        return request.response;
     }
 
-    private synchronized void setResponse() {
-        responseReceived = true;
-        notify();
+    /**
+     * Waits for a response. On timeout the request is abandoned: a late
+     * response is ignored (a late subscribe response is unsubscribed).
+     *
+     * @param response the future response
+     * @param timeout  the timeout in ms
+     * @return the response or an {@link ErrorResponse} (408) on timeout
+     */
+    public static Response waitResponse(Future<Response> response, long timeout) {
+        try {
+            return response.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return abandon(response, new ErrorResponse(408, "Timeout waiting for the response"));
+        } catch (InterruptedException | ExecutionException e) {
+            return abandon(response, new ErrorResponse(500, e.getMessage()));
+        }
     }
 
-    public Response sendAndReceive(String message, long timeout) {
-        // Send request and wait response
-        responseReceived = false;
-        send(message);
-        return waitResponse(timeout);
+    private static Response abandon(Future<Response> response, ErrorResponse error) {
+        // Completed requests are removed from the pending ones lazily
+        if (!(response instanceof ResponseFuture) || ((ResponseFuture) response).complete(error)) return error;
+        try {
+            return response.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return error;
+        }
+    }
+
+    /**
+     * Removes the abandoned requests (e.g., timeout). The subscribe requests
+     * are remembered in case they are answered late.
+     */
+    private void purge() {
+        Iterator<PendingRequest> it = pending.values().iterator();
+        while (it.hasNext()) {
+            PendingRequest request = it.next();
+            if (!request.response.isDone()) continue;
+            it.remove();
+            if (request.subscribe) abandoned.put(request.key, request);
+        }
+    }
+
+    /**
+     * Removes an abandoned subscribe request.
+     *
+     * @param alias the alias of the response (null if not present)
+     * @return the request or <i>null</i> if it has not been abandoned
+     */
+    private PendingRequest abandoned(String alias) {
+        if (alias == null) return null;
+        synchronized (pending) {
+            purge();
+            return abandoned.remove(alias);
+        }
+    }
+
+    /**
+     * Gets the number of requests waiting for the response.
+     *
+     * @return the number of pending requests
+     */
+    public int getPendingRequests() {
+        synchronized (pending) {
+            purge();
+            return pending.size();
+        }
+    }
+
+    /**
+     * Removes the pending request the response refers to.
+     *
+     * @param subscribe true for subscribe responses, false for unsubscribe responses
+     * @param key       the alias or the SPUID (null if not present)
+     * @return the request or <i>null</i> if there is no pending request of that kind
+     */
+    private PendingRequest correlate(boolean subscribe, String key) {
+        synchronized (pending) {
+            purge();
+            Map.Entry<Long, PendingRequest> oldest = null;
+            for (Map.Entry<Long, PendingRequest> entry : pending.entrySet()) {
+                if (entry.getValue().subscribe != subscribe) continue;
+                if (key != null && key.equals(entry.getValue().key)) {
+                    oldest = entry;
+                    break;
+                }
+                if (oldest == null) oldest = entry;
+            }
+            if (oldest == null) return null;
+            pending.remove(oldest.getKey());
+            return oldest.getValue();
+        }
+    }
+
+    private PendingRequest oldest() {
+        synchronized (pending) {
+            purge();
+            Iterator<PendingRequest> it = pending.values().iterator();
+            if (!it.hasNext()) return null;
+            PendingRequest ret = it.next();
+            it.remove();
+            return ret;
+        }
+    }
+
+    /**
+     * Removes the oldest pending request if all the pending requests are of
+     * the same kind (i.e., the kind of an uncorrelated error is not ambiguous).
+     *
+     * @return the request or <i>null</i> if there are no pending requests or they are of both kinds
+     */
+    private PendingRequest oldestOfSingleKind() {
+        synchronized (pending) {
+            purge();
+            Iterator<Map.Entry<Long, PendingRequest>> it = pending.entrySet().iterator();
+            if (!it.hasNext()) return null;
+            Map.Entry<Long, PendingRequest> oldest = it.next();
+            while (it.hasNext()) if (it.next().getValue().subscribe != oldest.getValue().subscribe) return null;
+            pending.remove(oldest.getKey());
+            return oldest.getValue();
+        }
+    }
+
+    /**
+     * Sets the monitor notified of the received messages and pongs.
+     *
+     * @param heartbeat the monitor
+     */
+    void setHeartbeat(HeartbeatMonitor heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Sets the encoding of the notifications requested by the subscribe
+     * requests sent from now on.
+     *
+     * @param binary true to request CBOR, false to request JSON
+     */
+    void setBinaryNotifications(boolean binary) {
+        binaryNotifications = binary;
+    }
+
+    boolean isBinaryNotifications() {
+        return binaryNotifications;
+    }
+
+    HeartbeatMonitor getHeartbeat() {
+        return heartbeat;
+    }
+
+    @Override
+    public void onWebsocketPing(WebSocket conn, Framedata f) {
+        super.onWebsocketPing(conn, f);
+        HeartbeatMonitor heartbeat = this.heartbeat;
+        if (heartbeat != null) heartbeat.received(this, false);
+    }
+
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f) {
+        super.onWebsocketPong(conn, f);
+        HeartbeatMonitor heartbeat = this.heartbeat;
+        if (heartbeat != null) heartbeat.pong(this);
     }
 
     @Override
     public void onOpen(ServerHandshake handshakedata) {
         logger.debug("@onOpen");
         synchronized (handler) {
-            handler.notify();
+            handler.notifyAll();
         }
     }
 
+    /**
+     * Checks if the socket is closed (or it is being closed and the handler is being notified).
+     *
+     * @return true if the socket is closed
+     */
+    @Override
+    public boolean isClosed() {
+        return closed || super.isClosed();
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
         logger.debug("@onClose code: " + code + " reason: " + reason + " remote: " + remote);
+
+        closed = true;
+
+        // The handler knows that the socket is closed before the pending requests fail
         if (handler != null) handler.onBrokenSocket();
+
+        // The pending requests will never be answered
+        PendingRequest request;
+        while ((request = oldest()) != null)
+            request.response.complete(new ErrorResponse(500, "Connection closed: " + reason));
+
+        // The subscriptions are lost with the socket
+        synchronized (pending) {
+            abandoned.clear();
+        }
     }
 
     @Override
@@ -81,24 +418,73 @@ public class SEPAWebsocketClient extends WebSocketClient {
 
     @Override
     public void onMessage(String message) {
-        logger.debug("@onMessage " + message);
-
-        // Parse message
-        JsonObject notify = new JsonParser().parse(message).getAsJsonObject();
-
-        if (notify.get("ping") != null) {
-            if (handler != null) handler.onPing();
-        } else if (notify.get("subscribed") != null) {
-            response = new SubscribeResponse(notify);
-            setResponse();
-        } else if (notify.get("unsubscribed") != null) {
-            response = new UnsubscribeResponse(notify);
-            setResponse();
-        } else if (notify.get("results") != null) {
-            if (handler != null) handler.onSemanticEvent(new Notification(notify));
-        } else if (notify.get("code") != null) {
-            if (handler != null) handler.onError(new ErrorResponse(notify));
-        } else
-            logger.error("Unknown message: " + message);
+        // The frame is copied only if it is going to be logged
+        if (logger.isDebugEnabled()) logger.debug("@onMessage " + message);
+
+        handle(WebsocketMessage.parse(message));
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+        if (logger.isDebugEnabled()) logger.debug("@onMessage binary (" + message.remaining() + " bytes)");
+
+        handle(WebsocketMessage.parse(message));
+    }
+
+    private void handle(WebsocketMessage parsed) {
+        JsonObject notify = parsed.json;
+
+        HeartbeatMonitor heartbeat = this.heartbeat;
+        if (heartbeat != null) heartbeat.received(this, parsed.type == WebsocketMessage.Type.PING);
+
+        switch (parsed.type) {
+            case PING:
+                if (handler != null) handler.onPing();
+                break;
+            case SUBSCRIBED: {
+                String alias = (notify.get("alias") != null ? notify.get("alias").getAsString() : null);
+                // Before correlating, not to complete another request instead
+                PendingRequest request = abandoned(alias);
+                if (request != null) {
+                    // Nobody is waiting for the notifications
+                    String spuid = new SubscribeResponse(notify).getSpuid();
+                    logger.warn("Late subscribe response (" + alias + "): unsubscribing " + spuid);
+                    unsubscribe(spuid, request.authorization, null);
+                    break;
+                }
+
+                request = correlate(true, alias);
+                if (request != null) request.response.complete(new SubscribeResponse(notify));
+                else logger.warn("Unexpected subscribe response: " + notify);
+                break;
+            }
+            case UNSUBSCRIBED: {
+                PendingRequest request = correlate(false, notify.get("unsubscribed").getAsString());
+                if (request != null) request.response.complete(new UnsubscribeResponse(notify));
+                else logger.warn("Unexpected unsubscribe response: " + notify);
+                break;
+            }
+            case NOTIFICATION:
+                if (handler != null) handler.onSemanticEvent(new Notification(notify));
+                break;
+            case ERROR: {
+                // The response to a pending request (see the class description)
+                PendingRequest request;
+                if (notify.get("alias") != null) {
+                    if (abandoned(notify.get("alias").getAsString()) != null) {
+                        logger.warn("Late error response: " + notify);
+                        break;
+                    }
+                    request = correlate(true, notify.get("alias").getAsString());
+                } else if (notify.get("spuid") != null) request = correlate(false, notify.get("spuid").getAsString());
+                else request = oldestOfSingleKind();
+
+                if (request != null) request.response.complete(new ErrorResponse(notify));
+                else if (handler != null) handler.onError(new ErrorResponse(notify));
+                break;
+            }
+            default:
+                logger.error("Unknown message: " + notify);
+        }
     }
 }
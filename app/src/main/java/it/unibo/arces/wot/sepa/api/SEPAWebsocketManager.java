@@ -0,0 +1,859 @@
+/* This class shares the WebSocket connections to the same broker among all the clients of the process
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+import it.unibo.arces.wot.sepa.api.http.TLSContext;
+import it.unibo.arces.wot.sepa.api.http.UnixSocket;
+
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.response.SubscribeResponse;
+import it.unibo.arces.wot.sepa.commons.response.UnsubscribeResponse;
+
+
+/**
+ * A WebSocket connection shared by all the clients of the process that
+ * subscribe to the same broker (i.e., the same host, port and path, or the
+ * same Unix domain socket).
+ * <p>
+ * Notifications are routed to the handler of the subscription by SPUID: the
+ * route is added when the subscribe response is received and removed when the
+ * unsubscribe response is received. Pings, errors not related to a request and
+ * the closing of the socket are notified to all the clients.
+ * <p>
+ * If reconnection is enabled (see {@link #setReconnect(boolean, long, long, int)}),
+ * a closed socket is opened again with exponential backoff and the active
+ * subscriptions are made again. The clients keep using the SPUIDs of the first
+ * subscribe responses: notifications are forwarded with those SPUIDs. The
+ * clients are notified of the broken socket only if the socket cannot be
+ * opened again within the maximum number of attempts.
+ * <p>
+ * Notifications are numbered by the broker. If reconnection is enabled, each
+ * subscription keeps its current results (if the subscribe response includes
+ * the first results): a missed notification makes the subscription again and
+ * the difference between the new first results and the kept results is
+ * notified as a single notification (with sequence number 0), as after a
+ * reconnection. Otherwise a missed notification is only counted (see "gaps"
+ * in {@link #getStatistics()}) and no resynchronization happens.
+ * <p>
+ * If the heartbeat is enabled (see {@link #setHeartbeat(boolean, long, long)}),
+ * a socket that does not receive anything for a while is closed (see
+ * {@link HeartbeatMonitor}).
+ * <p>
+ * If compression is enabled (see {@link #setCompression(boolean)}), the
+ * permessage-deflate extension is offered each time the socket is opened.
+ * <p>
+ * If binary notifications are enabled (see {@link #setBinaryNotifications(boolean)}),
+ * the subscribe requests ask the broker to send the notifications in CBOR:
+ * the notifications are received as they were in JSON.
+ * <p>
+ * A "wss" URI opens a TLS socket with the shared {@link TLSContext} (see
+ * {@link #setTLSContext(TLSContext)}): the TLS session is resumed by the
+ * following sockets (e.g., on reconnection) and by the HTTPS requests to the
+ * same server. The certificate must match the host of the URI (it is verified
+ * right after the TLS handshake, before the WebSocket handshake). The
+ * authorization of a secure subscription is asked again to its
+ * {@link IAuthorizationProvider} each time the subscription is made again.
+ * <p>
+ * The connection is reference counted (see
+ * {@link #acquire(URI, String, ISubscriptionHandler)} and
+ * {@link #release(ISubscriptionHandler)}): the socket is closed when the last
+ * client releases it.
+ */
+public class SEPAWebsocketManager implements ISubscriptionHandler {
+    private static final Logger logger = LogManager.getLogger("SEPAWebsocketManager");
+
+    private static final long CONNECT_TIMEOUT = 5000;
+
+    // The connections of the process
+    private static final HashMap<String, SEPAWebsocketManager> connections = new HashMap<String, SEPAWebsocketManager>();
+
+    // Schedules the reconnections of all the connections
+    private static ScheduledThreadPoolExecutor scheduler = null;
+
+    private final String key;
+    private final URI wsURI;
+    private final String unixSocket;
+
+    private SEPAWebsocketClient client = null;
+    private volatile boolean connected = false;
+    private boolean connecting = false;
+
+    // Number of clients using the connection
+    private int references = 0;
+
+    // The clients to be notified of pings, errors and broken socket
+    private final CopyOnWriteArraySet<ISubscriptionHandler> clients = new CopyOnWriteArraySet<ISubscriptionHandler>();
+
+    // SPUID known by the client ==> subscription
+    private final ConcurrentHashMap<String, WebsocketSubscription> subscriptions = new ConcurrentHashMap<String, WebsocketSubscription>();
+
+    // SPUID of the broker ==> subscription
+    private final ConcurrentHashMap<String, WebsocketSubscription> routes = new ConcurrentHashMap<String, WebsocketSubscription>();
+
+    // Reconnection
+    private volatile boolean reconnect = false;
+    private volatile long reconnectBackoff = 1000;
+    private volatile long maxReconnectBackoff = 60000;
+    private volatile int maxReconnectAttempts = 0;
+    private volatile boolean reconnecting = false;
+    private final Random jitter = new Random();
+
+    // Statistics
+    private final AtomicLong reconnections = new AtomicLong(0);
+    private final AtomicLong resubscriptions = new AtomicLong(0);
+    private final AtomicLong gaps = new AtomicLong(0);
+
+    // The copies used by the sockets share the counters of the prototype
+    private final PerMessageDeflateExtension deflate = new PerMessageDeflateExtension();
+    private volatile boolean compression = false;
+
+    private volatile HeartbeatMonitor heartbeat = null;
+
+    private volatile boolean binaryNotifications = false;
+
+    // The TLS context of the "wss" scheme (null to use the default one)
+    private volatile TLSContext tls = null;
+
+    private SEPAWebsocketManager(String key, URI wsURI, String unixSocket) {
+        this.key = key;
+        this.wsURI = wsURI;
+        this.unixSocket = unixSocket;
+    }
+
+    /**
+     * Gets the connection to a broker (a new one if no client of the process is
+     * using it). The socket is opened by the first request.
+     *
+     * @param wsURI      the URI of the subscribe endpoint
+     * @param unixSocket the path of the Unix domain socket (null to use TCP)
+     * @param handler    the handler of pings, errors and broken socket
+     * @return the connection
+     */
+    public static SEPAWebsocketManager acquire(URI wsURI, String unixSocket, ISubscriptionHandler handler) {
+        String key = wsURI.getScheme() + "://" + wsURI.getHost() + ":" + wsURI.getPort() + wsURI.getPath() + (unixSocket != null ? "@" + unixSocket : "");
+
+        synchronized (connections) {
+            SEPAWebsocketManager connection = connections.get(key);
+            if (connection == null) {
+                connection = new SEPAWebsocketManager(key, wsURI, unixSocket);
+                connections.put(key, connection);
+            }
+            connection.references++;
+            connection.clients.add(handler);
+            return connection;
+        }
+    }
+
+    /**
+     * Releases the connection. The socket is closed if no other client is
+     * using it, otherwise the subscriptions of the client are unsubscribed.
+     *
+     * @param handler the handler passed to {@link #acquire(URI, String, ISubscriptionHandler)}
+     */
+    public void release(ISubscriptionHandler handler) {
+        clients.remove(handler);
+
+        ArrayList<String> released = new ArrayList<String>();
+        for (WebsocketSubscription subscription : subscriptions.values())
+            if (subscription.handler == handler) released.add(subscription.id);
+
+        SEPAWebsocketClient close = null;
+        synchronized (connections) {
+            if (--references == 0) {
+                connections.remove(key);
+                synchronized (this) {
+                    close = client;
+                    client = null;
+                    connected = false;
+                }
+                if (close != null && close.getHeartbeat() != null) close.getHeartbeat().detach();
+            }
+        }
+
+        if (close == null) {
+            // The broker would keep notifying the subscriptions on the shared socket
+            for (String id : released) unsubscribe(id, null);
+        } else {
+            logger.debug("Closing " + key);
+            subscriptions.clear();
+            routes.clear();
+            close.close();
+        }
+    }
+
+    private boolean isReleased() {
+        synchronized (connections) {
+            return references == 0;
+        }
+    }
+
+    /**
+     * Gets the connections of the process.
+     *
+     * @return the number of connections
+     */
+    public static int getConnections() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Sets how the socket is opened again when it is closed. The setting is
+     * shared by all the clients of the connection (the last one wins).
+     *
+     * @param enabled     true to open the socket again and make the active subscriptions again
+     * @param backoff     the delay before the first attempt (ms): it doubles at each attempt
+     * @param maxBackoff  the maximum delay between two attempts (ms)
+     * @param maxAttempts the maximum number of attempts (0 means no limit)
+     */
+    public void setReconnect(boolean enabled, long backoff, long maxBackoff, int maxAttempts) {
+        if (backoff <= 0 || maxBackoff < backoff) throw new IllegalArgumentException("Invalid backoff");
+
+        reconnect = enabled;
+        reconnectBackoff = backoff;
+        maxReconnectBackoff = maxBackoff;
+        maxReconnectAttempts = Math.max(maxAttempts, 0);
+    }
+
+    /**
+     * Sets the heartbeat of the socket. The setting is used when the socket is
+     * opened (i.e., an open socket is not affected).
+     *
+     * @param enabled  true to send pings and close the socket if nothing is received
+     * @param interval the interval between two pings (ms)
+     * @param timeout  the time without any message after that the socket is closed (ms)
+     */
+    public synchronized void setHeartbeat(boolean enabled, long interval, long timeout) {
+        // The statistics are kept if the setting does not change
+        HeartbeatMonitor current = heartbeat;
+        if (enabled && current != null && current.interval == interval && current.timeout == timeout) return;
+
+        heartbeat = (enabled ? new HeartbeatMonitor(interval, timeout) : null);
+    }
+
+    /**
+     * Offers the permessage-deflate extension to the broker. The setting is
+     * used when the socket is opened (i.e., an open socket is not affected).
+     *
+     * @param enabled true to accept compressed notifications
+     */
+    public void setCompression(boolean enabled) {
+        compression = enabled;
+    }
+
+    /**
+     * Asks the broker to send the notifications in CBOR (a smaller frame, parsed
+     * without copying the text). The setting is used by the subscribe requests
+     * sent from now on (including those made again on reconnection).
+     *
+     * @param enabled true to request CBOR, false to request JSON
+     */
+    public void setBinaryNotifications(boolean enabled) {
+        binaryNotifications = enabled;
+        SEPAWebsocketClient client;
+        synchronized (this) {
+            client = this.client;
+        }
+        if (client != null) client.setBinaryNotifications(enabled);
+    }
+
+    /**
+     * Sets the TLS context of a "wss" connection. The setting is used when
+     * the socket is opened (i.e., an open socket is not affected).
+     *
+     * @param tls the context (null to use {@link TLSContext#getDefault()})
+     */
+    public void setTLSContext(TLSContext tls) {
+        this.tls = tls;
+    }
+
+    private boolean isSecure() {
+        return "wss".equalsIgnoreCase(wsURI.getScheme());
+    }
+
+    private TLSContext getTLSContext() {
+        TLSContext tls = this.tls;
+        return (tls != null ? tls : TLSContext.getDefault());
+    }
+
+    /**
+     * Checks if the open socket has negotiated the permessage-deflate extension.
+     *
+     * @return true if the notifications are compressed
+     */
+    public boolean isCompressed() {
+        SEPAWebsocketClient client;
+        synchronized (this) {
+            client = this.client;
+        }
+        if (client == null || !connected) return false;
+        Draft draft = client.getConnection().getDraft();
+        return draft instanceof Draft_6455 && ((Draft_6455) draft).getExtension() instanceof PerMessageDeflateExtension;
+    }
+
+    /**
+     * Sends a subscribe request. The notifications of the subscription are
+     * routed to the handler.
+     *
+     * @param sparql          the SPARQL query
+     * @param alias           the alias (may be null)
+     * @param handler         the handler of the notifications
+     * @param responseHandler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribe(String sparql, String alias, ISubscriptionHandler handler,
+                                      IResponseHandler responseHandler) {
+        return subscribe(sparql, alias, (IAuthorizationProvider) null, handler, responseHandler);
+    }
+
+    /**
+     * Sends a secure subscribe request. The notifications of the subscription
+     * are routed to the handler.
+     *
+     * @param sparql          the SPARQL query
+     * @param alias           the alias (may be null)
+     * @param authorization   the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @param handler         the handler of the notifications
+     * @param responseHandler the handler of the response (may be null)
+     * @return the future response
+     * @see #subscribe(String, String, IAuthorizationProvider, ISubscriptionHandler, IResponseHandler)
+     */
+    public Future<Response> subscribe(String sparql, String alias, String authorization,
+                                      ISubscriptionHandler handler, IResponseHandler responseHandler) {
+        return subscribe(sparql, alias, constant(authorization), handler, responseHandler);
+    }
+
+    /**
+     * Sends a secure subscribe request. The notifications of the subscription
+     * are routed to the handler.
+     * <p>
+     * The authorization is asked to the provider each time the subscription is
+     * made (e.g., again after a reconnection), so that an expired token is not
+     * sent again.
+     *
+     * @param sparql          the SPARQL query
+     * @param alias           the alias (may be null)
+     * @param authorization   the provider of the authorization (null if not secure)
+     * @param handler         the handler of the notifications
+     * @param responseHandler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribe(final String sparql, final String alias, final IAuthorizationProvider authorization,
+                                      final ISubscriptionHandler handler, final IResponseHandler responseHandler) {
+        String current;
+        try {
+            current = authorize(authorization);
+        } catch (SEPASecurityException e) {
+            return completed(new ErrorResponse(500, e.getMessage()), responseHandler);
+        }
+
+        SEPAWebsocketClient client = connect();
+        if (client == null) return completed(new ErrorResponse(408, "Not connected"), responseHandler);
+
+        // The route is added by the thread reading the socket, before the following notifications
+        return client.subscribe(sparql, alias, current, new IResponseHandler() {
+            @Override
+            public void onResponse(Response response) {
+                if (response.isSubscribeResponse()) {
+                    SubscribeResponse subscribed = (SubscribeResponse) response;
+                    WebsocketSubscription subscription = new WebsocketSubscription(subscribed.getSpuid(), sparql, alias,
+                            authorization, handler);
+                    if (reconnect && subscribed.getAsJsonObject().get("firstResults") != null)
+                        subscription.setResults(subscribed.getBindingsResults());
+                    subscriptions.put(subscription.id, subscription);
+                    routes.put(subscription.id, subscription);
+                }
+                if (responseHandler != null) responseHandler.onResponse(response);
+            }
+        });
+    }
+
+    static IAuthorizationProvider constant(final String authorization) {
+        if (authorization == null) return null;
+        return new IAuthorizationProvider() {
+            @Override
+            public String getAuthorization() {
+                return authorization;
+            }
+        };
+    }
+
+    private static String authorize(IAuthorizationProvider authorization) throws SEPASecurityException {
+        return (authorization == null ? null : authorization.getAuthorization());
+    }
+
+    /**
+     * Sends an unsubscribe request. The notifications of the subscription are
+     * routed until the response is received.
+     * <p>
+     * If the subscription has been lost (e.g., the socket is being opened
+     * again) it is not made again and the response is returned immediately.
+     *
+     * @param spuid           the subscription identifier (as returned by the subscribe response)
+     * @param responseHandler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> unsubscribe(String spuid, IResponseHandler responseHandler) {
+        return unsubscribe(spuid, null, responseHandler);
+    }
+
+    /**
+     * Sends a secure unsubscribe request (see {@link #unsubscribe(String, IResponseHandler)}).
+     *
+     * @param spuid           the subscription identifier (as returned by the subscribe response)
+     * @param authorization   the authorization (null to use the one of the subscribe request)
+     * @param responseHandler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> unsubscribe(final String spuid, String authorization, final IResponseHandler responseHandler) {
+        final WebsocketSubscription subscription = subscriptions.get(spuid);
+        if (authorization == null && subscription != null) {
+            try {
+                authorization = authorize(subscription.authorization);
+            } catch (SEPASecurityException e) {
+                return completed(new ErrorResponse(500, e.getMessage()), responseHandler);
+            }
+        }
+
+        String current = spuid;
+        if (subscription != null) {
+            current = subscription.getSpuid();
+            if (current == null) {
+                // Being made again: the new subscription will be unsubscribed when the response is received
+                subscription.cancel();
+                subscriptions.remove(spuid);
+                return completed(new UnsubscribeResponse(spuid), responseHandler);
+            }
+        }
+
+        SEPAWebsocketClient client;
+        synchronized (this) {
+            client = (connected ? this.client : null);
+        }
+        if (client == null) {
+            logger.error("Not connected");
+            return completed(new ErrorResponse(408, "Not connected"), responseHandler);
+        }
+
+        // The response of a subscription made again refers to the SPUID known by the client
+        final String route = current;
+        final ResponseFuture remapped = (route.equals(spuid) ? null : new ResponseFuture(responseHandler));
+
+        Future<Response> response = client.unsubscribe(route, authorization, new IResponseHandler() {
+            @Override
+            public void onResponse(Response response) {
+                if (response.isUnsubscribeResponse()) {
+                    routes.remove(route);
+                    subscriptions.remove(spuid);
+                    if (subscription != null) subscription.cancel();
+                }
+                if (remapped != null) remapped.complete(response.isUnsubscribeResponse() ? new UnsubscribeResponse(spuid) : response);
+                else if (responseHandler != null) responseHandler.onResponse(response);
+            }
+        });
+
+        return (remapped != null ? remapped : response);
+    }
+
+    /**
+     * Opens the socket (if not connected yet). Concurrent callers share the
+     * same socket: they wait for the first one to open it.
+     * <p>
+     * The TCP connection and the TLS handshake are made without holding the
+     * lock of the connection (e.g., notifications of the previous socket are
+     * not blocked meanwhile).
+     *
+     * @return the client or <i>null</i> if the socket cannot be opened
+     */
+    private SEPAWebsocketClient connect() {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        synchronized (this) {
+            try {
+                while (connecting && System.currentTimeMillis() < deadline) wait(Math.max(deadline - System.currentTimeMillis(), 1));
+            } catch (InterruptedException e) {
+                return null;
+            }
+            if (connected) return client;
+            if (connecting) return null;
+
+            connecting = true;
+        }
+
+        SEPAWebsocketClient created;
+        try {
+            if (compression) created = new SEPAWebsocketClient(wsURI, this, new Draft_6455(deflate.copyInstance()));
+            else created = new SEPAWebsocketClient(wsURI, this);
+            created.setBinaryNotifications(binaryNotifications);
+            if (unixSocket != null) created.setSocket(new UnixSocket(unixSocket));
+            // Otherwise the library would use a new TLS context (without the sessions) for each socket
+            else if (isSecure()) created.setSocket(openSecureSocket(deadline));
+
+            // The pings of the library are replaced by the heartbeat
+            HeartbeatMonitor heartbeat = this.heartbeat;
+            if (heartbeat != null) {
+                created.setConnectionLostTimeout(0);
+                created.setHeartbeat(heartbeat);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Cannot create the socket: " + e.getMessage());
+            created = null;
+        }
+
+        synchronized (this) {
+            client = created;
+            try {
+                if (client != null) {
+                    // Woken up when the socket is opened or closed
+                    client.connect();
+                    while (!client.getConnection().isOpen() && !client.isClosed()
+                            && System.currentTimeMillis() < deadline)
+                        wait(Math.max(deadline - System.currentTimeMillis(), 1));
+                }
+            } catch (InterruptedException e) {
+            } finally {
+                connecting = false;
+                notifyAll();
+            }
+
+            if (client == null || !client.getConnection().isOpen() || client.isClosed()) {
+                logger.error("Not connected");
+                return null;
+            }
+
+            connected = true;
+            if (client.getHeartbeat() != null) client.getHeartbeat().attach(client, getScheduler());
+            return client;
+        }
+    }
+
+    /**
+     * Opens the TLS socket and checks that the certificate belongs to the host
+     * right after the TLS handshake, i.e. before anything is sent on it (the
+     * WebSocket handshake and then the requests with the authorization).
+     *
+     * @param deadline the time (ms) by which the socket must be open
+     * @return the connected socket
+     * @throws IOException if the socket cannot be opened or the certificate does not match the host
+     */
+    private SSLSocket openSecureSocket(long deadline) throws IOException {
+        SSLSocket socket = getTLSContext().createSocket();
+        try {
+            socket.connect(new InetSocketAddress(wsURI.getHost(), wsURI.getPort() == -1 ? 443 : wsURI.getPort()),
+                    (int) Math.max(deadline - System.currentTimeMillis(), 1));
+            // The time left after the TCP connection
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) throw new SocketTimeoutException("Connect timeout");
+            socket.setSoTimeout((int) left);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+            getTLSContext().verify(wsURI.getHost(), socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e1) {
+            }
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Schedules an attempt to open the socket again.
+     *
+     * @param attempt the attempt (starting from 1)
+     */
+    private void scheduleReconnect(final int attempt) {
+        long backoff = Math.min(reconnectBackoff << Math.min(attempt - 1, 20), maxReconnectBackoff);
+        backoff = backoff / 2 + (long) (jitter.nextDouble() * backoff / 2);
+
+        logger.warn("Reconnect to " + wsURI + " in " + backoff + " ms (attempt " + attempt + ")");
+
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isReleased()) return;
+
+                SEPAWebsocketClient client;
+                try {
+                    client = connect();
+                } catch (RuntimeException e) {
+                    logger.error("Reconnect failed: " + e);
+                    client = null;
+                }
+                if (client == null) {
+                    if (maxReconnectAttempts > 0 && attempt >= maxReconnectAttempts) giveUp();
+                    else scheduleReconnect(attempt + 1);
+                    return;
+                }
+
+                reconnecting = false;
+                reconnections.incrementAndGet();
+                logger.info("Reconnected to " + wsURI + ". Subscriptions: " + subscriptions.size());
+
+                for (WebsocketSubscription subscription : subscriptions.values()) resubscribe(client, subscription);
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SEPAWebsocketManager-reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * The socket cannot be opened again: the subscriptions are lost.
+     */
+    private void giveUp() {
+        logger.error("Cannot reconnect to " + wsURI);
+        reconnecting = false;
+        subscriptions.clear();
+        for (ISubscriptionHandler handler : clients) handler.onBrokenSocket();
+    }
+
+    /**
+     * Makes a lost subscription again. The difference between the new first
+     * results and the results known by the client is notified.
+     */
+    private void resubscribe(final SEPAWebsocketClient client, final WebsocketSubscription subscription) {
+        if (!subscription.startResubscribe()) return;
+
+        final String current;
+        try {
+            current = authorize(subscription.authorization);
+        } catch (SEPASecurityException e) {
+            subscription.resubscribeFailed();
+            logger.error("Subscription " + subscription.id + " cannot be made again: " + e.getMessage());
+            subscriptions.remove(subscription.id);
+            subscription.handler.onError(new ErrorResponse(500, e.getMessage()));
+            return;
+        }
+
+        resubscriptions.incrementAndGet();
+        client.subscribe(subscription.sparql, subscription.alias, current, new IResponseHandler() {
+            @Override
+            public void onResponse(Response response) {
+                if (!response.isSubscribeResponse()) {
+                    subscription.resubscribeFailed();
+                    // The socket has been closed: a new socket will make it again
+                    if (!connected || !client.getConnection().isOpen()) return;
+                    logger.error("Subscription " + subscription.id + " cannot be made again: " + response);
+                    subscriptions.remove(subscription.id);
+                    subscription.handler.onError((ErrorResponse) response);
+                    return;
+                }
+
+                SubscribeResponse subscribed = (SubscribeResponse) response;
+                Notification difference = subscription.resubscribed(subscribed.getSpuid(),
+                        subscribed.getAsJsonObject().get("firstResults") != null ? subscribed.getBindingsResults() : null);
+
+                if (subscription.isCancelled()) {
+                    // Unsubscribed by the client in the meanwhile
+                    unsubscribe(subscribed.getSpuid(), current, null);
+                    return;
+                }
+
+                routes.put(subscribed.getSpuid(), subscription);
+                if (difference != null) subscription.handler.onSemanticEvent(difference);
+            }
+        });
+    }
+
+    static Future<Response> completed(Response response, IResponseHandler handler) {
+        ResponseFuture ret = new ResponseFuture(handler);
+        ret.complete(response);
+        return ret;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void onSemanticEvent(Notification notify) {
+        WebsocketSubscription subscription = routes.get(notify.getSpuid());
+        if (subscription == null) {
+            logger.warn("Notification of unknown subscription: " + notify.getSpuid());
+            return;
+        }
+
+        Notification forward = subscription.update(notify, gaps);
+        if (forward != null) {
+            subscription.handler.onSemanticEvent(forward);
+            return;
+        }
+
+        // A notification has been missed: the subscription is made again (the old one is unsubscribed)
+        logger.warn("Notification missed by " + subscription.id + " (expected " + (subscription.getSequence() + 1)
+                + ", received " + notify.getSequence() + "): resynchronizing");
+
+        String lost = subscription.lose();
+        if (lost == null) return;
+        routes.remove(lost);
+
+        SEPAWebsocketClient client;
+        synchronized (this) {
+            client = (connected ? this.client : null);
+        }
+        if (client == null) return;
+        try {
+            client.unsubscribe(lost, authorize(subscription.authorization), null);
+        } catch (SEPASecurityException e) {
+            // The subscription cannot be made again either (see resubscribe)
+            logger.error("Subscription " + lost + " cannot be unsubscribed: " + e.getMessage());
+        }
+        resubscribe(client, subscription);
+    }
+
+    @Override
+    public void onPing() {
+        for (ISubscriptionHandler handler : clients) handler.onPing();
+    }
+
+    @Override
+    public void onBrokenSocket() {
+        synchronized (this) {
+            notifyAll();
+            if (!connected) return;
+            connected = false;
+            if (client != null && client.getHeartbeat() != null) client.getHeartbeat().detach();
+        }
+
+        // Subscriptions do not survive the socket
+        routes.clear();
+
+        if (reconnect && !subscriptions.isEmpty() && !isReleased()) {
+            for (WebsocketSubscription subscription : subscriptions.values()) subscription.lose();
+            reconnecting = true;
+            scheduleReconnect(1);
+            return;
+        }
+
+        subscriptions.clear();
+        for (ISubscriptionHandler handler : clients) handler.onBrokenSocket();
+    }
+
+    @Override
+    public void onError(ErrorResponse errorResponse) {
+        // Failed attempts to reconnect
+        if (reconnecting) {
+            logger.debug("@onError while reconnecting: " + errorResponse);
+            return;
+        }
+        for (ISubscriptionHandler handler : clients) handler.onError(errorResponse);
+    }
+
+    /**
+     * Gets the connection statistics.
+     * <p>
+     * {"url":"ws://localhost:9000/subscribe","connected":true,"clients":50,"subscriptions":50,"pendingRequests":0,
+     * "reconnections":1,"resubscriptions":50,"gaps":0,
+     * "heartbeat":{...},"compression":{"negotiated":true,"compressedMessages":120,"compressedBytes":48211,"uncompressedBytes":503377},
+     * "binaryNotifications":true}
+     *
+     * @return the statistics
+     */
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("url", new JsonPrimitive(wsURI.toString()));
+        if (unixSocket != null) stats.add("unixSocket", new JsonPrimitive(unixSocket));
+        stats.add("connected", new JsonPrimitive(connected));
+        synchronized (connections) {
+            stats.add("clients", new JsonPrimitive(references));
+        }
+        stats.add("subscriptions", new JsonPrimitive(subscriptions.size()));
+        SEPAWebsocketClient client;
+        synchronized (this) {
+            client = this.client;
+        }
+        stats.add("pendingRequests", new JsonPrimitive(client != null ? client.getPendingRequests() : 0));
+        stats.add("reconnections", new JsonPrimitive(reconnections.get()));
+        stats.add("resubscriptions", new JsonPrimitive(resubscriptions.get()));
+        stats.add("gaps", new JsonPrimitive(gaps.get()));
+        HeartbeatMonitor heartbeat = this.heartbeat;
+        if (heartbeat != null) stats.add("heartbeat", heartbeat.getStatistics());
+        if (compression || deflate.getCompressedMessages() > 0) {
+            JsonObject deflated = deflate.getStatistics();
+            deflated.add("negotiated", new JsonPrimitive(isCompressed()));
+            stats.add("compression", deflated);
+        }
+        if (binaryNotifications) stats.add("binaryNotifications", new JsonPrimitive(true));
+        if (isSecure() && unixSocket == null) stats.add("tls", getTLSContext().getStatistics());
+        return stats;
+    }
+
+    /**
+     * Gets the statistics of all the connections of the process.
+     *
+     * @return the statistics of each connection
+     */
+    public static JsonArray getAllStatistics() {
+        JsonArray ret = new JsonArray();
+        Map<String, SEPAWebsocketManager> copy;
+        synchronized (connections) {
+            copy = new HashMap<String, SEPAWebsocketManager>(connections);
+        }
+        for (SEPAWebsocketManager connection : copy.values()) ret.add(connection.getStatistics());
+        return ret;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+}
@@ -40,13 +40,22 @@ import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
  * The Class SPARQL11Properties includes all the properties needed to connect to
  * a SPARQL 1.1 Protocol Service: the URLs used by queries and updates (scheme,
  * host, port and path), the HTTP method used by the primitives (GET, POST or
- * URL_ENCODED_POST) and the format of the results (JSON, XML, HTML, CSV)
+ * URL_ENCODED_POST) and the format of the results (JSON, XML, HTML, CSV, TSV)
  * <p>
  * <p>
  * <pre>
  * { parameters":
  * { "host": "localhost",
  * "concurrentRequests" : 10,
+ * "transport" : "NIO",
+ * "unixSockets" : { "http" : "/var/run/sepa/http.sock" },
+ * "connectionPool" : { "idleTimeout" : 15000 },
+ * "updateCoalescing" : { "maxUpdates" : 100, "maxBytes" : 65536, "linger" : 20 },
+ * "compression" : { "responses" : true, "requests" : false, "minRequestSize" : 1024 },
+ * "queryCache" : { "maxEntries" : 100, "maxBytes" : 1048576, "ttl" : 5000 },
+ * "deadlines" : { "query" : 5000, "update" : 10000 },
+ * "retries" : { "max" : 2, "backoff" : 100, "maxBackoff" : 2000 },
+ * "hedging" : { "percentile" : 95, "minDelay" : 10 },
  * "ports":{ "http" : 9999 },
  * "paths": {
  * "update" : "/blazegraph/namespace/kb/sparql",
@@ -100,7 +109,25 @@ public class SPARQL11Properties {
     }
 
     /**
-     * The Enum QueryResultsFormat (JSON,XML,CSV).
+     * The Enum HTTPTransportType (BLOCKING,NIO,HTTP2).
+     */
+    public enum HTTPTransportType {
+        /**
+         * Blocking I/O (a pool of persistent connections).
+         */
+        BLOCKING,
+        /**
+         * Non-blocking I/O (a single selector thread).
+         */
+        NIO,
+        /**
+         * HTTP/2: cleartext with prior knowledge (h2c) for queries and updates, h2 over TLS for the secure primitives.
+         */
+        HTTP2
+    }
+
+    /**
+     * The Enum QueryResultsFormat (JSON,XML,CSV,TSV).
      */
     public enum QueryResultsFormat {
         /**
@@ -114,7 +141,11 @@ public class SPARQL11Properties {
         /**
          * The csv.
          */
-        CSV
+        CSV,
+        /**
+         * The tsv.
+         */
+        TSV
     }
 
     /**
@@ -151,6 +182,11 @@ public class SPARQL11Properties {
      */
     protected JsonObject doc = new JsonObject();
 
+    /**
+     * Incremented each time the properties are changed.
+     */
+    private volatile int version = 0;
+
     public SPARQL11Properties(InputStream stream) throws SEPAPropertiesException {
         this.propertiesFile = propertiesFile;
 
@@ -193,6 +229,8 @@ public class SPARQL11Properties {
      * { parameters":
      * { "host": "localhost",
      * "concurrentRequests" : 10,
+     * "connectionPool" : { "idleTimeout" : 15000 },
+     * "compression" : { "responses" : true, "requests" : false, "minRequestSize" : 1024 },
      * "ports":{ "http" : 9999 },
      * "paths": {
      * "update" : "/blazegraph/namespace/kb/sparql",
@@ -208,6 +246,16 @@ public class SPARQL11Properties {
         parameters.add("host", new JsonPrimitive("localhost"));
         parameters.add("concurrentRequests", new JsonPrimitive(5));
 
+        JsonObject connectionPool = new JsonObject();
+        connectionPool.add("idleTimeout", new JsonPrimitive(15000));
+        parameters.add("connectionPool", connectionPool);
+
+        JsonObject compression = new JsonObject();
+        compression.add("responses", new JsonPrimitive(true));
+        compression.add("requests", new JsonPrimitive(false));
+        compression.add("minRequestSize", new JsonPrimitive(1024));
+        parameters.add("compression", compression);
+
         JsonObject ports = new JsonObject();
         ports.add("http", new JsonPrimitive(9999));
         parameters.add("ports", ports);
@@ -363,13 +411,30 @@ public class SPARQL11Properties {
      * @return the query HTTP Accept header string
      */
     public String getQueryAcceptHeader() {
-        switch (parameters.get("formats").getAsJsonObject().get("query").getAsString()) {
-            case "JSON":
-                return "application/sparql-results+json";
-            case "XML":
+        QueryResultsFormat format;
+        try {
+            format = QueryResultsFormat.valueOf(parameters.get("formats").getAsJsonObject().get("query").getAsString());
+        } catch (IllegalArgumentException e) {
+            format = null;
+        }
+        return getAcceptHeader(format);
+    }
+
+    /**
+     * Gets the Accept header of a query results format.
+     *
+     * @param format the format
+     * @return the media type
+     */
+    public static String getAcceptHeader(QueryResultsFormat format) {
+        if (format == null) return "application/sparql-results+json";
+        switch (format) {
+            case XML:
                 return "application/sparql-results+xml";
-            case "CSV":
+            case CSV:
                 return "text/csv";
+            case TSV:
+                return "text/tab-separated-values";
             default:
                 return "application/sparql-results+json";
         }
@@ -397,8 +462,311 @@ public class SPARQL11Properties {
         }
     }
 
+    /**
+     * Gets the maximum number of concurrent requests (i.e., the size of the HTTP connection pool).
+     *
+     * @return the maximum number of concurrent requests (default is 5)
+     */
     public int getMaxConcurrentRequests() {
+        if (parameters.get("concurrentRequests") == null) return 5;
         return parameters.get("concurrentRequests").getAsInt();
     }
 
+    /**
+     * Gets the maximum number of asynchronous requests that can be in flight
+     * (i.e., executing or waiting to be executed) at the same time. Further
+     * requests are rejected (429) without blocking the caller.
+     * <p>
+     * "maxInFlightRequests" : 50
+     *
+     * @return the maximum number of in flight requests (default is 10 times the concurrent requests)
+     */
+    public int getMaxInFlightRequests() {
+        if (parameters.get("maxInFlightRequests") == null) return 10 * getMaxConcurrentRequests();
+        return parameters.get("maxInFlightRequests").getAsInt();
+    }
+
+    /**
+     * Gets the transport used by queries and updates.
+     * <p>
+     * "transport" : "NIO" (BLOCKING, NIO or HTTP2)
+     * <p>
+     * BLOCKING and NIO send HTTP/1.1 requests. HTTP2 multiplexes the requests
+     * over a single connection: the server must support cleartext HTTP/2 with
+     * prior knowledge (h2c) on the HTTP port.
+     *
+     * @return the transport type (default is BLOCKING)
+     * @see it.unibo.arces.wot.sepa.api.http.HTTPTransport
+     */
+    public HTTPTransportType getHTTPTransport() {
+        if (parameters.get("transport") == null) return HTTPTransportType.BLOCKING;
+        try {
+            return HTTPTransportType.valueOf(parameters.get("transport").getAsString().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown transport: " + parameters.get("transport").getAsString() + " (using BLOCKING)");
+            return HTTPTransportType.BLOCKING;
+        }
+    }
+
+    /**
+     * Gets the path of the Unix domain socket of the HTTP endpoint (e.g., a
+     * broker running on the same host). Queries and updates are sent over
+     * the socket instead of TCP: host and port are used only to build the
+     * Host header.
+     * <p>
+     * "unixSockets" : { "http" : "/var/run/sepa/http.sock" }
+     *
+     * @return the path or <i>null</i> if TCP is used (default)
+     */
+    public String getHttpUnixSocket() {
+        if (parameters.get("unixSockets") == null) return null;
+        JsonObject sockets = parameters.get("unixSockets").getAsJsonObject();
+        if (sockets.get("http") == null) return null;
+        return sockets.get("http").getAsString();
+    }
+
+    /**
+     * Gets the time after that an idle pooled connection is closed.
+     * <p>
+     * "connectionPool" : {"idleTimeout" : 15000}
+     *
+     * @return the idle timeout in ms (default is 15000)
+     */
+    public long getConnectionIdleTimeout() {
+        return getLong("connectionPool", "idleTimeout", 15000);
+    }
+
+    /**
+     * Checks if update coalescing is enabled (i.e., the "updateCoalescing" member is present).
+     * <p>
+     * "updateCoalescing" : { "maxUpdates" : 100, "maxBytes" : 65536, "linger" : 20 }
+     *
+     * @return true, if updates should be merged into a single request
+     * @see it.unibo.arces.wot.sepa.api.UpdateCoalescer
+     */
+    public boolean isUpdateCoalescingEnabled() {
+        return parameters.get("updateCoalescing") != null;
+    }
+
+    /**
+     * Gets the maximum number of updates merged into a single request.
+     *
+     * @return the maximum number of updates (default is 100)
+     */
+    public int getUpdateCoalescingMaxUpdates() {
+        return (int) getLong("updateCoalescing", "maxUpdates", 100);
+    }
+
+    /**
+     * Gets the maximum length of a request of merged updates (encoded in UTF-8).
+     *
+     * @return the maximum length in bytes (default is 65536)
+     */
+    public int getUpdateCoalescingMaxBytes() {
+        return (int) getLong("updateCoalescing", "maxBytes", 65536);
+    }
+
+    /**
+     * Gets the maximum time an update waits to be merged with other updates.
+     *
+     * @return the linger time in ms (default is 20)
+     */
+    public long getUpdateCoalescingLinger() {
+        return getLong("updateCoalescing", "linger", 20);
+    }
+
+    /**
+     * Checks if compressed responses are accepted (Accept-Encoding: gzip, deflate).
+     * <p>
+     * "compression" : { "responses" : true, "requests" : false, "minRequestSize" : 1024 }
+     *
+     * @return true, if compressed responses are accepted (default is true)
+     */
+    public boolean isResponseCompressionEnabled() {
+        return getBoolean("compression", "responses", true);
+    }
+
+    /**
+     * Checks if the body of updates is compressed (Content-Encoding: gzip).
+     * The SPARQL endpoint must support compressed requests.
+     *
+     * @return true, if update requests are compressed (default is false)
+     */
+    public boolean isRequestCompressionEnabled() {
+        return getBoolean("compression", "requests", false);
+    }
+
+    /**
+     * Gets the minimum size of a request body to be compressed.
+     *
+     * @return the minimum size in bytes (default is 1024)
+     */
+    public int getMinCompressedRequestSize() {
+        return (int) getLong("compression", "minRequestSize", 1024);
+    }
+
+    /**
+     * Gets the version of the properties: it changes each time the properties
+     * are modified (e.g., new credentials or a new token), so that values
+     * derived from them can be computed again.
+     *
+     * @return the version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * To be called each time the properties are modified.
+     */
+    protected void changed() {
+        version++;
+    }
+
+    /**
+     * Checks if the query results cache is enabled (i.e., the "queryCache" member is present).
+     * <p>
+     * "queryCache" : { "maxEntries" : 100, "maxBytes" : 1048576, "ttl" : 5000 }
+     *
+     * @return true, if query results should be cached
+     * @see it.unibo.arces.wot.sepa.api.QueryCache
+     */
+    public boolean isQueryCacheEnabled() {
+        return parameters.get("queryCache") != null;
+    }
+
+    /**
+     * Gets the maximum number of cached queries.
+     *
+     * @return the maximum number of entries (default is 100)
+     */
+    public int getQueryCacheMaxEntries() {
+        return (int) getLong("queryCache", "maxEntries", 100);
+    }
+
+    /**
+     * Gets the maximum size of the cached queries and results.
+     *
+     * @return the maximum size in characters (default is 1048576)
+     */
+    public long getQueryCacheMaxBytes() {
+        return getLong("queryCache", "maxBytes", 1048576);
+    }
+
+    /**
+     * Gets the time after that cached results expire.
+     *
+     * @return the time to live in ms (default is 5000)
+     */
+    public long getQueryCacheTTL() {
+        return getLong("queryCache", "ttl", 5000);
+    }
+
+    /**
+     * Gets the maximum time to wait for the response of a query (including retries).
+     * The deadline bounds the whole request, reading the results included. It
+     * applies also to secure queries and to queries streaming the results.
+     * <p>
+     * "deadlines" : { "query" : 5000, "update" : 10000 }
+     *
+     * @return the deadline in ms (default is 0, i.e., no deadline)
+     */
+    public long getQueryDeadline() {
+        return getLong("deadlines", "query", 0);
+    }
+
+    /**
+     * Gets the maximum time to wait for the response of an update (secure
+     * updates included).
+     *
+     * @return the deadline in ms (default is 0, i.e., no deadline)
+     */
+    public long getUpdateDeadline() {
+        return getLong("deadlines", "update", 0);
+    }
+
+    /**
+     * Gets the maximum number of times a failed query is sent again. Only
+     * queries are retried (updates are not idempotent).
+     * <p>
+     * "retries" : { "max" : 2, "backoff" : 100, "maxBackoff" : 2000 }
+     *
+     * @return the maximum number of retries (default is 0)
+     */
+    public int getMaxQueryRetries() {
+        return (int) getLong("retries", "max", 0);
+    }
+
+    /**
+     * Gets the delay before the first retry. The delay is doubled at each retry.
+     *
+     * @return the delay in ms (default is 100)
+     */
+    public long getRetryBackoff() {
+        return getLong("retries", "backoff", 100);
+    }
+
+    /**
+     * Gets the maximum delay between two retries.
+     *
+     * @return the delay in ms (default is 2000)
+     */
+    public long getMaxRetryBackoff() {
+        return getLong("retries", "maxBackoff", 2000);
+    }
+
+    /**
+     * Checks if queries are hedged (i.e., the "hedging" member is present): if
+     * the response is not received within the given percentile of the latency
+     * of the last queries, the query is sent again and the first response is
+     * taken.
+     * <p>
+     * "hedging" : { "percentile" : 95, "minDelay" : 10 }
+     *
+     * @return true, if queries are hedged
+     */
+    public boolean isHedgingEnabled() {
+        return parameters.get("hedging") != null;
+    }
+
+    /**
+     * Gets the latency percentile after that a query is hedged.
+     *
+     * @return the percentile (default is 95)
+     */
+    public double getHedgingPercentile() {
+        return getDouble("hedging", "percentile", 95);
+    }
+
+    /**
+     * Gets the minimum delay before a query is hedged.
+     *
+     * @return the delay in ms (default is 10)
+     */
+    public long getHedgingMinDelay() {
+        return getLong("hedging", "minDelay", 10);
+    }
+
+    protected JsonObject getMember(String member) {
+        if (parameters.get(member) == null) return null;
+        return parameters.get(member).getAsJsonObject();
+    }
+
+    protected long getLong(String member, String name, long defaultValue) {
+        JsonObject object = getMember(member);
+        if (object == null || object.get(name) == null) return defaultValue;
+        return object.get(name).getAsLong();
+    }
+
+    protected double getDouble(String member, String name, double defaultValue) {
+        JsonObject object = getMember(member);
+        if (object == null || object.get(name) == null) return defaultValue;
+        return object.get(name).getAsDouble();
+    }
+
+    protected boolean getBoolean(String member, String name, boolean defaultValue) {
+        JsonObject object = getMember(member);
+        if (object == null || object.get(name) == null) return defaultValue;
+        return object.get(name).getAsBoolean();
+    }
 }
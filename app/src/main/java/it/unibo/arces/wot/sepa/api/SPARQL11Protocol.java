@@ -18,32 +18,55 @@
 
 package it.unibo.arces.wot.sepa.api;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unibo.arces.wot.sepa.api.http.HTTP2Transport;
+import it.unibo.arces.wot.sepa.api.http.HTTPCallback;
+import it.unibo.arces.wot.sepa.api.http.HTTPConnectionPool;
+import it.unibo.arces.wot.sepa.api.http.HTTPRequest;
+import it.unibo.arces.wot.sepa.api.http.HTTPResponse;
+import it.unibo.arces.wot.sepa.api.http.HTTPTransport;
+import it.unibo.arces.wot.sepa.api.http.NIOHTTPTransport;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.api.SPARQL11Properties.HTTPMethod;
+import it.unibo.arces.wot.sepa.api.SPARQL11Properties.QueryResultsFormat;
 import it.unibo.arces.wot.sepa.commons.request.QueryRequest;
 import it.unibo.arces.wot.sepa.commons.request.Request;
 import it.unibo.arces.wot.sepa.commons.request.UpdateRequest;
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
 import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.BindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.BindingsResultsReader;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.BindingsResultsTextReader;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.IBindingsResultsReader;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.IBindingsHandler;
 
 import it.unibo.arces.wot.sepa.android.logging.LogManager;
 import it.unibo.arces.wot.sepa.android.logging.Logger;
 
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 /**
  * This class implements the SPARQL 1.1 Protocol
@@ -66,10 +89,14 @@ public class SPARQL11Protocol {
      */
     protected SPARQL11Properties properties;
 
-    // HTTP fields
-    final URL queryUrl;
-    final URL updateUrl;
+    // HTTP persistent connections (one per concurrent request)
+    protected final HTTPTransport transport;
+
+    // Query results cache (null if disabled)
+    private volatile QueryCache queryCache = null;
 
+    // Worker threads of the asynchronous requests (created on demand)
+    private ThreadPoolExecutor executor = null;
 
     public SPARQL11Protocol(SPARQL11Properties properties) throws SEPAProtocolException {
         if (properties == null) {
@@ -78,13 +105,121 @@ public class SPARQL11Protocol {
         }
         this.properties = properties;
 
-        // Create update POST request
         try {
-            updateUrl = new URL("http://" + properties.getHost() + ":" + properties.getHttpPort() + properties.getUpdatePath());
-            queryUrl = new URL("http://" + properties.getHost() + ":" + properties.getHttpPort() + properties.getQueryPath());
-        } catch (IOException e) {
+            transport = newTransport(properties);
+        } catch (IOException | RuntimeException e) {
             throw new SEPAProtocolException(e);
         }
+
+        if (properties.isQueryCacheEnabled())
+            queryCache = new QueryCache(properties.getQueryCacheMaxEntries(), properties.getQueryCacheMaxBytes(),
+                    properties.getQueryCacheTTL());
+    }
+
+    /**
+     * Gets the cache of the query results.
+     *
+     * @return the cache (see {@link QueryCache#getStatistics()}) or <i>null</i> if disabled
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Sets the cache of the query results. Any update sent by this client
+     * invalidates the cache; updates sent by other clients are visible once
+     * the cached results expire.
+     *
+     * @param queryCache the cache (null disables caching)
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * Invalidates the cached query results (if any).
+     */
+    protected void invalidateQueryCache() {
+        QueryCache cache = queryCache;
+        if (cache != null) cache.invalidate();
+    }
+
+    private static HTTPTransport newTransport(SPARQL11Properties properties) throws IOException {
+        String unixSocket = properties.getHttpUnixSocket();
+
+        switch (properties.getHTTPTransport()) {
+            case NIO:
+                if (unixSocket == null)
+                    return new NIOHTTPTransport(properties.getHost(), properties.getHttpPort(),
+                            properties.getMaxConcurrentRequests(), properties.getConnectionIdleTimeout());
+                logger.warn("NIO transport does not support Unix domain sockets (using BLOCKING)");
+                break;
+            case HTTP2:
+                return new HTTP2Transport("http", properties.getHost(), properties.getHttpPort(), unixSocket,
+                        properties.getMaxConcurrentRequests(), properties.getConnectionIdleTimeout());
+            default:
+                break;
+        }
+
+        return new HTTPConnectionPool(properties.getHost(), properties.getHttpPort(), unixSocket,
+                properties.getMaxConcurrentRequests(), properties.getConnectionIdleTimeout());
+    }
+
+    /**
+     * Gets the transport of the HTTP requests used by queries and updates.
+     *
+     * @return the transport (see {@link HTTPTransport#getStatistics()})
+     */
+    public HTTPTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Gets the connection pool of the HTTP requests.
+     *
+     * @return the pool or <i>null</i> if another transport is used
+     * @deprecated the transport is set by the properties (see {@link SPARQL11Properties#getHTTPTransport()}): use {@link #getTransport()}
+     */
+    @Deprecated
+    public HTTPConnectionPool getConnectionPool() {
+        return (transport instanceof HTTPConnectionPool ? (HTTPConnectionPool) transport : null);
+    }
+
+    /**
+     * Gets the worker threads of the asynchronous requests (at most one for
+     * each concurrent request). They run the response handlers and the
+     * primitives that cannot be sent without blocking.
+     *
+     * @return the executor
+     */
+    protected synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = properties.getMaxConcurrentRequests();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SPARQL11Protocol-async-" + n.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Closes the persistent HTTP connections.
+     */
+    public void close() {
+        transport.close();
+        synchronized (this) {
+            if (executor != null) executor.shutdown();
+            executor = null;
+        }
     }
 
     /**
@@ -109,89 +244,291 @@ public class SPARQL11Protocol {
      * success or failure of the request via HTTP response status code.
      */
     public Response update(UpdateRequest req, int timeout) {
-        return post(req, timeout, true);
+        HTTPRequest request;
+        try {
+            request = updateRequest(req);
+        } catch (IOException e) {
+            return new ErrorResponse(500, e.getMessage());
+        }
+
+        // Also after the update, for the queries sent while the update was in progress
+        invalidateQueryCache();
+        try {
+            return execute(req, request, timeout, false, null, -1);
+        } finally {
+            invalidateQueryCache();
+        }
     }
 
-    private Response post(Request req, int timeout, boolean update) {
-        int responseCode = 0;
-        String responseBody = null;
-        String requestBody = null;
-        HttpURLConnection request = null;
+    /**
+     * Implements a SPARQL 1.1 update operation without blocking the caller:
+     * no thread waits for the response (see
+     * {@link HTTPTransport#execute(HTTPRequest, int, HTTPCallback)}). The
+     * handler is called by a worker thread.
+     *
+     * @param req     the update request
+     * @param timeout the timeout in ms
+     * @param handler the handler of the response (may be null)
+     * @return the future response
+     * @see #update(UpdateRequest, int)
+     */
+    public Future<Response> updateAsync(UpdateRequest req, int timeout, IResponseHandler handler) {
+        ResponseFuture future = new ResponseFuture(handler);
 
+        HTTPRequest request;
         try {
-            if (update) {
-                request = (HttpURLConnection) updateUrl.openConnection();
-                request.setRequestProperty("Accept", properties.getUpdateAcceptHeader());
-                request.setRequestProperty("Content-Type", properties.getUpdateContentTypeHeader());
-            } else {
-                request = (HttpURLConnection) queryUrl.openConnection();
-                request.setRequestProperty("Accept", properties.getQueryAcceptHeader());
-                request.setRequestProperty("Content-Type", properties.getQueryContentTypeHeader());
-            }
-            request.setRequestMethod("POST");
-            request.setDoOutput(true);
-            request.setDoInput(true);
-            request.setConnectTimeout(timeout);
-            request.setReadTimeout(timeout);
-
-            if (update) {
-                if (properties.getUpdateMethod().equals(HTTPMethod.URL_ENCODED_POST)) {
-                    requestBody = "update=" + URLEncoder.encode(req.getSPARQL(), "UTF-8");
-                } else {
-                    requestBody = req.getSPARQL();
-                }
+            request = updateRequest(req);
+        } catch (IOException e) {
+            future.complete(new ErrorResponse(500, e.getMessage()));
+            return future;
+        }
+
+        // Also after the update (see update)
+        invalidateQueryCache();
+        executeAsync(req, request, timeout, false, -1, future);
+        return future;
+    }
+
+    private HTTPRequest updateRequest(UpdateRequest req) throws IOException {
+        String body;
+        if (properties.getUpdateMethod().equals(HTTPMethod.URL_ENCODED_POST)) {
+            body = "update=" + URLEncoder.encode(req.getSPARQL(), "UTF-8");
+        } else {
+            body = req.getSPARQL();
+        }
+        HTTPRequest request = new HTTPRequest("POST", properties.getUpdatePath(), body);
+        request.setHeader("Accept", properties.getUpdateAcceptHeader());
+        request.setHeader("Content-Type", properties.getUpdateContentTypeHeader());
+        if (properties.isRequestCompressionEnabled()
+                && request.getBody().length >= properties.getMinCompressedRequestSize())
+            request.compressBody();
+        return request;
+    }
+
+    private HTTPRequest queryRequest(QueryRequest req, String accept) throws UnsupportedEncodingException {
+        HTTPRequest request;
+        if (properties.getQueryMethod().equals(HTTPMethod.GET)) {
+            request = new HTTPRequest("GET", properties.getQueryPath() + "?query=" + URLEncoder.encode(req.getSPARQL(), "UTF-8"));
+        } else {
+            String body;
+            if (properties.getQueryMethod().equals(HTTPMethod.URL_ENCODED_POST)) {
+                body = "query=" + URLEncoder.encode(req.getSPARQL(), "UTF-8");
             } else {
-                if (properties.getQueryMethod().equals(HTTPMethod.URL_ENCODED_POST)) {
-                    requestBody = "query=" + URLEncoder.encode(req.getSPARQL(), "UTF-8");
-                } else {
-                    requestBody = req.getSPARQL();
-                }
+                body = req.getSPARQL();
             }
-            request.setFixedLengthStreamingMode(requestBody.length());
-
-            request.connect();
+            request = new HTTPRequest("POST", properties.getQueryPath(), body);
+            request.setHeader("Content-Type", properties.getQueryContentTypeHeader());
+            // A query has no side effects
+            request.setIdempotent(true);
+        }
+        request.setHeader("Accept", accept);
+        return request;
+    }
 
-            OutputStream os = request.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(os, "UTF-8"));
-            writer.write(requestBody);
-            writer.flush();
-            writer.close();
-            os.close();
+    /**
+     * Sends the request and parses the response. The body is consumed as a
+     * stream: JSON query results are handed directly to the JSON parser and
+     * CSV/TSV results to the text parser or, if a handler is provided, the
+     * solutions are streamed to the handler. Results to be cached
+     * (cacheGeneration != -1) are read as a string first.
+     */
+    private Response execute(Request req, HTTPRequest request, int timeout, boolean query, IBindingsHandler handler, long cacheGeneration) {
+        if (properties.isResponseCompressionEnabled()) request.setHeader("Accept-Encoding", "gzip, deflate");
 
-            responseCode = request.getResponseCode();
+        long start = System.currentTimeMillis();
+        HTTPResponse response;
+        try {
+            response = transport.execute(request, timeout);
+        } catch (IOException e) {
+            return ioError(req, e, start, timeout);
+        }
 
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(
-                            request.getInputStream()));
-            StringBuffer sb = new StringBuffer("");
-            String line = "";
+        return parse(req, request, response, start, timeout, query, handler, cacheGeneration);
+    }
 
-            while ((line = in.readLine()) != null) {
+    /**
+     * Sends the request without blocking the caller (see
+     * {@link HTTPTransport#execute(HTTPRequest, int, HTTPCallback)}). Once the
+     * response has been received, it is parsed by a worker thread, that then
+     * completes the future.
+     */
+    private void executeAsync(final Request req, final HTTPRequest request, final int timeout, final boolean query,
+                              final long cacheGeneration, final ResponseFuture future) {
+        if (properties.isResponseCompressionEnabled()) request.setHeader("Accept-Encoding", "gzip, deflate");
+
+        final long start = System.currentTimeMillis();
+        transport.execute(request, timeout, new HTTPCallback() {
+            @Override
+            public void onResponse(final HTTPResponse response) {
+                complete(future, new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        if (!query) invalidateQueryCache();
+                        return parse(req, request, response, start, timeout, query, null, cacheGeneration);
+                    }
+                });
+            }
 
-                sb.append(line);
-                break;
+            @Override
+            public void onFailure(final IOException e) {
+                complete(future, new Callable<Response>() {
+                    @Override
+                    public Response call() {
+                        if (!query) invalidateQueryCache();
+                        return ioError(req, e, start, timeout);
+                    }
+                });
             }
+        });
+    }
 
-            in.close();
-            responseBody = sb.toString();
+    /**
+     * Completes a future on a worker thread: the transport threads (e.g., the
+     * NIO selector) never run the response handlers.
+     */
+    private void complete(final ResponseFuture future, final Callable<Response> response) {
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Response ret;
+                    try {
+                        ret = response.call();
+                    } catch (Exception e) {
+                        ret = new ErrorResponse(500, e.getMessage());
+                    }
+                    future.complete(ret);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.complete(new ErrorResponse(500, "Protocol closed"));
+        }
+    }
 
-            if (responseCode >= 400) {
+    /**
+     * Parses the response (see {@link #execute(Request, HTTPRequest, int, boolean, IBindingsHandler, long)}).
+     */
+    private Response parse(Request req, HTTPRequest request, HTTPResponse response, long start, int timeout,
+                           boolean query, IBindingsHandler handler, long cacheGeneration) {
+        InputStream body = response.getBody();
+        try {
+            if (response.getCode() >= 400) {
+                String responseBody = response.getBodyAsString();
                 try {
                     return new ErrorResponse(req.getToken(), new JsonParser().parse(responseBody).getAsJsonObject());
-                } catch (JsonParseException e) {
-                    return new ErrorResponse(req.getToken(), responseCode, responseBody);
+                } catch (JsonParseException | IllegalStateException e) {
+                    return new ErrorResponse(req.getToken(), response.getCode(), responseBody);
+                }
+            }
+
+            QueryResultsFormat format = (query ? getResultsFormat(response, request.getHeaders().get("Accept")) : null);
+            if (format != null) {
+                try {
+                    body = response.getContent();
+
+                    if (handler != null) return stream(req, openResults(format, body), handler);
+
+                    if (format != QueryResultsFormat.JSON) return collect(req, openResults(format, body));
+
+                    QueryCache cache = queryCache;
+                    if (cache != null && cacheGeneration != -1) {
+                        String results = response.getBodyAsString();
+                        QueryResponse ret = new QueryResponse(req.getToken(), new JsonParser().parse(results).getAsJsonObject());
+                        cache.put(req.getSPARQL(), results, cacheGeneration);
+                        return ret;
+                    }
+                    return new QueryResponse(req.getToken(), new JsonParser().parse(new InputStreamReader(body, "UTF-8")).getAsJsonObject());
+                } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+                    // I/O errors are wrapped by the JSON parser
+                    if (e.getCause() instanceof IOException) return ioError(req, (IOException) e.getCause(), start, timeout);
+                    return new ErrorResponse(req.getToken(), 500, "Malformed query results: " + e.getMessage());
                 }
             }
 
-            return new UpdateResponse(req.getToken(), responseBody);
+            return new UpdateResponse(req.getToken(), response.getBodyAsString());
         } catch (IOException e) {
-            return new ErrorResponse(500, e.getMessage());
+            return ioError(req, e, start, timeout);
         } finally {
-            if (request != null) request.disconnect();
+            try {
+                body.close();
+            } catch (IOException e) {
+            }
         }
     }
 
+    /**
+     * An I/O error is a timeout (408) if the deadline has expired or if the
+     * request has been cancelled.
+     */
+    private static ErrorResponse ioError(Request req, IOException e, long start, int timeout) {
+        if (e instanceof InterruptedIOException || (timeout > 0 && System.currentTimeMillis() - start >= timeout))
+            return new ErrorResponse(req.getToken(), 408, e.getMessage());
+        return new ErrorResponse(500, e.getMessage());
+    }
+
+    private static IBindingsResultsReader openResults(QueryResultsFormat format, InputStream body) throws IOException {
+        InputStreamReader reader = new InputStreamReader(body, "UTF-8");
+        switch (format) {
+            case CSV:
+                return BindingsResultsTextReader.csv(reader);
+            case TSV:
+                return BindingsResultsTextReader.tsv(reader);
+            default:
+                return new BindingsResultsReader(reader);
+        }
+    }
+
+    /**
+     * Parses the query results one solution at a time. The returned response
+     * only includes the head (and the boolean result of ASK queries).
+     */
+    private static QueryResponse stream(Request req, IBindingsResultsReader results, IBindingsHandler handler) throws IOException {
+        try {
+            // "head" usually comes first, but it may also follow "results"
+            boolean head = !results.getVariables().isEmpty();
+            if (head) handler.onVariables(results.getVariables());
+            while (results.hasNext()) handler.onBindings(results.next());
+            if (!head) handler.onVariables(results.getVariables());
+        } finally {
+            results.close();
+        }
+
+        JsonObject head = new BindingsResults(results.getVariables(), null).toJson();
+        if (results.getBoolean() != null) head.add("boolean", new JsonPrimitive(results.getBoolean()));
+        return new QueryResponse(req.getToken(), head);
+    }
+
+    /**
+     * Parses the query results (CSV or TSV) into the JSON representation.
+     */
+    private static QueryResponse collect(Request req, IBindingsResultsReader results) throws IOException {
+        List<Bindings> solutions = new ArrayList<Bindings>();
+        try {
+            while (results.hasNext()) solutions.add(results.next());
+        } finally {
+            results.close();
+        }
+        return new QueryResponse(req.getToken(), new BindingsResults(results.getVariables(), solutions).toJson());
+    }
+
+    /**
+     * Gets the format of the query results from the Content-Type (or from the
+     * Accept header of the request if the Content-Type is missing).
+     *
+     * @return the format or <i>null</i> if the results cannot be parsed
+     */
+    private static QueryResultsFormat getResultsFormat(HTTPResponse response, String accept) {
+        String contentType = response.getHeader("Content-Type");
+        if (contentType == null) contentType = accept;
+        if (contentType == null) return null;
+
+        contentType = contentType.toLowerCase();
+        if (contentType.contains("json")) return QueryResultsFormat.JSON;
+        if (contentType.contains("text/tab-separated-values")) return QueryResultsFormat.TSV;
+        if (contentType.contains("text/csv")) return QueryResultsFormat.CSV;
+        return null;
+    }
+
     /**
      * Implements a SPARQL 1.1 query operation
      * (https://www.w3.org/TR/sparql11-protocol/)
@@ -261,63 +598,144 @@ public class SPARQL11Protocol {
      * </pre>
      */
     public Response query(QueryRequest req, int timeout) {
-        if (properties.getQueryMethod().equals(HTTPMethod.GET)) return get(req, timeout);
-        else return post(req, timeout, false);
+        Response cached = cachedQuery(req);
+        if (cached != null) return cached;
+        return sendQuery(req, timeout);
     }
 
-    private Response get(QueryRequest req, int timeout) {
-        int responseCode = 0;
-        String responseBody = null;
-        HttpURLConnection request = null;
+    /**
+     * Implements a SPARQL 1.1 query operation without blocking the caller: no
+     * thread waits for the response (see
+     * {@link HTTPTransport#execute(HTTPRequest, int, HTTPCallback)}). The
+     * handler is called by a worker thread (or by the caller if the results
+     * are cached).
+     *
+     * @param req     the query request
+     * @param timeout the timeout in ms
+     * @param handler the handler of the response (may be null)
+     * @return the future response
+     * @see #query(QueryRequest, int)
+     */
+    public Future<Response> queryAsync(QueryRequest req, int timeout, IResponseHandler handler) {
+        ResponseFuture future = new ResponseFuture(handler);
 
-        String urlQuery = null;
+        Response cached = cachedQuery(req);
+        if (cached != null) {
+            future.complete(cached);
+            return future;
+        }
 
+        HTTPRequest request;
         try {
-            urlQuery = URLEncoder.encode("?query=" + req.getSPARQL(), "UTF-8");
-            URL queryUrl = new URL("http://" + properties.getHost() + ":" + properties.getHttpPort() + properties.getQueryPath() + urlQuery);
-        } catch (UnsupportedEncodingException | MalformedURLException e) {
-            return new ErrorResponse(500, e.getMessage());
+            request = newQueryRequest(req);
+        } catch (UnsupportedEncodingException e) {
+            future.complete(new ErrorResponse(500, e.getMessage()));
+            return future;
         }
 
-        try {
-            request = (HttpURLConnection) queryUrl.openConnection();
-            request.setRequestProperty("Accept", properties.getQueryAcceptHeader());
-            request.setRequestProperty("Content-Type", properties.getQueryContentTypeHeader());
+        QueryCache cache = queryCache;
+        executeAsync(req, request, timeout, true, cache == null ? -1 : cache.getGeneration(), future);
+        return future;
+    }
 
-            request.setRequestMethod("GET");
-            request.setConnectTimeout(timeout);
-            request.setReadTimeout(timeout);
+    /**
+     * Gets the results of a query from the cache.
+     *
+     * @param req the query request
+     * @return the cached results or <i>null</i> if the results are not cached (or the cache is disabled)
+     */
+    protected Response cachedQuery(QueryRequest req) {
+        QueryCache cache = queryCache;
+        if (cache == null) return null;
+        String results = cache.get(req.getSPARQL());
+        if (results == null) return null;
+        return new QueryResponse(req.getToken(), new JsonParser().parse(results).getAsJsonObject());
+    }
 
-            responseCode = request.getResponseCode();
+    /**
+     * Sends a query to the endpoint (without looking into the cache). The
+     * results are cached if the cache is enabled.
+     *
+     * @param req     the query request
+     * @param timeout the timeout in ms
+     * @return the response
+     */
+    protected Response sendQuery(QueryRequest req, int timeout) {
+        HTTPRequest request;
+        try {
+            request = newQueryRequest(req);
+        } catch (UnsupportedEncodingException e) {
+            return new ErrorResponse(500, e.getMessage());
+        }
+        return sendQuery(req, request, timeout);
+    }
 
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(
-                            request.getInputStream()));
-            StringBuffer sb = new StringBuffer("");
-            String line = "";
+    /**
+     * Creates the HTTP request of a query. The request can be sent with
+     * {@link #sendQuery(QueryRequest, HTTPRequest, int)} and cancelled while
+     * it is in progress (see {@link HTTPRequest#cancel()}).
+     *
+     * @param req the query request
+     * @return the HTTP request
+     * @throws UnsupportedEncodingException
+     */
+    protected HTTPRequest newQueryRequest(QueryRequest req) throws UnsupportedEncodingException {
+        return queryRequest(req, properties.getQueryAcceptHeader());
+    }
 
-            while ((line = in.readLine()) != null) {
+    /**
+     * Sends the HTTP request of a query (see {@link #sendQuery(QueryRequest, int)}).
+     *
+     * @param req     the query request
+     * @param request the HTTP request created by {@link #newQueryRequest(QueryRequest)}
+     * @param timeout the timeout in ms
+     * @return the response
+     */
+    protected Response sendQuery(QueryRequest req, HTTPRequest request, int timeout) {
+        QueryCache cache = queryCache;
+        long generation = (cache == null ? -1 : cache.getGeneration());
 
-                sb.append(line);
-                break;
-            }
+        return execute(req, request, timeout, true, null, generation);
+    }
 
-            in.close();
-            responseBody = sb.toString();
+    /**
+     * Implements a SPARQL 1.1 query operation streaming the results: each
+     * query solution is passed to the handler as soon as it has been parsed,
+     * without keeping the whole results in memory. The results are not cached.
+     *
+     * @param req     the query request
+     * @param timeout the timeout in ms
+     * @param handler the handler of the query solutions
+     * @return a {@link QueryResponse} including only the head of the results (or an {@link ErrorResponse})
+     * @see #query(QueryRequest, int)
+     */
+    public Response query(QueryRequest req, int timeout, IBindingsHandler handler) {
+        return query(req, timeout, properties.getQueryAcceptHeader(), handler, -1);
+    }
 
-            if (responseCode >= 400) {
-                try {
-                    return new ErrorResponse(req.getToken(), new JsonParser().parse(responseBody).getAsJsonObject());
-                } catch (JsonParseException e) {
-                    return new ErrorResponse(req.getToken(), responseCode, responseBody);
-                }
-            }
+    /**
+     * Implements a SPARQL 1.1 query operation requesting the results in the
+     * given format (e.g., CSV or TSV, that are cheaper to transfer and parse
+     * than JSON). The results are not cached.
+     *
+     * @param req     the query request
+     * @param timeout the timeout in ms
+     * @param format  the format of the results (JSON, CSV or TSV)
+     * @param handler the handler of the query solutions (if null, all the solutions are included in the response)
+     * @return the response
+     */
+    public Response query(QueryRequest req, int timeout, QueryResultsFormat format, IBindingsHandler handler) {
+        return query(req, timeout, SPARQL11Properties.getAcceptHeader(format), handler, -1);
+    }
 
-            return new UpdateResponse(req.getToken(), responseBody);
-        } catch (IOException e) {
+    private Response query(QueryRequest req, int timeout, String accept, IBindingsHandler handler, long cacheGeneration) {
+        HTTPRequest request;
+        try {
+            request = queryRequest(req, accept);
+        } catch (UnsupportedEncodingException e) {
             return new ErrorResponse(500, e.getMessage());
-        } finally {
-            request.disconnect();
         }
+
+        return execute(req, request, timeout, true, handler, cacheGeneration);
     }
 }
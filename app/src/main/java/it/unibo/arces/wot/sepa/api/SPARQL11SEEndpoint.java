@@ -0,0 +1,154 @@
+/* This class describes the HTTPS endpoint of a SPARQL 1.1 SE primitive
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.EnumMap;
+
+import it.unibo.arces.wot.sepa.api.SPARQL11SEProperties.SPARQL11SEPrimitive;
+import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+
+/**
+ * The URL and the headers used by a primitive sent over HTTPS. The table of
+ * the endpoints is computed once from the properties (see
+ * {@link #table(SPARQL11SEProperties)}) and it must be computed again when
+ * the properties change (e.g., a new JWT).
+ * <p>
+ * If the endpoint cannot be computed (e.g., the access token is missing),
+ * the error is returned each time the primitive is requested.
+ */
+class SPARQL11SEEndpoint {
+    private final URL url;
+    private final String contentType;
+    private final String accept;
+    private final String authorization;
+
+    // Set if the endpoint is not available
+    private final boolean available;
+    private final int errorCode;
+    private final String errorMessage;
+
+    private SPARQL11SEEndpoint(URL url, String contentType, String accept, String authorization) {
+        this.url = url;
+        this.contentType = contentType;
+        this.accept = accept;
+        this.authorization = authorization;
+        this.available = true;
+        this.errorCode = 0;
+        this.errorMessage = null;
+    }
+
+    private SPARQL11SEEndpoint(int errorCode, String errorMessage) {
+        this.url = null;
+        this.contentType = null;
+        this.accept = null;
+        this.authorization = null;
+        this.available = false;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * Computes the endpoints of the primitives sent over HTTPS.
+     *
+     * @param properties the properties
+     * @return the endpoint of REGISTER, REQUESTTOKEN, SECUREUPDATE and SECUREQUERY
+     */
+    static EnumMap<SPARQL11SEPrimitive, SPARQL11SEEndpoint> table(SPARQL11SEProperties properties) {
+        EnumMap<SPARQL11SEPrimitive, SPARQL11SEEndpoint> table = new EnumMap<SPARQL11SEPrimitive, SPARQL11SEEndpoint>(SPARQL11SEPrimitive.class);
+
+        String base = "https://" + properties.getHost() + ":" + properties.getHttpsPort();
+
+        // REGISTER
+        table.put(SPARQL11SEPrimitive.REGISTER, endpoint(base + properties.getRegisterPath(), "application/json", "application/json", null));
+
+        // REQUESTTOKEN
+        String basic = null;
+        SPARQL11SEEndpoint error = null;
+        try {
+            basic = properties.getBasicAuthorization();
+            if (basic == null)
+                error = new SPARQL11SEEndpoint(HttpURLConnection.HTTP_UNAUTHORIZED, "Basic authorization in null. Register first");
+        } catch (SEPASecurityException | RuntimeException e) {
+            error = new SPARQL11SEEndpoint(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage());
+        }
+        if (error != null) table.put(SPARQL11SEPrimitive.REQUESTTOKEN, error);
+        else
+            table.put(SPARQL11SEPrimitive.REQUESTTOKEN, endpoint(base + properties.getTokenRequestPath(), "application/json", "application/json", "Basic " + basic));
+
+        // SECUREUPDATE and SECUREQUERY
+        String bearer = null;
+        error = null;
+        try {
+            bearer = "Bearer " + properties.getAccessToken();
+        } catch (SEPASecurityException | RuntimeException e) {
+            error = new SPARQL11SEEndpoint(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage());
+        }
+        if (error != null) {
+            table.put(SPARQL11SEPrimitive.SECUREUPDATE, error);
+            table.put(SPARQL11SEPrimitive.SECUREQUERY, error);
+        } else {
+            String secure = base + properties.getSecurePath();
+            table.put(SPARQL11SEPrimitive.SECUREUPDATE, endpoint(secure + properties.getUpdatePath(), "application/x-www-form-urlencoded", "text/plain", bearer));
+            table.put(SPARQL11SEPrimitive.SECUREQUERY, endpoint(secure + properties.getQueryPath(), "application/sparql-query", "application/sparql-results+json", bearer));
+        }
+
+        return table;
+    }
+
+    private static SPARQL11SEEndpoint endpoint(String url, String contentType, String accept, String authorization) {
+        try {
+            return new SPARQL11SEEndpoint(new URL(url), contentType, accept, authorization);
+        } catch (MalformedURLException e) {
+            return new SPARQL11SEEndpoint(HttpURLConnection.HTTP_NOT_FOUND, e.getMessage());
+        }
+    }
+
+    boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Gets the error to be returned if the endpoint is not available.
+     *
+     * @return the error response
+     */
+    ErrorResponse getError() {
+        return new ErrorResponse(0, errorCode, errorMessage);
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getAccept() {
+        return accept;
+    }
+
+    String getAuthorization() {
+        return authorization;
+    }
+}
@@ -45,7 +45,11 @@ import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
  * "/query", "subscribe": "/subscribe", "securePath": "/secure", "register":
  * "/oauth/register", "tokenRequest": "/oauth/token" }, "security": {
  * "clientId": "...", "clientSecret": "...", "jwt": "...", "expires": "...",
- * "type": "..." } } } }
+ * "type": "..." }, "reconnect": { "backoff": 1000, "maxBackoff": 60000,
+ * "maxAttempts": 0 }, "notifications": { "queueSize": 1000, "overflow":
+ * "CONFLATE", "threads": 1, "conflate": false }, "compression": {
+ * "subscriptions": true }, "heartbeat": { "interval": 5000, "timeout": 15000 },
+ * "encoding": { "notifications": "cbor" } } }
  */
 public class SPARQL11SEProperties extends SPARQL11Properties {
 
@@ -97,6 +101,27 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
         SECUREQUERY
     }
 
+    /**
+     * The Enum NotificationOverflowPolicy (BLOCK,DROP_OLDEST,CONFLATE): what
+     * happens when the queue of the notifications of a subscription is full.
+     */
+    public enum NotificationOverflowPolicy {
+        /**
+         * The socket is not read until the queue has room (backpressure on the
+         * broker). The socket is shared by all the subscriptions of the process:
+         * a slow handler delays the notifications of all of them.
+         */
+        BLOCK,
+        /**
+         * The oldest notification is discarded (the results known by the client may be wrong).
+         */
+        DROP_OLDEST,
+        /**
+         * The notification is merged with the last queued one (their net effect is notified).
+         */
+        CONFLATE
+    }
+
     /**
      * Instantiates a new SPARQL 11 SE properties.
      *
@@ -141,6 +166,8 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
         paths.add("register", new JsonPrimitive("/oauth/register"));
         paths.add("tokenRequest", new JsonPrimitive("/oauth/token"));
         paths.add("securePath", new JsonPrimitive("/secure"));
+
+        parameters.get("compression").getAsJsonObject().add("subscriptions", new JsonPrimitive(false));
     }
 
     @Override
@@ -170,6 +197,195 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
         return parameters.get("ports").getAsJsonObject().get("ws").getAsInt();
     }
 
+    /**
+     * Gets the path of the Unix domain socket of the WebSocket endpoint (e.g.,
+     * a broker running on the same host). Subscriptions are sent over the
+     * socket instead of TCP.
+     * <p>
+     * "unixSockets" : { "ws" : "/var/run/sepa/ws.sock" }
+     *
+     * @return the path or <i>null</i> if TCP is used (default)
+     */
+    public String getWsUnixSocket() {
+        if (parameters.get("unixSockets") == null) return null;
+        JsonObject sockets = parameters.get("unixSockets").getAsJsonObject();
+        if (sockets.get("ws") == null) return null;
+        return sockets.get("ws").getAsString();
+    }
+
+    /**
+     * Checks if the WebSocket is opened again when it is closed (i.e., the
+     * "reconnect" member is present). The active subscriptions are made again
+     * and resynchronized (see {@link SEPAWebsocketManager}).
+     * <p>
+     * "reconnect" : { "backoff" : 1000, "maxBackoff" : 60000, "maxAttempts" : 0 }
+     *
+     * @return true, if the WebSocket is opened again
+     */
+    public boolean isReconnectEnabled() {
+        return parameters.get("reconnect") != null;
+    }
+
+    /**
+     * Gets the delay before the first attempt to open the WebSocket again (it
+     * doubles at each attempt).
+     *
+     * @return the delay in ms (default is 1000)
+     */
+    public long getReconnectBackoff() {
+        return getLong("reconnect", "backoff", 1000);
+    }
+
+    /**
+     * Gets the maximum delay between two attempts to open the WebSocket again.
+     *
+     * @return the delay in ms (default is 60000)
+     */
+    public long getMaxReconnectBackoff() {
+        return getLong("reconnect", "maxBackoff", 60000);
+    }
+
+    /**
+     * Gets the maximum number of attempts to open the WebSocket again.
+     *
+     * @return the number of attempts (default is 0, i.e., no limit)
+     */
+    public int getMaxReconnectAttempts() {
+        return (int) getLong("reconnect", "maxAttempts", 0);
+    }
+
+    /**
+     * Checks if the WebSocket is checked by a heartbeat (i.e., the "heartbeat"
+     * member is present): the client sends pings and closes the socket if
+     * nothing is received for a while (e.g., a half-open socket).
+     * <p>
+     * "heartbeat" : { "interval" : 5000, "timeout" : 15000 }
+     *
+     * @return true, if the heartbeat is enabled
+     * @see HeartbeatMonitor
+     */
+    public boolean isHeartbeatEnabled() {
+        return parameters.get("heartbeat") != null;
+    }
+
+    /**
+     * Gets the interval between two pings sent by the client.
+     *
+     * @return the interval in ms (default is 5000)
+     */
+    public long getHeartbeatInterval() {
+        return getLong("heartbeat", "interval", 5000);
+    }
+
+    /**
+     * Gets the time without any message (notifications, pings of the broker,
+     * pongs) after that the socket is closed.
+     *
+     * @return the timeout in ms (default is 15000)
+     */
+    public long getHeartbeatTimeout() {
+        return getLong("heartbeat", "timeout", 15000);
+    }
+
+    /**
+     * Checks if notifications are queued (i.e., the "notifications" member is
+     * present) and delivered by worker threads instead of the thread reading
+     * the WebSocket. Each subscription has its own bounded queue.
+     * <p>
+     * "notifications" : { "queueSize" : 1000, "overflow" : "CONFLATE", "threads" : 1 }
+     *
+     * @return true, if notifications are queued
+     * @see NotificationDispatcher
+     */
+    public boolean isNotificationQueueEnabled() {
+        return parameters.get("notifications") != null;
+    }
+
+    /**
+     * Gets the maximum number of queued notifications of a subscription.
+     *
+     * @return the queue size (default is 1000)
+     */
+    public int getNotificationQueueSize() {
+        return (int) getLong("notifications", "queueSize", 1000);
+    }
+
+    /**
+     * Gets what happens when the queue of a subscription is full.
+     *
+     * The default never stops the thread reading the shared socket and keeps
+     * the results known by the client correct.
+     *
+     * @return the policy (default is CONFLATE)
+     */
+    public NotificationOverflowPolicy getNotificationOverflowPolicy() {
+        JsonObject notifications = getMember("notifications");
+        if (notifications == null || notifications.get("overflow") == null) return NotificationOverflowPolicy.CONFLATE;
+        try {
+            return NotificationOverflowPolicy.valueOf(notifications.get("overflow").getAsString().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown overflow policy: " + notifications.get("overflow").getAsString() + " (using CONFLATE)");
+            return NotificationOverflowPolicy.CONFLATE;
+        }
+    }
+
+    /**
+     * Gets the number of threads delivering the notifications of a client.
+     * The notifications of a subscription are delivered in order, one at a time.
+     *
+     * @return the number of threads (default is 1)
+     */
+    public int getNotificationThreads() {
+        return (int) getLong("notifications", "threads", 1);
+    }
+
+    /**
+     * Checks if the notifications queued for a subscription are merged into
+     * their net effect before being delivered (e.g., a slow user interface).
+     * <p>
+     * "notifications" : { "conflate" : true }
+     *
+     * @return true, if notifications are conflated (default is false)
+     */
+    public boolean isNotificationConflationEnabled() {
+        JsonObject notifications = getMember("notifications");
+        if (notifications == null || notifications.get("conflate") == null) return false;
+        return notifications.get("conflate").getAsBoolean();
+    }
+
+    /**
+     * Checks if the permessage-deflate extension is offered when the WebSocket
+     * is opened: if the broker accepts it, notifications are compressed.
+     * <p>
+     * "compression" : { "subscriptions" : true }
+     *
+     * @return true, if compressed notifications are accepted (default is false)
+     * @see PerMessageDeflateExtension
+     */
+    public boolean isSubscriptionCompressionEnabled() {
+        JsonObject compression = getMember("compression");
+        if (compression == null || compression.get("subscriptions") == null) return false;
+        return compression.get("subscriptions").getAsBoolean();
+    }
+
+    /**
+     * Checks if the notifications are requested in CBOR (RFC 8949) instead of
+     * JSON: the broker sends them as binary frames.
+     * <p>
+     * "encoding" : { "notifications" : "cbor" }
+     *
+     * @return true, if CBOR notifications are requested (default is false, i.e., "json")
+     * @throws IllegalArgumentException if the encoding is not "json" or "cbor"
+     */
+    public boolean isBinaryNotificationEnabled() {
+        JsonObject encoding = getMember("encoding");
+        if (encoding == null || encoding.get("notifications") == null) return false;
+        String notifications = encoding.get("notifications").getAsString();
+        if (notifications.equalsIgnoreCase("cbor")) return true;
+        if (notifications.equalsIgnoreCase("json")) return false;
+        throw new IllegalArgumentException("Unknown notification encoding: " + notifications);
+    }
+
     public String getSubscribePath() {
         return parameters.get("paths").getAsJsonObject().get("subscribe").getAsString();
     }
@@ -330,6 +546,7 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
             parameters.get("security").getAsJsonObject().add("client_id", new JsonPrimitive(SEPAEncryption.encrypt(id)));
             parameters.get("security").getAsJsonObject().add("client_secret", new JsonPrimitive(SEPAEncryption.encrypt(secret)));
         }
+        changed();
 
         storeProperties(propertiesFile);
     }
@@ -357,6 +574,7 @@ public class SPARQL11SEProperties extends SPARQL11Properties {
             parameters.get("security").getAsJsonObject().add("expires", new JsonPrimitive(SEPAEncryption.encrypt(String.format("%d", expires.getTime()))));
             parameters.get("security").getAsJsonObject().add("type", new JsonPrimitive(SEPAEncryption.encrypt(type)));
         }
+        changed();
 
         storeProperties(propertiesFile);
     }
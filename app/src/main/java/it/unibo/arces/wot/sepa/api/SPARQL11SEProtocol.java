@@ -18,21 +18,41 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package it.unibo.arces.wot.sepa.api;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.net.URLEncoder;
 
+import javax.net.ssl.HttpsURLConnection;
+
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.EnumMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import it.unibo.arces.wot.sepa.android.logging.LogManager;
 import it.unibo.arces.wot.sepa.android.logging.Logger;
@@ -42,6 +62,13 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 import it.unibo.arces.wot.sepa.api.SPARQL11SEProperties.SPARQL11SEPrimitive;
+import it.unibo.arces.wot.sepa.api.SPARQL11Properties.HTTPTransportType;
+import it.unibo.arces.wot.sepa.api.http.HTTP2Transport;
+import it.unibo.arces.wot.sepa.api.http.HTTPBodyInputStream;
+import it.unibo.arces.wot.sepa.api.http.HTTPRequest;
+import it.unibo.arces.wot.sepa.api.http.HTTPResponse;
+import it.unibo.arces.wot.sepa.api.http.HTTPTransport;
+import it.unibo.arces.wot.sepa.api.http.TLSContext;
 
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAPropertiesException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
@@ -59,17 +86,66 @@ import it.unibo.arces.wot.sepa.commons.response.QueryResponse;
 import it.unibo.arces.wot.sepa.commons.response.RegistrationResponse;
 import it.unibo.arces.wot.sepa.commons.response.Response;
 import it.unibo.arces.wot.sepa.commons.response.UpdateResponse;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.IBindingsHandler;
 
 public class SPARQL11SEProtocol extends SPARQL11Protocol {
     private static final Logger logger = LogManager.getLogger("SPARQL11SEProtocol");
 
     private SPARQL11SEWebsocket wsClient;
+    private ISubscriptionHandler notificationHandler = null;
+
+    // The WebSocket of the secure subscriptions (created by the first one)
+    private SPARQL11SEWebsocket wssClient = null;
+    private boolean closed = false;
 
     protected SPARQL11SEProperties properties = null;
 
+    // The authorization of the secure subscriptions: the current token is read each time a subscription is made
+    // (e.g., again after a reconnection)
+    private final IAuthorizationProvider bearer = new IAuthorizationProvider() {
+        @Override
+        public String getAuthorization() throws SEPASecurityException {
+            return "Bearer " + properties.getAccessToken();
+        }
+    };
+
+    // Asynchronous primitives: in flight requests limit
+    private final Semaphore inFlight;
+
+    // Hedged queries: latency of the last queries, threads running the queries, number of hedged queries
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private final LatencyTracker queryLatency = new LatencyTracker(LATENCY_SAMPLES);
+    private ThreadPoolExecutor hedgingExecutor = null;
+    private final AtomicLong hedgedQueries = new AtomicLong(0);
+    private final AtomicLong retriedQueries = new AtomicLong(0);
+    private final Random jitter = new Random();
+
+    // Disconnects the secure requests (HttpURLConnection) whose deadline has expired and resends the asynchronous
+    // queries after the retry backoff (a single daemon thread for all the clients)
+    private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SPARQL11SEProtocol-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // HTTP/2 over TLS for the secure primitives (null if HttpURLConnection is used)
+    private final HTTPTransport secureTransport;
+
+    // The URL and headers of the primitives sent over HTTPS (computed again when the properties change)
+    private EnumMap<SPARQL11SEPrimitive, SPARQL11SEEndpoint> endpoints = null;
+    private int endpointsVersion = -1;
+
     public SPARQL11SEProtocol(SPARQL11SEProperties properties)
             throws SEPAProtocolException {
         super(properties);
+
+        this.properties = properties;
+        inFlight = new Semaphore(properties.getMaxInFlightRequests(), true);
+        secureTransport = newSecureTransport(properties);
     }
 
     public SPARQL11SEProtocol(SPARQL11SEProperties properties, ISubscriptionHandler handler)
@@ -81,15 +157,172 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
             throw new SEPAProtocolException(new IllegalArgumentException("Handler is null"));
         }
 
+        notificationHandler = handler;
         try {
             wsClient = new SPARQL11SEWebsocket(
                     "ws://" + properties.getHost() + ":" + properties.getWsPort() + properties.getSubscribePath(),
-                    handler);
+                    properties.getWsUnixSocket(), handler);
         } catch (URISyntaxException e) {
             throw new SEPAProtocolException(e);
         }
 
+        try {
+            if (properties.isNotificationQueueEnabled()) {
+                NotificationDispatcher dispatcher = new NotificationDispatcher(handler, properties.getNotificationQueueSize(),
+                        properties.getNotificationOverflowPolicy(), properties.getNotificationThreads());
+                dispatcher.setConflation(properties.isNotificationConflationEnabled());
+                wsClient.setNotificationDispatcher(dispatcher);
+            }
+
+            configure(wsClient.getConnection(), properties);
+        } catch (IllegalArgumentException e) {
+            wsClient.close();
+            throw new SEPAProtocolException(e);
+        }
+
         this.properties = properties;
+        inFlight = new Semaphore(properties.getMaxInFlightRequests(), true);
+        secureTransport = newSecureTransport(properties);
+    }
+
+    /**
+     * Sets a (shared) WebSocket connection as set by the properties.
+     *
+     * @throws IllegalArgumentException if a setting is not valid
+     */
+    private static void configure(SEPAWebsocketManager connection, SPARQL11SEProperties properties) {
+        // Enabled for the shared connection if any client enables it
+        if (properties.isSubscriptionCompressionEnabled()) connection.setCompression(true);
+        if (properties.isBinaryNotificationEnabled()) connection.setBinaryNotifications(true);
+
+        if (properties.isHeartbeatEnabled())
+            connection.setHeartbeat(true, properties.getHeartbeatInterval(), properties.getHeartbeatTimeout());
+
+        if (properties.isReconnectEnabled())
+            connection.setReconnect(true, properties.getReconnectBackoff(), properties.getMaxReconnectBackoff(),
+                    properties.getMaxReconnectAttempts());
+    }
+
+    /**
+     * Gets the WebSocket of the secure subscriptions
+     * (wss://host:wssPort/securePath/subscribePath). It is created by the first
+     * secure subscription and it delivers the notifications as the WebSocket
+     * of the other subscriptions does (i.e., with the same dispatcher).
+     */
+    private synchronized SPARQL11SEWebsocket getSecureWebsocket() throws SEPAProtocolException {
+        if (wssClient != null) return wssClient;
+        if (wsClient == null) throw new SEPAProtocolException(new IllegalStateException("No notification handler"));
+        if (closed) throw new SEPAProtocolException(new IllegalStateException("Client closed"));
+
+        SPARQL11SEWebsocket wss;
+        try {
+            wss = new SPARQL11SEWebsocket("wss://" + properties.getHost() + ":" + properties.getWssPort()
+                    + properties.getSecurePath() + properties.getSubscribePath(), notificationHandler);
+        } catch (URISyntaxException | RuntimeException e) {
+            throw new SEPAProtocolException(e);
+        }
+
+        try {
+            configure(wss.getConnection(), properties);
+        } catch (IllegalArgumentException e) {
+            wss.close();
+            throw new SEPAProtocolException(e);
+        }
+        wss.setNotificationDispatcher(wsClient.getNotificationDispatcher());
+
+        wssClient = wss;
+        return wssClient;
+    }
+
+    private static HTTPTransport newSecureTransport(SPARQL11SEProperties properties) throws SEPAProtocolException {
+        if (properties.getHTTPTransport() != HTTPTransportType.HTTP2) return null;
+        try {
+            return new HTTP2Transport("https", properties.getHost(), properties.getHttpsPort(),
+                    properties.getMaxConcurrentRequests(), properties.getConnectionIdleTimeout());
+        } catch (RuntimeException e) {
+            throw new SEPAProtocolException(e);
+        }
+    }
+
+    /**
+     * Gets the transport of the secure primitives.
+     *
+     * @return the HTTP/2 transport or <i>null</i> if the secure primitives are sent with HttpURLConnection
+     */
+    public HTTPTransport getSecureTransport() {
+        return secureTransport;
+    }
+
+    /**
+     * Delivers the notifications by an executor (e.g., shared with other
+     * clients). The queue size and the overflow policy are set by the
+     * "notifications" member (see {@link SPARQL11SEProperties#isNotificationQueueEnabled()}).
+     *
+     * @param executor the executor (null to deliver the notifications on the thread reading the socket)
+     */
+    public void setNotificationExecutor(Executor executor) {
+        if (wsClient == null) throw new IllegalStateException("No notification handler");
+        NotificationDispatcher dispatcher = null;
+        if (executor != null) {
+            dispatcher = new NotificationDispatcher(notificationHandler, properties.getNotificationQueueSize(),
+                    properties.getNotificationOverflowPolicy(), executor);
+            dispatcher.setConflation(properties.isNotificationConflationEnabled());
+        }
+        synchronized (this) {
+            wsClient.setNotificationDispatcher(dispatcher);
+            if (wssClient != null) wssClient.setNotificationDispatcher(dispatcher);
+        }
+    }
+
+    /**
+     * Enables or disables the conflation of the notifications: when the
+     * handler falls behind, the queued notifications of a subscription are
+     * merged into their net effect (see {@link NotificationDispatcher}). If
+     * notifications are not queued yet, a queue is created as set by the
+     * "notifications" member (or with the defaults).
+     *
+     * @param enabled true to conflate the notifications
+     */
+    public synchronized void setNotificationConflation(boolean enabled) {
+        if (wsClient == null) throw new IllegalStateException("No notification handler");
+        NotificationDispatcher dispatcher = wsClient.getNotificationDispatcher();
+        if (dispatcher == null) {
+            if (!enabled) return;
+            dispatcher = new NotificationDispatcher(notificationHandler, properties.getNotificationQueueSize(),
+                    properties.getNotificationOverflowPolicy(), properties.getNotificationThreads());
+            wsClient.setNotificationDispatcher(dispatcher);
+            if (wssClient != null) wssClient.setNotificationDispatcher(dispatcher);
+        }
+        dispatcher.setConflation(enabled);
+    }
+
+    /**
+     * Gets the queue depth gauges of the notifications.
+     *
+     * @return the statistics or <i>null</i> if notifications are not queued
+     */
+    public JsonObject getNotificationStatistics() {
+        if (wsClient == null || wsClient.getNotificationDispatcher() == null) return null;
+        return wsClient.getNotificationDispatcher().getStatistics();
+    }
+
+    /**
+     * Gets the WebSocket connection (shared with the other clients of the process).
+     *
+     * @return the connection or <i>null</i> if the client has no notification handler
+     */
+    public SEPAWebsocketManager getWebsocketConnection() {
+        return (wsClient == null ? null : wsClient.getConnection());
+    }
+
+    /**
+     * Gets the WebSocket connection of the secure subscriptions (shared with
+     * the other clients of the process).
+     *
+     * @return the connection or <i>null</i> if no secure subscription has been made
+     */
+    public synchronized SEPAWebsocketManager getSecureWebsocketConnection() {
+        return (wssClient == null ? null : wssClient.getConnection());
     }
 
     public String toString() {
@@ -99,13 +332,233 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
     // SPARQL 1.1 Update Primitive
     public Response update(UpdateRequest request) {
 
-        return super.update(request, 0);
+        return super.update(request, toTimeout(properties.getUpdateDeadline()));
     }
 
-    // SPARQL 1.1 Query Primitive
+    // SPARQL 1.1 Query Primitive (with deadline, retries and hedging as set by the properties)
     public Response query(QueryRequest request) {
         logger.debug(request.toString());
-        return super.query(request, 0);
+
+        Response cached = cachedQuery(request);
+        if (cached != null) return cached;
+
+        long deadline = properties.getQueryDeadline();
+        long end = (deadline > 0 ? System.currentTimeMillis() + deadline : 0);
+        int maxRetries = properties.getMaxQueryRetries();
+
+        for (int retry = 0; ; retry++) {
+            // The time left until the deadline (0 if there is no deadline)
+            long remaining = 0;
+            if (end > 0) {
+                remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) return deadlineExpired(request, deadline);
+            }
+
+            Response response;
+            if (properties.isHedgingEnabled()) response = hedgedQuery(request, remaining, deadline);
+            else response = timedQuery(request, remaining);
+
+            if (!response.isError() || retry >= maxRetries || !isRetryable((ErrorResponse) response))
+                return response;
+
+            long backoff = backoff(retry);
+            if (end > 0 && System.currentTimeMillis() + backoff >= end) return response;
+
+            logger.warn("Query failed (" + ((ErrorResponse) response).getErrorCode() + "). Retry in " + backoff + " ms");
+            retriedQueries.incrementAndGet();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return response;
+            }
+        }
+    }
+
+    /**
+     * The delay before a retry: exponential backoff with jitter.
+     */
+    private long backoff(int retry) {
+        long backoff = Math.min(properties.getRetryBackoff() << Math.min(retry, 20), properties.getMaxRetryBackoff());
+        return backoff / 2 + (long) (jitter.nextDouble() * backoff / 2);
+    }
+
+    private Response timedQuery(QueryRequest request, long remaining) {
+        long start = System.currentTimeMillis();
+        Response response = sendQuery(request, toTimeout(remaining));
+        if (!response.isError()) queryLatency.record(System.currentTimeMillis() - start);
+        return response;
+    }
+
+    /**
+     * Sends the query and, if the response has not been received after the
+     * hedging percentile of the query latency, sends it again. The first
+     * successful response is returned (or the last error if both fail) and the
+     * other request is cancelled.
+     * <p>
+     * If all the hedging threads are busy, the query is not hedged.
+     *
+     * @param remaining the time left until the deadline (0 if there is no deadline)
+     */
+    private Response hedgedQuery(QueryRequest request, long remaining, long deadline) {
+        if (queryLatency.getCount() < MIN_LATENCY_SAMPLES) return timedQuery(request, remaining);
+
+        long delay = Math.max(queryLatency.getPercentile(properties.getHedgingPercentile()), properties.getHedgingMinDelay());
+        if (remaining > 0 && delay >= remaining) return timedQuery(request, remaining);
+
+        ResponseFuture result = new ResponseFuture(null);
+        AtomicInteger pending = new AtomicInteger(1);
+        long start = System.currentTimeMillis();
+
+        HedgedQuery first;
+        HedgedQuery second = null;
+        try {
+            first = new HedgedQuery(request, remaining, result, pending);
+        } catch (UnsupportedEncodingException e) {
+            return new ErrorResponse(request.getToken(), 500, e.getMessage());
+        }
+
+        try {
+            try {
+                getHedgingExecutor().execute(first);
+            } catch (RejectedExecutionException e) {
+                return timedQuery(request, remaining);
+            }
+
+            Response response = awaitResponse(result, delay);
+            if (response != null) return response;
+
+            long left = (remaining > 0 ? Math.max(remaining - (System.currentTimeMillis() - start), 1) : 0);
+            try {
+                second = new HedgedQuery(request, left, result, pending);
+                pending.incrementAndGet();
+                getHedgingExecutor().execute(second);
+                hedgedQueries.incrementAndGet();
+                logger.debug("Hedging query after " + delay + " ms");
+            } catch (RejectedExecutionException e) {
+                // Wait for the first request only
+                pending.decrementAndGet();
+                second = null;
+            } catch (UnsupportedEncodingException e) {
+                second = null;
+            }
+
+            response = awaitResponse(result, left);
+            if (response != null) return response;
+            return deadlineExpired(request, deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ErrorResponse(request.getToken(), 500, "Interrupted while waiting for the query response");
+        } finally {
+            // The losing request (or both, if the deadline expired) is abandoned
+            first.cancel();
+            if (second != null) second.cancel();
+        }
+    }
+
+    /**
+     * A request of a hedged query: the first successful response completes the
+     * result (only its latency is recorded). The last error completes the
+     * result if no request succeeds.
+     */
+    private class HedgedQuery implements Runnable {
+        private final QueryRequest request;
+        private final HTTPRequest httpRequest;
+        private final int timeout;
+        private final ResponseFuture result;
+        private final AtomicInteger pending;
+
+        HedgedQuery(QueryRequest request, long remaining, ResponseFuture result, AtomicInteger pending)
+                throws UnsupportedEncodingException {
+            this.request = request;
+            this.httpRequest = newQueryRequest(request);
+            this.timeout = toTimeout(remaining);
+            this.result = result;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            Response response = sendQuery(request, httpRequest, timeout);
+            if (!response.isError()) {
+                if (result.complete(response)) queryLatency.record(System.currentTimeMillis() - start);
+            } else if (pending.decrementAndGet() == 0) result.complete(response);
+        }
+
+        void cancel() {
+            httpRequest.cancel();
+        }
+    }
+
+    /**
+     * Waits for a response.
+     *
+     * @param timeout the timeout in ms (0 means infinite)
+     * @return the response or <i>null</i> on timeout
+     */
+    private static Response awaitResponse(ResponseFuture result, long timeout) throws InterruptedException {
+        if (timeout <= 0) return result.get();
+        try {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        }
+    }
+
+    private static ErrorResponse deadlineExpired(QueryRequest request, long deadline) {
+        return new ErrorResponse(request.getToken(), HttpURLConnection.HTTP_CLIENT_TIMEOUT, "Query deadline expired (" + deadline + " ms)");
+    }
+
+    private static ErrorResponse deadlineExpired(SPARQL11SEPrimitive op, long deadline) {
+        return new ErrorResponse(HttpURLConnection.HTTP_CLIENT_TIMEOUT, op + " deadline expired (" + deadline + " ms)");
+    }
+
+    /**
+     * Errors that may not occur again: timeouts, I/O errors and server overload.
+     */
+    private static boolean isRetryable(ErrorResponse error) {
+        int code = error.getErrorCode();
+        if (code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429) return true;
+        return code >= 500 && code != HttpURLConnection.HTTP_NOT_IMPLEMENTED && code != HttpURLConnection.HTTP_VERSION;
+    }
+
+    private static int toTimeout(long deadline) {
+        if (deadline <= 0) return 0;
+        return (int) Math.max(Math.min(deadline, Integer.MAX_VALUE), 1);
+    }
+
+    /**
+     * Gets the latency of the last successful queries.
+     *
+     * @return the latency tracker
+     */
+    public LatencyTracker getQueryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * Gets the number of queries sent twice because the first response was late.
+     *
+     * @return the number of hedged queries
+     */
+    public long getHedgedQueries() {
+        return hedgedQueries.get();
+    }
+
+    /**
+     * Gets the number of queries sent again after a failure.
+     *
+     * @return the number of retries
+     */
+    public long getRetriedQueries() {
+        return retriedQueries.get();
+    }
+
+    // SPARQL 1.1 Query Primitive (query solutions streamed to the handler, within the query deadline)
+    public Response query(QueryRequest request, IBindingsHandler handler) {
+        logger.debug(request.toString());
+        return super.query(request, toTimeout(properties.getQueryDeadline()), handler);
     }
 
     // SPARQL 1.1 SE Subscribe Primitive
@@ -114,6 +567,35 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
         return executeSPARQL11SEPrimitive(SPARQL11SEPrimitive.SUBSCRIBE, request);
     }
 
+    // Many SPARQL 1.1 SE Subscribe Primitives sent in a row (the responses are in the order of the requests)
+    public List<Response> subscribeAll(List<SubscribeRequest> requests) {
+        return subscribeAll(requests, SPARQL11SEWebsocket.TIMEOUT);
+    }
+
+    /**
+     * Many SPARQL 1.1 SE Subscribe Primitives sent in a row. The responses are
+     * in the order of the requests: a response not received within the timeout
+     * is an {@link ErrorResponse} (408) and the subscription, if made later, is
+     * unsubscribed.
+     *
+     * @param requests the subscribe requests
+     * @param timeout  the timeout (ms) of the whole batch
+     * @return the responses
+     * @throws IllegalStateException if the client has no notification handler
+     */
+    public List<Response> subscribeAll(List<SubscribeRequest> requests, long timeout) {
+        if (wsClient == null) throw new IllegalStateException("No notification handler");
+
+        ArrayList<String> sparql = new ArrayList<String>(requests.size());
+        ArrayList<String> aliases = new ArrayList<String>(requests.size());
+        for (SubscribeRequest request : requests) {
+            logger.debug(request.toString());
+            sparql.add(request.getSPARQL());
+            aliases.add(request.getAlias());
+        }
+        return wsClient.subscribeAll(sparql, aliases, null, timeout);
+    }
+
     // SPARQL 1.1 SE Unsubscribe Primitive
     public Response unsubscribe(UnsubscribeRequest request) {
         logger.debug(request.toString());
@@ -126,6 +608,41 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
         return executeSPARQL11SEPrimitive(SPARQL11SEPrimitive.SECURESUBSCRIBE, request);
     }
 
+    // Many SPARQL 1.1 SE SECURE Subscribe Primitives sent in a row
+    public List<Response> secureSubscribeAll(List<SubscribeRequest> requests) {
+        return secureSubscribeAll(requests, SPARQL11SEWebsocket.TIMEOUT);
+    }
+
+    /**
+     * Many SPARQL 1.1 SE SECURE Subscribe Primitives sent in a row (see
+     * {@link #subscribeAll(List, long)}).
+     *
+     * @param requests the subscribe requests
+     * @param timeout  the timeout (ms) of the whole batch
+     * @return the responses
+     * @throws IllegalStateException if the client has no notification handler
+     */
+    public List<Response> secureSubscribeAll(List<SubscribeRequest> requests, long timeout) {
+        if (wsClient == null) throw new IllegalStateException("No notification handler");
+
+        ArrayList<String> sparql = new ArrayList<String>(requests.size());
+        ArrayList<String> aliases = new ArrayList<String>(requests.size());
+        for (SubscribeRequest request : requests) {
+            logger.debug("SECURE " + request.toString());
+            sparql.add(request.getSPARQL());
+            aliases.add(request.getAlias());
+        }
+
+        try {
+            return getSecureWebsocket().subscribeAll(sparql, aliases, bearer, timeout);
+        } catch (SEPAProtocolException e) {
+            ArrayList<Response> ret = new ArrayList<Response>(requests.size());
+            for (int i = 0; i < requests.size(); i++)
+                ret.add(new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage()));
+            return ret;
+        }
+    }
+
     // SPARQL 1.1 SE SECURE Unsubscribe Primitive
     public Response secureUnsubscribe(UnsubscribeRequest request) {
         logger.debug("SECURE " + request.toString());
@@ -135,7 +652,12 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
     // SPARQL 1.1 SE SECURE Update Primitive
     public Response secureUpdate(UpdateRequest request) {
         logger.debug("SECURE " + request.toString());
-        return executeSPARQL11SEPrimitive(SPARQL11SEPrimitive.SECUREUPDATE, request);
+        invalidateQueryCache();
+        try {
+            return executeSPARQL11SEPrimitive(SPARQL11SEPrimitive.SECUREUPDATE, request);
+        } finally {
+            invalidateQueryCache();
+        }
     }
 
     // SPARQL 1.1 SE SECURE Query Primitive
@@ -155,96 +677,321 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
         return executeSPARQL11SEPrimitive(SPARQL11SEPrimitive.REQUESTTOKEN);
     }
 
+    // Asynchronous SPARQL 1.1 SE Subscribe Primitive (many subscriptions can be in progress on the same socket)
+    public Future<Response> subscribeAsync(SubscribeRequest request, IResponseHandler handler) {
+        if (wsClient == null) throw new IllegalStateException("No notification handler");
+        logger.debug(request.toString());
+        return wsClient.subscribeAsync(request.getSPARQL(), request.getAlias(), handler);
+    }
+
+    // Asynchronous SPARQL 1.1 SE Unsubscribe Primitive
+    public Future<Response> unsubscribeAsync(UnsubscribeRequest request, IResponseHandler handler) {
+        if (wsClient == null) throw new IllegalStateException("No notification handler");
+        logger.debug(request.toString());
+        return wsClient.unsubscribeAsync(request.getSubscribeUUID(), handler);
+    }
+
+    /**
+     * Asynchronous SPARQL 1.1 Update Primitive. No thread waits for the
+     * response (see {@link #updateAsync(UpdateRequest, int, IResponseHandler)}):
+     * the update deadline is enforced by the transport.
+     * <p>
+     * As for the other asynchronous primitives, if the maximum number of in
+     * flight requests has been reached the request is rejected with a 429
+     * error response (the handler is called by the caller thread).
+     */
+    public Future<Response> updateAsync(UpdateRequest request, final IResponseHandler handler) {
+        if (!inFlight.tryAcquire()) return rejected(handler);
+
+        try {
+            return updateAsync(request, toTimeout(properties.getUpdateDeadline()), new IResponseHandler() {
+                @Override
+                public void onResponse(Response response) {
+                    inFlight.release();
+                    if (handler != null) handler.onResponse(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Asynchronous SPARQL 1.1 Query Primitive. No thread waits for the
+     * response (see {@link #queryAsync(QueryRequest, int, IResponseHandler)})
+     * or for the backoff before a retry: the retries (with the query deadline)
+     * are sent by a timer. Asynchronous queries are not hedged.
+     * <p>
+     * If the results are cached, or the request is rejected with a 429 error
+     * response, the handler is called by the caller thread.
+     */
+    public Future<Response> queryAsync(QueryRequest request, IResponseHandler handler) {
+        Response cached = cachedQuery(request);
+        if (cached != null) return SEPAWebsocketManager.completed(cached, handler);
+
+        if (!inFlight.tryAcquire()) return rejected(handler);
+
+        ResponseFuture future = new ResponseFuture(handler);
+        try {
+            new AsyncQuery(request, future).run();
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * An asynchronous query: each attempt is sent without blocking and, if it
+     * fails with a retryable error, the next one is scheduled on the timer.
+     */
+    private class AsyncQuery implements Runnable, IResponseHandler {
+        private final QueryRequest request;
+        private final ResponseFuture future;
+        private final long deadline;
+        private final long end;
+        private final int maxRetries;
+
+        private int retry = 0;
+        private long start;
+
+        AsyncQuery(QueryRequest request, ResponseFuture future) {
+            this.request = request;
+            this.future = future;
+            deadline = properties.getQueryDeadline();
+            end = (deadline > 0 ? System.currentTimeMillis() + deadline : 0);
+            maxRetries = properties.getMaxQueryRetries();
+        }
+
+        @Override
+        public void run() {
+            // The time left until the deadline (0 if there is no deadline)
+            long remaining = 0;
+            if (end > 0) {
+                remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    done(deadlineExpired(request, deadline));
+                    return;
+                }
+            }
+
+            start = System.currentTimeMillis();
+            queryAsync(request, toTimeout(remaining), this);
+        }
+
+        @Override
+        public void onResponse(Response response) {
+            if (!response.isError()) {
+                queryLatency.record(System.currentTimeMillis() - start);
+                done(response);
+                return;
+            }
+
+            if (retry >= maxRetries || !isRetryable((ErrorResponse) response)) {
+                done(response);
+                return;
+            }
+
+            long backoff = backoff(retry);
+            if (end > 0 && System.currentTimeMillis() + backoff >= end) {
+                done(response);
+                return;
+            }
+
+            logger.warn("Query failed (" + ((ErrorResponse) response).getErrorCode() + "). Retry in " + backoff + " ms");
+            retriedQueries.incrementAndGet();
+            retry++;
+            try {
+                timer.schedule(this, backoff, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                done(response);
+            }
+        }
+
+        private void done(Response response) {
+            inFlight.release();
+            future.complete(response);
+        }
+    }
+
+    // Asynchronous SPARQL 1.1 SE SECURE Update Primitive
+    public Future<Response> secureUpdateAsync(final UpdateRequest request, IResponseHandler handler) {
+        return submit(new Callable<Response>() {
+            @Override
+            public Response call() {
+                return secureUpdate(request);
+            }
+        }, handler);
+    }
+
+    // Asynchronous SPARQL 1.1 SE SECURE Query Primitive
+    public Future<Response> secureQueryAsync(final QueryRequest request, IResponseHandler handler) {
+        return submit(new Callable<Response>() {
+            @Override
+            public Response call() {
+                return secureQuery(request);
+            }
+        }, handler);
+    }
+
+    /**
+     * Gets the number of asynchronous requests in flight (executing or queued).
+     *
+     * @return the number of in flight requests
+     */
+    public int getInFlightRequests() {
+        return properties.getMaxInFlightRequests() - inFlight.availablePermits();
+    }
+
+    /**
+     * Executes a blocking primitive (i.e., a secure one) on the worker threads.
+     * <p>
+     * The caller is never blocked (e.g., the main thread of an activity): if
+     * the maximum number of in flight requests has been reached, the request
+     * is rejected with a 429 error response (the handler is called by the
+     * caller thread).
+     *
+     * @param primitive the primitive to be executed
+     * @param handler   the handler of the response (may be null)
+     * @return the future response
+     */
+    private Future<Response> submit(final Callable<Response> primitive, final IResponseHandler handler) {
+        if (!inFlight.tryAcquire()) return rejected(handler);
+
+        try {
+            return getExecutor().submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    Response response;
+                    try {
+                        response = primitive.call();
+                    } finally {
+                        inFlight.release();
+                    }
+                    if (handler != null) {
+                        try {
+                            handler.onResponse(response);
+                        } catch (RuntimeException e) {
+                            logger.error("Response handler exception: " + e.getMessage());
+                        }
+                    }
+                    return response;
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private Future<Response> rejected(IResponseHandler handler) {
+        return SEPAWebsocketManager.completed(new ErrorResponse(429,
+                "Too many requests in flight (max " + properties.getMaxInFlightRequests() + ")"), handler);
+    }
+
+    /**
+     * The threads of the hedged queries: two for each concurrent request (the
+     * requests exceeding it are not hedged).
+     */
+    private synchronized ExecutorService getHedgingExecutor() {
+        if (hedgingExecutor == null) {
+            int threads = 2 * properties.getMaxConcurrentRequests();
+            hedgingExecutor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SPARQL11SEProtocol-hedging-" + n.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return hedgingExecutor;
+    }
+
+    /**
+     * Closes the pooled HTTP connections and stops the worker threads of the
+     * asynchronous primitives (already submitted requests are completed). The
+     * subscriptions are unsubscribed and the WebSocket is released (see
+     * {@link SEPAWebsocketManager}).
+     */
+    @Override
+    public void close() {
+        if (wsClient != null) wsClient.close();
+        synchronized (this) {
+            closed = true;
+            if (wssClient != null) wssClient.close();
+            wssClient = null;
+            if (hedgingExecutor != null) hedgingExecutor.shutdown();
+            hedgingExecutor = null;
+        }
+        if (secureTransport != null) secureTransport.close();
+        super.close();
+    }
+
+    /**
+     * Gets the endpoint of a primitive sent over HTTPS. The endpoints are
+     * computed again only if the properties have changed.
+     */
+    private SPARQL11SEEndpoint getEndpoint(SPARQL11SEPrimitive op) {
+        int version = properties.getVersion();
+        synchronized (this) {
+            if (endpoints == null || endpointsVersion != version) {
+                endpoints = SPARQL11SEEndpoint.table(properties);
+                endpointsVersion = version;
+            }
+            return endpoints.get(op);
+        }
+    }
+
     protected Response executeSPARQL11SEPrimitive(SPARQL11SEPrimitive op) {
         return executeSPARQL11SEPrimitive(op, null);
     }
 
     protected Response executeSPARQL11SEPrimitive(SPARQL11SEPrimitive op, Object request) {
-        // Create the HTTPS request
-        //URI uri;
-        URL postUrl = null;
-
-        // Headers and body
-        String contentType = null;
+        // Body (URL and headers are taken from the endpoints table)
         String body = null;
-        String accept = null;
-        String authorization = null;
 
         switch (op) {
             case SUBSCRIBE:
                 SubscribeRequest subscribe = (SubscribeRequest) request;
-                return wsClient.subscribe(subscribe.getSPARQL());
+                return wsClient.subscribe(subscribe.getSPARQL(), subscribe.getAlias());
             case UNSUBSCRIBE:
                 UnsubscribeRequest unsubscribe = (UnsubscribeRequest) request;
                 return wsClient.unsubscribe(unsubscribe.getSubscribeUUID());
-            // case SECURESUBSCRIBE:
-            // SubscribeRequest securesubscribe = (SubscribeRequest) request;
-            // try {
-            // return wssClient.subscribe(securesubscribe.getSPARQL(),
-            // securesubscribe.getAlias(),
-            // properties.getAccessToken());
-            // } catch (SEPASecurityException e2) {
-            // return new ErrorResponse(500,e2.getMessage());
-            // }
-            // case SECUREUNSUBSCRIBE:
-            // UnsubscribeRequest secureunsubscribe = (UnsubscribeRequest) request;
-            // try {
-            // return wssClient.unsubscribe(secureunsubscribe.getSubscribeUUID(),
-            // properties.getAccessToken());
-            // } catch (SEPASecurityException e2) {
-            // return new ErrorResponse(500,e2.getMessage());
-            // }
+            case SECURESUBSCRIBE:
+                SubscribeRequest securesubscribe = (SubscribeRequest) request;
+                try {
+                    return getSecureWebsocket().subscribe(securesubscribe.getSPARQL(), securesubscribe.getAlias(), bearer);
+                } catch (SEPAProtocolException e) {
+                    return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage());
+                }
+            case SECUREUNSUBSCRIBE:
+                UnsubscribeRequest secureunsubscribe = (UnsubscribeRequest) request;
+                try {
+                    return getSecureWebsocket().unsubscribe(secureunsubscribe.getSubscribeUUID(),
+                            "Bearer " + properties.getAccessToken());
+                } catch (SEPASecurityException | SEPAProtocolException e) {
+                    return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage());
+                }
             default:
                 break;
         }
 
+        SPARQL11SEEndpoint endpoint = getEndpoint(op);
+        if (endpoint == null)
+            return new ErrorResponse(0, HttpURLConnection.HTTP_INTERNAL_ERROR, "Primitive not supported: " + op);
+        if (!endpoint.isAvailable()) return endpoint.getError();
+
         switch (op) {
             case REGISTER:
-                try {
-                    postUrl = new URL("https://" + properties.getHost() + ":" + properties.getHttpsPort() + properties.getRegisterPath());
-                } catch (MalformedURLException e) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_NOT_FOUND, e.getMessage());
-                }
-                accept = "application/json";
-                contentType = "application/json";
                 String identity = (String) request;
                 body = new RegistrationRequest(identity).toString();
                 break;
-            case REQUESTTOKEN:
-                String basic;
-                try {
-                    basic = properties.getBasicAuthorization();
-                } catch (SEPASecurityException e2) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e2.getMessage());
-                }
-                if (basic == null)
-                    return new ErrorResponse(0, HttpURLConnection.HTTP_UNAUTHORIZED, "Basic authorization in null. Register first");
-
-                try {
-                    postUrl = new URL("https://" + properties.getHost() + ":" + properties.getHttpsPort() + properties.getTokenRequestPath());
-                } catch (MalformedURLException e) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_NOT_FOUND, e.getMessage());
-                }
-
-                authorization = "Basic " + basic;
-                contentType = "application/json";
-                accept = "application/json";
-                break;
             case SECUREUPDATE:
-                try {
-                    postUrl = new URL("https://" + properties.getHost() + ":" + properties.getHttpsPort() + properties.getSecurePath() + properties.getUpdatePath());
-                } catch (MalformedURLException e) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_NOT_FOUND, e.getMessage());
-                }
-
-                accept = "text/plain";
-                contentType = "application/x-www-form-urlencoded";
-                try {
-                    authorization = "Bearer " + properties.getAccessToken();
-                } catch (SEPASecurityException e2) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e2.getMessage());
-                }
-
                 String encodedContent;
                 try {
                     encodedContent = URLEncoder.encode(((UpdateRequest) request).getSPARQL(), "UTF-8");
@@ -254,71 +1001,95 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
                 body = "update=" + encodedContent;
                 break;
             case SECUREQUERY:
-                try {
-                    postUrl = new URL("https://" + properties.getHost() + ":" + properties.getHttpsPort() + properties.getSecurePath() + properties.getQueryPath());
-                } catch (MalformedURLException e) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_NOT_FOUND, e.getMessage());
-                }
-
-                accept = "application/sparql-results+json";
-                contentType = "application/sparql-query";
-                try {
-                    authorization = "Bearer " + properties.getAccessToken();
-                } catch (SEPASecurityException e2) {
-                    return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e2.getMessage());
-                }
-
                 body = ((QueryRequest) request).getSPARQL();
                 break;
             default:
                 break;
         }
 
+        // Secure queries and updates have the same deadlines of the others
+        long deadline = 0;
+        if (op == SPARQL11SEPrimitive.SECUREQUERY) deadline = properties.getQueryDeadline();
+        else if (op == SPARQL11SEPrimitive.SECUREUPDATE) deadline = properties.getUpdateDeadline();
+
+        // HTTP/2 (h2) transport
+        if (secureTransport != null) return executeSecure(op, endpoint, body, deadline);
+
         // Create the request
         HttpURLConnection httpRequest = null;
+        InputStream in = null;
         String jsonResponse = null;
+        // Kept alive only if the body has been read until the end
+        boolean read = false;
+        // Connect and read timeouts bound each operation: the timer bounds the whole request
+        ScheduledFuture<?> deadlineTask = null;
+        final AtomicBoolean expired = new AtomicBoolean(false);
 
         try {
-            httpRequest = (HttpURLConnection) postUrl.openConnection();
-
-            if (contentType != null)
-                httpRequest.setRequestProperty("Content-Type", contentType);
-            if (accept != null)
-                httpRequest.setRequestProperty("Accept", accept);
-            if (authorization != null)
-                httpRequest.setRequestProperty("Authorization", authorization);
+            httpRequest = (HttpURLConnection) endpoint.getUrl().openConnection();
+
+            if (deadline > 0) {
+                httpRequest.setConnectTimeout(toTimeout(deadline));
+                httpRequest.setReadTimeout(toTimeout(deadline));
+
+                final HttpURLConnection connection = httpRequest;
+                deadlineTask = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expired.set(true);
+                        connection.disconnect();
+                    }
+                }, deadline, TimeUnit.MILLISECONDS);
+            }
+
+            // The TLS sessions are resumed by the other secure connections of the process
+            if (httpRequest instanceof HttpsURLConnection)
+                ((HttpsURLConnection) httpRequest).setSSLSocketFactory(TLSContext.getDefault().getSocketFactory());
+
+            if (endpoint.getContentType() != null)
+                httpRequest.setRequestProperty("Content-Type", endpoint.getContentType());
+            if (endpoint.getAccept() != null)
+                httpRequest.setRequestProperty("Accept", endpoint.getAccept());
+            if (endpoint.getAuthorization() != null)
+                httpRequest.setRequestProperty("Authorization", endpoint.getAuthorization());
             if (body != null) {
-                httpRequest.setFixedLengthStreamingMode(body.length());
+                byte[] data = body.getBytes("UTF-8");
+                httpRequest.setDoOutput(true);
+                httpRequest.setFixedLengthStreamingMode(data.length);
 
                 OutputStream os = httpRequest.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(
-                        new OutputStreamWriter(os, "UTF-8"));
-                writer.write(body);
-                writer.flush();
-                writer.close();
+                os.write(data);
                 os.close();
             }
 
             logger.debug("Request: " + httpRequest);
 
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(
-                            httpRequest.getInputStream()));
-            StringBuffer sb = new StringBuffer("");
-            String line = "";
-
-            while ((line = in.readLine()) != null) {
+            // The body is read until the end (and not disconnected) so that the connection is kept alive
+            int code = httpRequest.getResponseCode();
+            in = (code >= 400 ? httpRequest.getErrorStream() : httpRequest.getInputStream());
+            if (in == null) return new ErrorResponse(0, code, httpRequest.getResponseMessage());
 
-                sb.append(line);
-                break;
+            // Query results are handed directly to the JSON parser
+            if (op == SPARQL11SEPrimitive.SECUREQUERY && code < 400) {
+                Response results = parseSecureQueryResults(in);
+                read = !results.isError();
+                return results;
             }
 
-            in.close();
-            jsonResponse = sb.toString();
+            jsonResponse = new String(HTTPBodyInputStream.readFully(in, httpRequest.getContentLength()), "UTF-8");
+            read = true;
         } catch (IOException e) {
+            if (expired.get() || (deadline > 0 && e instanceof InterruptedIOException)) return deadlineExpired(op, deadline);
             return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage());
         } finally {
-            if (httpRequest != null) httpRequest.disconnect();
+            if (deadlineTask != null) deadlineTask.cancel(false);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!read && httpRequest != null) httpRequest.disconnect();
         }
 
         // Parsing the response
@@ -326,6 +1097,53 @@ public class SPARQL11SEProtocol extends SPARQL11Protocol {
 
     }
 
+    /**
+     * Sends a primitive over HTTPS with the HTTP/2 transport. Primitives with
+     * a body are sent with POST, the others with GET (as HttpURLConnection does).
+     */
+    private Response executeSecure(SPARQL11SEPrimitive op, SPARQL11SEEndpoint endpoint, String body, long deadline) {
+        InputStream in = null;
+        try {
+            HTTPRequest request = new HTTPRequest(body != null ? "POST" : "GET", endpoint.getUrl().getFile(), body);
+            request.setHeader("Content-Type", endpoint.getContentType());
+            request.setHeader("Accept", endpoint.getAccept());
+            request.setHeader("Authorization", endpoint.getAuthorization());
+
+            logger.debug("Request: " + request);
+
+            HTTPResponse response = secureTransport.execute(request, toTimeout(deadline));
+            in = response.getContent();
+
+            if (op == SPARQL11SEPrimitive.SECUREQUERY && response.getCode() < 400) return parseSecureQueryResults(in);
+
+            return parseSPARQL11SEResponse(response.getBodyAsString(), op);
+        } catch (IOException e) {
+            if (deadline > 0 && e instanceof InterruptedIOException) return deadlineExpired(op, deadline);
+            return new ErrorResponse(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static Response parseSecureQueryResults(InputStream in) throws IOException {
+        JsonObject json;
+        try {
+            json = new JsonParser().parse(new InputStreamReader(in, "UTF-8")).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            // I/O errors are wrapped by the JSON parser
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            return new ErrorResponse(0, HttpURLConnection.HTTP_INTERNAL_ERROR, "Malformed query results: " + e.getMessage());
+        }
+        if (json.get("code") != null && json.get("code").getAsInt() >= 400)
+            return new ErrorResponse(0, json.get("code").getAsInt(), json.get("body").getAsString());
+        return new QueryResponse(json);
+    }
+
     protected Response parseSPARQL11SEResponse(String response, SPARQL11SEPrimitive op) {
         if (response == null)
             return new ErrorResponse(0, HttpURLConnection.HTTP_INTERNAL_ERROR, "Response is null");
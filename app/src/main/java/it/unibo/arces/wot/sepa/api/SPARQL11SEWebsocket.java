@@ -2,31 +2,52 @@ package it.unibo.arces.wot.sepa.api;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import it.unibo.arces.wot.sepa.android.logging.LogManager;
 import it.unibo.arces.wot.sepa.android.logging.Logger;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
-
-import org.java_websocket.exceptions.WebsocketNotConnectedException;
-
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
 import it.unibo.arces.wot.sepa.commons.response.Notification;
 import it.unibo.arces.wot.sepa.commons.response.Response;
 
+/**
+ * The WebSocket client of a SPARQL 1.1 SE client. The socket is shared with
+ * the other clients of the process that subscribe to the same broker (see
+ * {@link SEPAWebsocketManager}): the handler receives only the notifications
+ * of the subscriptions made with this client.
+ */
 public class SPARQL11SEWebsocket implements ISubscriptionHandler {
     private Logger logger = LogManager.getLogger("SPARQL11SEWebsocket");
 
-    private long TIMEOUT = 5000;
+    // The default timeout (ms) of the requests
+    static final long TIMEOUT = 5000;
 
     private ISubscriptionHandler handler;
-    private URI wsURI = null;
-    private SEPAWebsocketClient client = null;
-    private boolean connected = false;
+    private final SEPAWebsocketManager connection;
+    private boolean closed = false;
+
+    // Delivers the notifications by worker threads (null to deliver them on the thread reading the socket)
+    private volatile NotificationDispatcher dispatcher = null;
 
     public SPARQL11SEWebsocket(String wsUrl, ISubscriptionHandler handler) throws URISyntaxException {
-        wsURI = new URI(wsUrl);
+        this(wsUrl, null, handler);
+    }
+
+    /**
+     * Instantiates a new WebSocket connected to a Unix domain socket (e.g., a
+     * broker running on the same host). The URL is used only by the handshake.
+     *
+     * @param wsUrl      the URL
+     * @param unixSocket the path of the socket (null to use TCP)
+     * @param handler    the handler of the notifications
+     * @throws URISyntaxException
+     */
+    public SPARQL11SEWebsocket(String wsUrl, String unixSocket, ISubscriptionHandler handler) throws URISyntaxException {
+        URI wsURI = new URI(wsUrl);
 
         if (handler == null) {
             logger.fatal("Notification handler is null. Client cannot be initialized");
@@ -34,75 +55,280 @@ public class SPARQL11SEWebsocket implements ISubscriptionHandler {
         }
 
         this.handler = handler;
+
+        connection = SEPAWebsocketManager.acquire(wsURI, unixSocket, this);
+    }
+
+    /**
+     * Gets the (shared) connection.
+     *
+     * @return the connection
+     */
+    public SEPAWebsocketManager getConnection() {
+        return connection;
+    }
+
+    /**
+     * Sets the dispatcher of the notifications. The previous one (if any) is
+     * closed.
+     *
+     * @param dispatcher the dispatcher (null to deliver the notifications on the thread reading the socket)
+     */
+    public void setNotificationDispatcher(NotificationDispatcher dispatcher) {
+        NotificationDispatcher previous = this.dispatcher;
+        this.dispatcher = dispatcher;
+        if (previous != null) previous.close();
+    }
+
+    public NotificationDispatcher getNotificationDispatcher() {
+        return dispatcher;
     }
 
     public Response subscribe(String sparql) {
-        if (sparql == null)
-            return new ErrorResponse(500, "SPARQL query is null");
-
-        // Create SPARQL 1.1 Subscribe request
-        JsonObject request = new JsonObject();
-        request.add("subscribe", new JsonPrimitive(sparql));
-
-        if (!connected) {
-            client = new SEPAWebsocketClient(wsURI, this);
-
-            client.connect();
-            if (!client.getConnection().isOpen()) {
-                synchronized (this) {
-                    try {
-                        wait(TIMEOUT);
-                    } catch (InterruptedException e) {
-                    }
-                }
-            }
-            if (!client.getConnection().isOpen()) {
-                logger.error("Not connected");
-                return new ErrorResponse(408, "Not connected");
-            }
-            connected = true;
-        }
+        return subscribe(sparql, null);
+    }
 
-        // Send request and wait for response
-        Response ret = null;
-        try {
-            ret = client.sendAndReceive(request.toString(), TIMEOUT);
-        } catch (WebsocketNotConnectedException e) {
-            logger.error(e.getMessage());
-            return new ErrorResponse(408, e.getMessage());
-        }
+    public Response subscribe(String sparql, String alias) {
+        return subscribe(sparql, alias, (IAuthorizationProvider) null);
+    }
 
-        if (ret.isSubscribeResponse()) connected = true;
+    /**
+     * Sends a secure subscribe request and waits for the response.
+     *
+     * @param sparql        the SPARQL query
+     * @param alias         the alias (may be null)
+     * @param authorization the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @return the response
+     */
+    public Response subscribe(String sparql, String alias, String authorization) {
+        return subscribe(sparql, alias, SEPAWebsocketManager.constant(authorization));
+    }
 
+    /**
+     * Sends a secure subscribe request and waits for the response. The
+     * authorization is asked to the provider each time the subscription is
+     * made (e.g., again after a reconnection).
+     *
+     * @param sparql        the SPARQL query
+     * @param alias         the alias (may be null)
+     * @param authorization the provider of the authorization (null if not secure)
+     * @return the response
+     */
+    public Response subscribe(String sparql, String alias, IAuthorizationProvider authorization) {
+        Future<Response> response = subscribeAsync(sparql, alias, authorization, null);
+        if (response.isDone()) return getResponse(response);
+        return SEPAWebsocketClient.waitResponse(response, TIMEOUT);
+    }
+
+    /**
+     * Sends many subscribe requests and waits for the responses.
+     *
+     * @param sparql the SPARQL queries
+     * @return the responses, in the order of the queries
+     * @see #subscribeAll(List, List, String)
+     */
+    public List<Response> subscribeAll(List<String> sparql) {
+        return subscribeAll(sparql, null, (IAuthorizationProvider) null);
+    }
+
+    /**
+     * Sends many (secure) subscribe requests and waits for the responses. All
+     * the requests are sent before waiting for the first response (i.e., the
+     * batch takes about the time of the slowest response, not the sum of the
+     * response times): the timeout (5 s, see
+     * {@link #subscribeAll(List, List, IAuthorizationProvider, long)}) applies
+     * to the whole batch.
+     * <p>
+     * A failed subscription does not affect the others: its response is an
+     * {@link ErrorResponse} (408 if not received in time).
+     *
+     * @param sparql        the SPARQL queries
+     * @param aliases       the alias of each query (may be null, as may be each alias)
+     * @param authorization the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @return the responses, in the order of the queries
+     * @throws IllegalArgumentException if the aliases are not as many as the queries
+     */
+    public List<Response> subscribeAll(List<String> sparql, List<String> aliases, String authorization) {
+        return subscribeAll(sparql, aliases, SEPAWebsocketManager.constant(authorization));
+    }
+
+    /**
+     * Sends many secure subscribe requests and waits for the responses (see
+     * {@link #subscribeAll(List, List, String)}). The authorization is asked to
+     * the provider each time a subscription is made.
+     *
+     * @param sparql        the SPARQL queries
+     * @param aliases       the alias of each query (may be null, as may be each alias)
+     * @param authorization the provider of the authorization (null if not secure)
+     * @return the responses, in the order of the queries
+     * @throws IllegalArgumentException if the aliases are not as many as the queries
+     */
+    public List<Response> subscribeAll(List<String> sparql, List<String> aliases, IAuthorizationProvider authorization) {
+        return subscribeAll(sparql, aliases, authorization, TIMEOUT);
+    }
+
+    /**
+     * Sends many secure subscribe requests and waits for the responses (see
+     * {@link #subscribeAll(List, List, String)}) at most for the given time.
+     * <p>
+     * The subscriptions whose response is not received in time are abandoned:
+     * if the response is received later, they are unsubscribed.
+     *
+     * @param sparql        the SPARQL queries
+     * @param aliases       the alias of each query (may be null, as may be each alias)
+     * @param authorization the provider of the authorization (null if not secure)
+     * @param timeout       the timeout (ms) of the whole batch
+     * @return the responses, in the order of the queries
+     * @throws IllegalArgumentException if the aliases are not as many as the queries
+     */
+    public List<Response> subscribeAll(List<String> sparql, List<String> aliases, IAuthorizationProvider authorization,
+                                       long timeout) {
+        if (aliases != null && aliases.size() != sparql.size())
+            throw new IllegalArgumentException("Aliases: " + aliases.size() + " queries: " + sparql.size());
+
+        ArrayList<Future<Response>> responses = new ArrayList<Future<Response>>(sparql.size());
+        for (int i = 0; i < sparql.size(); i++)
+            responses.add(subscribeAsync(sparql.get(i), (aliases != null ? aliases.get(i) : null), authorization, null));
+
+        long deadline = System.currentTimeMillis() + timeout;
+        ArrayList<Response> ret = new ArrayList<Response>(responses.size());
+        for (Future<Response> response : responses) {
+            if (response.isDone()) ret.add(getResponse(response));
+            else ret.add(SEPAWebsocketClient.waitResponse(response, Math.max(deadline - System.currentTimeMillis(), 0)));
+        }
         return ret;
     }
 
+    /**
+     * Sends a subscribe request without waiting for the response. Many
+     * requests can be in progress at the same time on the same socket.
+     *
+     * @param sparql  the SPARQL query
+     * @param alias   the alias (may be null)
+     * @param handler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribeAsync(String sparql, String alias, IResponseHandler handler) {
+        return subscribeAsync(sparql, alias, (IAuthorizationProvider) null, handler);
+    }
+
+    /**
+     * Sends a secure subscribe request without waiting for the response.
+     *
+     * @param sparql        the SPARQL query
+     * @param alias         the alias (may be null)
+     * @param authorization the authorization (e.g., "Bearer " followed by the JWT) or null
+     * @param handler       the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribeAsync(String sparql, String alias, String authorization, IResponseHandler handler) {
+        return subscribeAsync(sparql, alias, SEPAWebsocketManager.constant(authorization), handler);
+    }
+
+    /**
+     * Sends a secure subscribe request without waiting for the response. The
+     * authorization is asked to the provider each time the subscription is
+     * made (e.g., again after a reconnection).
+     *
+     * @param sparql        the SPARQL query
+     * @param alias         the alias (may be null)
+     * @param authorization the provider of the authorization (null if not secure)
+     * @param handler       the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> subscribeAsync(String sparql, String alias, IAuthorizationProvider authorization,
+                                           IResponseHandler handler) {
+        if (sparql == null) return SEPAWebsocketManager.completed(new ErrorResponse(500, "SPARQL query is null"), handler);
+        if (isClosed()) return SEPAWebsocketManager.completed(new ErrorResponse(500, "Client closed"), handler);
+
+        return connection.subscribe(sparql, alias, authorization, this, handler);
+    }
+
     public Response unsubscribe(String spuid) {
-        if (!connected) {
-            logger.error("Not connected");
-            return new ErrorResponse(408, "Not connected");
-        }
+        return unsubscribe(spuid, null);
+    }
 
-        if (spuid == null)
-            return new ErrorResponse(500, "SPUID is null");
+    /**
+     * Sends a secure unsubscribe request and waits for the response.
+     *
+     * @param spuid         the subscription identifier
+     * @param authorization the authorization (null to use the one of the subscribe request)
+     * @return the response
+     */
+    public Response unsubscribe(String spuid, String authorization) {
+        Future<Response> response = unsubscribeAsync(spuid, authorization, null);
+        if (response.isDone()) return getResponse(response);
+        return SEPAWebsocketClient.waitResponse(response, TIMEOUT);
+    }
+
+    /**
+     * Sends an unsubscribe request without waiting for the response.
+     *
+     * @param spuid   the subscription identifier
+     * @param handler the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> unsubscribeAsync(String spuid, IResponseHandler handler) {
+        return unsubscribeAsync(spuid, null, handler);
+    }
+
+    /**
+     * Sends a secure unsubscribe request without waiting for the response.
+     *
+     * @param spuid         the subscription identifier
+     * @param authorization the authorization (null to use the one of the subscribe request)
+     * @param handler       the handler of the response (may be null)
+     * @return the future response
+     */
+    public Future<Response> unsubscribeAsync(String spuid, String authorization, IResponseHandler handler) {
+        if (spuid == null) return SEPAWebsocketManager.completed(new ErrorResponse(500, "SPUID is null"), handler);
+        if (isClosed()) return SEPAWebsocketManager.completed(new ErrorResponse(500, "Client closed"), handler);
 
-        // Create SPARQL 1.1 Unsubscribe request
-        JsonObject request = new JsonObject();
-        if (spuid != null)
-            request.add("unsubscribe", new JsonPrimitive(spuid));
+        if (dispatcher == null) return connection.unsubscribe(spuid, authorization, handler);
+
+        // The queue of the subscription is removed once unsubscribed
+        final String subscription = spuid;
+        final IResponseHandler responseHandler = handler;
+        return connection.unsubscribe(spuid, authorization, new IResponseHandler() {
+            @Override
+            public void onResponse(Response response) {
+                NotificationDispatcher dispatcher = SPARQL11SEWebsocket.this.dispatcher;
+                if (response.isUnsubscribeResponse() && dispatcher != null) dispatcher.remove(subscription);
+                if (responseHandler != null) responseHandler.onResponse(response);
+            }
+        });
+    }
 
+    /**
+     * Releases the shared connection: the subscriptions of this client are
+     * unsubscribed (the socket is closed if no other client is using it).
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        connection.release(this);
+        if (dispatcher != null) dispatcher.close();
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private static Response getResponse(Future<Response> response) {
         try {
-            // Send request and wait for response
-            return client.sendAndReceive(request.toString(), TIMEOUT);
-        } catch (WebsocketNotConnectedException e) {
-            logger.error(e.getMessage());
-            return new ErrorResponse(408, e.getMessage());
+            return response.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return new ErrorResponse(500, e.getMessage());
         }
     }
 
     @Override
     public void onSemanticEvent(Notification notify) {
-        handler.onSemanticEvent(notify);
+        NotificationDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) dispatcher.dispatch(notify);
+        else handler.onSemanticEvent(notify);
     }
 
     @Override
@@ -112,10 +338,7 @@ public class SPARQL11SEWebsocket implements ISubscriptionHandler {
 
     @Override
     public void onBrokenSocket() {
-        if (connected) {
-            connected = false;
-            handler.onBrokenSocket();
-        }
+        handler.onBrokenSocket();
     }
 
     @Override
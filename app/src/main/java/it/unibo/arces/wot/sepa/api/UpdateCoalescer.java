@@ -0,0 +1,277 @@
+/* This class merges SPARQL 1.1 updates into a single request
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+import it.unibo.arces.wot.sepa.commons.request.UpdateRequest;
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+
+/**
+ * This class buffers SPARQL 1.1 update operations and sends them as a single
+ * update request (https://www.w3.org/TR/sparql11-update/#updateLanguage):
+ * <p>
+ * <pre>
+ * PREFIX ... operation_1 ; operation_2 ; ... ; operation_n
+ * </pre>
+ * <p>
+ * The buffered operations are flushed when <i>maxUpdates</i> operations or
+ * <i>maxBytes</i> bytes (UTF-8) have been buffered, or <i>linger</i> ms after
+ * the first operation of the batch has been added. The response of the request
+ * is passed to the handler of each operation of the batch.
+ * <p>
+ * Batches are sent with the asynchronous update primitive of
+ * {@link SPARQL11SEProtocol}, so (as for single asynchronous updates) two
+ * batches can be executed concurrently. Sending a batch never blocks (e.g.,
+ * the linger thread shared by all the coalescers): if the request cannot be
+ * sent (e.g., too many requests in flight) each operation of the batch gets
+ * the error response.
+ */
+public class UpdateCoalescer {
+    private static final Logger logger = LogManager.getLogger("UpdateCoalescer");
+
+    /**
+     * The linger timer (a single daemon thread for all the coalescers).
+     */
+    private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "UpdateCoalescer-linger");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final String SEPARATOR = " ;\n";
+
+    private final SPARQL11SEProtocol protocol;
+    private final String prologue;
+    private final int maxUpdates;
+    private final int maxBytes;
+    private final long linger;
+
+    // The current batch (and its length in bytes)
+    private StringBuilder batch = new StringBuilder();
+    private int batchBytes = 0;
+    private List<ResponseFuture> futures = new ArrayList<ResponseFuture>();
+    private ScheduledFuture<?> lingerTask = null;
+
+    private boolean closed = false;
+
+    // Statistics
+    private long updates = 0;
+    private long requests = 0;
+
+    /**
+     * Instantiates a new update coalescer.
+     *
+     * @param protocol   the protocol used to send the updates
+     * @param prologue   the prologue (i.e., PREFIX declarations) sent once at the beginning of each request (may be null)
+     * @param maxUpdates the maximum number of operations of a request
+     * @param maxBytes   the maximum length (UTF-8 bytes) of a request (it is exceeded only by a single operation longer than that)
+     * @param linger     the maximum time (ms) an operation waits for other operations
+     */
+    public UpdateCoalescer(SPARQL11SEProtocol protocol, String prologue, int maxUpdates, int maxBytes, long linger) {
+        if (protocol == null) throw new IllegalArgumentException("Protocol is null");
+        if (maxUpdates <= 0) throw new IllegalArgumentException("Max updates must be > 0");
+
+        this.protocol = protocol;
+        this.prologue = (prologue == null ? "" : prologue);
+        this.maxUpdates = maxUpdates;
+        this.maxBytes = maxBytes;
+        this.linger = linger;
+    }
+
+    /**
+     * Adds an update operation to the current batch.
+     *
+     * @param operation the update operation (without prologue)
+     * @param handler   the handler of the response (may be null)
+     * @return the response to the batch the operation has been sent with
+     */
+    public Future<Response> add(String operation, IResponseHandler handler) {
+        ResponseFuture future = new ResponseFuture(handler);
+
+        // At most two batches are ready: the current one (if the operation does not fit) and the new one
+        String previous = null;
+        List<ResponseFuture> previousFutures = null;
+        String ready = null;
+        List<ResponseFuture> readyFutures = null;
+
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Update coalescer closed");
+
+            int bytes = utf8Length(operation);
+            if (!futures.isEmpty() && batchBytes + SEPARATOR.length() + bytes > maxBytes) {
+                previousFutures = futures;
+                previous = take();
+            }
+
+            if (futures.isEmpty()) {
+                batch.append(prologue);
+                batchBytes = utf8Length(prologue);
+            } else {
+                batch.append(SEPARATOR);
+                batchBytes += SEPARATOR.length();
+            }
+            batch.append(operation);
+            batchBytes += bytes;
+            futures.add(future);
+            updates++;
+
+            if (futures.size() >= maxUpdates || batchBytes >= maxBytes || linger <= 0) {
+                readyFutures = futures;
+                ready = take();
+            } else if (lingerTask == null) scheduleLinger();
+        }
+
+        if (previous != null) send(previous, previousFutures);
+        if (ready != null) send(ready, readyFutures);
+
+        return future;
+    }
+
+    /**
+     * Sends the buffered operations (if any).
+     */
+    public void flush() {
+        String ready;
+        List<ResponseFuture> readyFutures;
+
+        synchronized (this) {
+            if (futures.isEmpty()) return;
+            readyFutures = futures;
+            ready = take();
+        }
+
+        send(ready, readyFutures);
+    }
+
+    /**
+     * Sends the buffered operations. Further operations cannot be added.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    private void scheduleLinger() {
+        lingerTask = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    logger.error("Linger flush failed: " + e.getMessage());
+                }
+            }
+        }, linger, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the current batch (to be called holding the lock).
+     */
+    private String take() {
+        if (lingerTask != null) lingerTask.cancel(false);
+        lingerTask = null;
+
+        String ret = batch.toString();
+        batch = new StringBuilder(ret.length());
+        batchBytes = 0;
+        futures = new ArrayList<ResponseFuture>();
+        requests++;
+        return ret;
+    }
+
+    private void send(String sparql, final List<ResponseFuture> batchFutures) {
+        logger.debug("<UPDATE> " + batchFutures.size() + " operations (" + sparql.length() + " chars)");
+
+        try {
+            protocol.updateAsync(new UpdateRequest(sparql), new IResponseHandler() {
+                @Override
+                public void onResponse(Response response) {
+                    for (ResponseFuture future : batchFutures) future.complete(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            // E.g., the protocol has been closed
+            ErrorResponse error = new ErrorResponse(500, "Update request not sent: " + e.getMessage());
+            for (ResponseFuture future : batchFutures) future.complete(error);
+        }
+    }
+
+    /**
+     * The length of a string encoded in UTF-8.
+     */
+    static int utf8Length(String s) {
+        int ret = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) ret += 1;
+            else if (c < 0x800) ret += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                ret += 4;
+                i++;
+            } else ret += 3;
+        }
+        return ret;
+    }
+
+    public int getMaxUpdates() {
+        return maxUpdates;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getLinger() {
+        return linger;
+    }
+
+    /**
+     * Gets the number of operations added so far.
+     *
+     * @return the number of operations
+     */
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Gets the number of update requests sent so far.
+     *
+     * @return the number of requests
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+}
@@ -0,0 +1,163 @@
+/* This class represents a message received on the WebSocket of the SPARQL 1.1 SE Subscribe Language
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * A message received on the subscribe WebSocket, classified by its top-level
+ * members.
+ * <p>
+ * Pings are recognized by the first member, without parsing the frame. The
+ * other frames are parsed as a stream by a single reader: the JSON elements
+ * are built as they are read (as by Gson), without a parser for each member.
+ * <p>
+ * A binary frame carries the same object encoded in CBOR (see
+ * {@link CborCodec}).
+ */
+final class WebsocketMessage {
+    enum Type {
+        PING, SUBSCRIBED, UNSUBSCRIBED, NOTIFICATION, ERROR, UNKNOWN
+    }
+
+    private static final WebsocketMessage ping = new WebsocketMessage(Type.PING, null);
+    private static final String pingMember = "\"ping\"";
+
+    final Type type;
+    // The message (null for pings)
+    final JsonObject json;
+
+    private WebsocketMessage(Type type, JsonObject json) {
+        this.type = type;
+        this.json = json;
+    }
+
+    /**
+     * Parses a message.
+     *
+     * @param message the text of the frame
+     * @return the message
+     * @throws JsonSyntaxException if the message is not a JSON object
+     */
+    static WebsocketMessage parse(String message) {
+        if (isFirstMember(message, pingMember)) return ping;
+
+        JsonReader reader = new JsonReader(new StringReader(message));
+        // As JsonParser
+        reader.setLenient(true);
+        JsonObject json = new JsonObject();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("ping")) return ping;
+                json.add(name, read(reader));
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+
+        return classify(json);
+    }
+
+    /**
+     * Reads a JSON element.
+     */
+    private static JsonElement read(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JsonObject object = new JsonObject();
+                reader.beginObject();
+                while (reader.hasNext()) object.add(reader.nextName(), read(reader));
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JsonArray array = new JsonArray();
+                reader.beginArray();
+                while (reader.hasNext()) array.add(read(reader));
+                reader.endArray();
+                return array;
+            case STRING:
+                return new JsonPrimitive(reader.nextString());
+            case NUMBER:
+                // As Gson (numbers are compared and hashed as the ones it parses)
+                return new JsonPrimitive(new LazilyParsedNumber(reader.nextString()));
+            case BOOLEAN:
+                return new JsonPrimitive(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return JsonNull.INSTANCE;
+            default:
+                throw new IllegalStateException("Unexpected " + reader.peek());
+        }
+    }
+
+    /**
+     * Parses a binary message.
+     *
+     * @param message the CBOR item of the frame
+     * @return the message
+     * @throws JsonSyntaxException if the message is not a CBOR map
+     */
+    static WebsocketMessage parse(ByteBuffer message) {
+        JsonElement json = CborCodec.decode(message);
+        if (!json.isJsonObject()) throw new JsonSyntaxException("Not an object: " + json);
+        if (json.getAsJsonObject().get("ping") != null) return ping;
+        return classify(json.getAsJsonObject());
+    }
+
+    private static WebsocketMessage classify(JsonObject json) {
+        // Same precedence as the members are checked by the client
+        if (json.get("subscribed") != null) return new WebsocketMessage(Type.SUBSCRIBED, json);
+        if (json.get("unsubscribed") != null) return new WebsocketMessage(Type.UNSUBSCRIBED, json);
+        if (json.get("results") != null) return new WebsocketMessage(Type.NOTIFICATION, json);
+        if (json.get("code") != null) return new WebsocketMessage(Type.ERROR, json);
+        return new WebsocketMessage(Type.UNKNOWN, json);
+    }
+
+    /**
+     * Checks the name of the first member of an object (e.g. {"ping":...}).
+     *
+     * @param message the text of the frame
+     * @param member  the quoted name
+     */
+    private static boolean isFirstMember(String message, String member) {
+        int i = skipWhitespace(message, 0);
+        if (i == message.length() || message.charAt(i) != '{') return false;
+        i = skipWhitespace(message, i + 1);
+        return message.regionMatches(i, member, 0, member.length());
+    }
+
+    private static int skipWhitespace(String message, int i) {
+        while (i < message.length() && Character.isWhitespace(message.charAt(i))) i++;
+        return i;
+    }
+}
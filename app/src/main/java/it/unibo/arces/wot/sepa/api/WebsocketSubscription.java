@@ -0,0 +1,227 @@
+/* This class represents a subscription made over a shared WebSocket
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.BindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.ColumnarBindingsResults;
+
+/**
+ * An active subscription of a {@link SEPAWebsocketManager}.
+ * <p>
+ * The client knows the subscription by the SPUID of the first subscribe
+ * response (the <i>id</i>). When the subscription is made again (e.g., after a
+ * reconnection) the broker returns a new SPUID: notifications are forwarded
+ * with the id.
+ * <p>
+ * If reconnection is enabled, the subscription keeps the current results
+ * (the first results updated by each notification), stored by columns (see
+ * {@link ColumnarBindingsResults}). When the subscription is made again, the
+ * difference between the new first results and the current results is
+ * notified to the client as added and removed bindings.
+ */
+class WebsocketSubscription {
+    final String id;
+    final String sparql;
+    final String alias;
+    // The Authorization of a secure subscription, asked again when it is made again (null if not secure)
+    final IAuthorizationProvider authorization;
+    final ISubscriptionHandler handler;
+
+    // The SPUID of the broker (null if the subscription is lost or is being made again)
+    private String spuid;
+    private boolean resubscribing = false;
+    private boolean cancelled = false;
+
+    // The sequence number of the last notification (-1 if no notification has been received)
+    private int sequence = -1;
+
+    // The current results (null if not kept)
+    private ColumnarBindingsResults results = null;
+
+    WebsocketSubscription(String spuid, String sparql, String alias, IAuthorizationProvider authorization,
+                          ISubscriptionHandler handler) {
+        this.id = spuid;
+        this.spuid = spuid;
+        this.sparql = sparql;
+        this.alias = alias;
+        this.authorization = authorization;
+        this.handler = handler;
+    }
+
+    synchronized String getSpuid() {
+        return spuid;
+    }
+
+    /**
+     * The subscription has been lost (e.g., the socket is closed) or it is
+     * going to be made again.
+     *
+     * @return the SPUID of the lost subscription (null if already lost)
+     */
+    synchronized String lose() {
+        String ret = spuid;
+        spuid = null;
+        return ret;
+    }
+
+    /**
+     * Marks the subscription as being made again.
+     *
+     * @return false if the subscription is not lost, is already being made again or has been cancelled
+     */
+    synchronized boolean startResubscribe() {
+        if (spuid != null || resubscribing || cancelled) return false;
+        resubscribing = true;
+        return true;
+    }
+
+    /**
+     * The subscription could not be made again.
+     */
+    synchronized void resubscribeFailed() {
+        resubscribing = false;
+    }
+
+    /**
+     * The subscription has been made again.
+     *
+     * @param spuid        the new SPUID
+     * @param firstResults the first results
+     * @return the difference from the previous results (null if there is no difference or the results are not kept)
+     */
+    synchronized Notification resubscribed(String spuid, BindingsResults firstResults) {
+        this.spuid = spuid;
+        resubscribing = false;
+        sequence = -1;
+
+        if (results == null || firstResults == null) return null;
+
+        // The multiplicity of the previous solutions (only while computing the difference)
+        HashMap<JsonObject, Integer> previous = new HashMap<JsonObject, Integer>();
+        for (Bindings bindings : results) {
+            JsonObject solution = bindings.toJson();
+            Integer n = previous.get(solution);
+            previous.put(solution, n == null ? 1 : n + 1);
+        }
+        setResults(firstResults);
+        if (results == null) return null;
+
+        ArrayList<Bindings> added = new ArrayList<Bindings>();
+        ArrayList<Bindings> removed = new ArrayList<Bindings>();
+        for (Bindings bindings : results) {
+            JsonObject solution = bindings.toJson();
+            Integer n = previous.get(solution);
+            if (n == null) added.add(new Bindings(solution));
+            else if (n == 1) previous.remove(solution);
+            else previous.put(solution, n - 1);
+        }
+        for (Map.Entry<JsonObject, Integer> entry : previous.entrySet())
+            for (int i = 0; i < entry.getValue(); i++) removed.add(new Bindings(entry.getKey()));
+
+        if (added.isEmpty() && removed.isEmpty()) return null;
+        return new Notification(id, new ARBindingsResults(new BindingsResults(results.getVariables(), added),
+                new BindingsResults(results.getVariables(), removed)), 0);
+    }
+
+    /**
+     * Cancels the subscription (i.e., the client has unsubscribed).
+     *
+     * @return true if the subscription was being made again (the new one has to be unsubscribed)
+     */
+    synchronized boolean cancel() {
+        cancelled = true;
+        return resubscribing;
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Keeps the current results.
+     *
+     * @param firstResults the first results
+     */
+    synchronized void setResults(BindingsResults firstResults) {
+        try {
+            results = new ColumnarBindingsResults(firstResults);
+        } catch (IllegalArgumentException e) {
+            // Not valid RDF terms: the results are not kept
+            results = null;
+        }
+    }
+
+    /**
+     * Updates the subscription with a notification.
+     *
+     * @param notify the notification
+     * @param gaps   the counter of the missed notifications
+     * @return the notification to be forwarded (null if a notification has been missed and the subscription has to be resynchronized)
+     */
+    synchronized Notification update(Notification notify, AtomicLong gaps) {
+        JsonElement number = notify.getAsJsonObject().get("sequence");
+        if (number != null && !number.isJsonNull()) {
+            int next = number.getAsInt();
+            if (sequence != -1 && next != sequence + 1) {
+                gaps.incrementAndGet();
+                // The current results are needed to resynchronize
+                if (results != null) return null;
+            }
+            sequence = next;
+        }
+
+        if (results != null && notify.getARBindingsResults() != null) {
+            ARBindingsResults ar = notify.getARBindingsResults();
+            try {
+                if (ar.toJson().get("removedresults") != null)
+                    for (Bindings bindings : ar.getRemovedBindings()) results.removeAny(bindings);
+                if (ar.toJson().get("addedresults") != null)
+                    for (Bindings bindings : ar.getAddedBindings()) results.add(bindings);
+            } catch (IllegalArgumentException e) {
+                // Not valid RDF terms: the results are no longer kept
+                results = null;
+            }
+        }
+
+        if (id.equals(notify.getSpuid())) return notify;
+
+        // Forwarded with the SPUID known by the client
+        JsonObject json = new JsonObject();
+        for (Map.Entry<String, JsonElement> member : notify.getAsJsonObject().entrySet())
+            json.add(member.getKey(), member.getValue());
+        json.add("spuid", new JsonPrimitive(id));
+        return new Notification(json);
+    }
+
+    synchronized int getSequence() {
+        return sequence;
+    }
+}
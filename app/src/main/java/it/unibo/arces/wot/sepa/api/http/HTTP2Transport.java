@@ -0,0 +1,409 @@
+/* This class implements an HTTP/2 transport
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * An HTTP/2 transport towards a single host and port (based on OkHttp).
+ * <p>
+ * The requests in progress are multiplexed as concurrent streams over a
+ * single connection and headers are compressed (HPACK):
+ * <ul>
+ * <li>"http" scheme: cleartext HTTP/2 with prior knowledge (h2c). The server must support it.</li>
+ * <li>"https" scheme: HTTP/2 negotiated with ALPN (h2). If the server (or the platform) does not support it, HTTP/1.1 is used.</li>
+ * </ul>
+ * At most <i>maxConcurrentRequests</i> requests are in progress at the same
+ * time. The body of the response is streamed.
+ * <p>
+ * Requests sent without blocking the caller (see
+ * {@link #execute(HTTPRequest, int, HTTPCallback)}) are queued by the OkHttp
+ * dispatcher, that executes at most <i>maxConcurrentRequests</i> of them at the
+ * same time on its own threads.
+ */
+public class HTTP2Transport implements HTTPTransport {
+
+    private static final Logger logger = LogManager.getLogger("HTTP2Transport");
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String baseUrl;
+    private final int maxConcurrentRequests;
+
+    private final OkHttpClient client;
+
+    /**
+     * One permit for each request that can be in progress.
+     */
+    private final Semaphore permits;
+
+    // Statistics
+    private final AtomicInteger inProgress = new AtomicInteger(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong http2 = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    /**
+     * Instantiates a new HTTP/2 transport.
+     *
+     * @param scheme                the scheme ("http" for h2c, "https" for h2)
+     * @param host                  the host
+     * @param port                  the port
+     * @param maxConcurrentRequests the maximum number of concurrent requests (i.e., streams)
+     * @param idleTimeout           the time (ms) after that an idle connection is closed
+     */
+    public HTTP2Transport(String scheme, String host, int port, int maxConcurrentRequests, long idleTimeout) {
+        this(scheme, host, port, null, maxConcurrentRequests, idleTimeout);
+    }
+
+    /**
+     * Instantiates a new HTTP/2 transport towards a server listening on a Unix
+     * domain socket.
+     *
+     * @param scheme                the scheme ("http" for h2c, "https" for h2)
+     * @param host                  the host (used by the URLs)
+     * @param port                  the port (used by the URLs)
+     * @param unixSocket            the path of the socket (null to use TCP)
+     * @param maxConcurrentRequests the maximum number of concurrent requests (i.e., streams)
+     * @param idleTimeout           the time (ms) after that an idle connection is closed
+     */
+    public HTTP2Transport(String scheme, String host, int port, String unixSocket, int maxConcurrentRequests, long idleTimeout) {
+        this(scheme, host, port, unixSocket, null, maxConcurrentRequests, idleTimeout);
+    }
+
+    /**
+     * Instantiates a new HTTP/2 transport.
+     *
+     * @param scheme                the scheme ("http" for h2c, "https" for h2)
+     * @param host                  the host
+     * @param port                  the port
+     * @param unixSocket            the path of the socket (null to use TCP)
+     * @param tls                   the TLS context of the "https" scheme (null to use {@link TLSContext#getDefault()})
+     * @param maxConcurrentRequests the maximum number of concurrent requests (i.e., streams)
+     * @param idleTimeout           the time (ms) after that an idle connection is closed
+     */
+    public HTTP2Transport(String scheme, String host, int port, String unixSocket, TLSContext tls,
+                          int maxConcurrentRequests, long idleTimeout) {
+        if (maxConcurrentRequests <= 0) throw new IllegalArgumentException("Max concurrent requests must be > 0");
+        if (!scheme.equals("http") && !scheme.equals("https"))
+            throw new IllegalArgumentException("Unsupported scheme: " + scheme);
+
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.baseUrl = scheme + "://" + host + ":" + port;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+
+        permits = new Semaphore(maxConcurrentRequests, true);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        if (scheme.equals("http")) builder.protocols(Arrays.asList(Protocol.H2_PRIOR_KNOWLEDGE));
+        else builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+
+        if (unixSocket != null) builder.socketFactory(UnixSocket.factory(unixSocket));
+
+        // The TLS sessions are resumed by the other secure connections of the process
+        if (scheme.equals("https")) {
+            if (tls == null) tls = TLSContext.getDefault();
+            builder.sslSocketFactory(tls.getSocketFactory(), tls.getTrustManager());
+            builder.hostnameVerifier(tls.getHostnameVerifier());
+        }
+
+        // Timeouts are set on each call
+        builder.connectTimeout(0, TimeUnit.MILLISECONDS);
+        builder.readTimeout(0, TimeUnit.MILLISECONDS);
+        builder.writeTimeout(0, TimeUnit.MILLISECONDS);
+
+        // Retries are left to the caller (e.g., updates are not idempotent)
+        builder.retryOnConnectionFailure(false);
+
+        // HTTP/2 needs a single connection (more are opened only on HTTP/1.1 fallback)
+        builder.connectionPool(new ConnectionPool(maxConcurrentRequests, idleTimeout > 0 ? idleTimeout : 300000, TimeUnit.MILLISECONDS));
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConcurrentRequests);
+        dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
+        builder.dispatcher(dispatcher);
+
+        client = builder.build();
+    }
+
+    /**
+     * Sends a request as a new stream on the shared connection.
+     *
+     * @param request the request
+     * @param timeout the maximum time (ms) to wait for a free stream and then for the whole response, body included (0 means infinite)
+     * @return the response (the body is streamed)
+     * @throws IOException
+     */
+    @Override
+    public HTTPResponse execute(final HTTPRequest request, int timeout) throws IOException {
+        if (request.isCancelled()) throw new InterruptedIOException("Request cancelled");
+        long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+
+        acquire(timeout);
+        inProgress.incrementAndGet();
+        requests.incrementAndGet();
+
+        Response response = null;
+        try {
+            final Call call = client.newCall(toOkHttp(request));
+            // The call timeout includes reading the body
+            if (deadline > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new SocketTimeoutException("Deadline expired waiting for a stream to " + baseUrl);
+                call.timeout().timeout(remaining, TimeUnit.MILLISECONDS);
+            }
+            request.setAbortTask(new Runnable() {
+                @Override
+                public void run() {
+                    call.cancel();
+                }
+            });
+            response = call.execute();
+
+            HTTPResponse ret = fromOkHttp(response);
+            ret.setBody(new ReleasingInputStream(response.body().byteStream(), request));
+            return ret;
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            if (response != null) response.close();
+            request.clearAbortTask();
+            release();
+            logger.debug(request + " failed: " + e);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request as a new stream on the shared connection, without
+     * blocking the caller. The body of the response is read completely (by a
+     * thread of the OkHttp dispatcher) before calling the callback.
+     *
+     * @param request  the request
+     * @param timeout  the maximum time (ms) to wait for a free stream and then for the whole response, body included (0 means infinite)
+     * @param callback the callback
+     */
+    @Override
+    public void execute(final HTTPRequest request, int timeout, final HTTPCallback callback) {
+        requests.incrementAndGet();
+
+        final Call call;
+        try {
+            call = client.newCall(toOkHttp(request));
+            request.setAbortTask(new Runnable() {
+                @Override
+                public void run() {
+                    call.cancel();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            callback.onFailure(e instanceof IOException ? (IOException) e : new IOException(e));
+            return;
+        }
+
+        // The deadline includes the time spent in the dispatcher queue
+        if (timeout > 0) call.timeout().deadline(timeout, TimeUnit.MILLISECONDS);
+
+        inProgress.incrementAndGet();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                failures.incrementAndGet();
+                inProgress.decrementAndGet();
+                request.clearAbortTask();
+                logger.debug(request + " failed: " + e);
+                callback.onFailure(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                HTTPResponse ret;
+                try {
+                    ret = fromOkHttp(response);
+                    ret.setBody(response.body().byteStream());
+                    ret.buffer();
+                } catch (IOException e) {
+                    response.close();
+                    onFailure(call, e);
+                    return;
+                }
+                inProgress.decrementAndGet();
+                request.clearAbortTask();
+                callback.onResponse(ret);
+            }
+        });
+    }
+
+    private Request toOkHttp(HTTPRequest request) {
+        Request.Builder builder = new Request.Builder().url(baseUrl + request.getPath());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+            builder.header(header.getKey(), header.getValue());
+        byte[] body = request.getBody();
+        if (body == null && !request.getMethod().equals("GET") && !request.getMethod().equals("HEAD")) body = new byte[0];
+        builder.method(request.getMethod(), body == null ? null : RequestBody.create(null, body));
+        return builder.build();
+    }
+
+    private HTTPResponse fromOkHttp(Response response) {
+        if (response.protocol() == Protocol.HTTP_2 || response.protocol() == Protocol.H2_PRIOR_KNOWLEDGE)
+            http2.incrementAndGet();
+
+        HTTPResponse ret = new HTTPResponse(response.code());
+        Headers headers = response.headers();
+        for (int i = 0; i < headers.size(); i++) ret.addHeader(headers.name(i), headers.value(i));
+        return ret;
+    }
+
+    private void acquire(int timeout) throws IOException {
+        try {
+            if (timeout <= 0) permits.acquire();
+            else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new InterruptedIOException("Timeout waiting for a stream to " + baseUrl);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private void release() {
+        inProgress.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * The body of the response: the stream permit is released once it has been closed (or read until the end).
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+        private final HTTPRequest request;
+        private boolean released = false;
+
+        ReleasingInputStream(InputStream in, HTTPRequest request) {
+            super(in);
+            this.request = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) releaseOnce();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) releaseOnce();
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                releaseOnce();
+            }
+        }
+
+        private synchronized void releaseOnce() {
+            if (released) return;
+            released = true;
+            request.clearAbortTask();
+            release();
+        }
+    }
+
+    /**
+     * Closes the idle connections. Requests in progress are completed.
+     */
+    @Override
+    public void close() {
+        client.connectionPool().evictAll();
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Gets the transport statistics.
+     * <p>
+     * {"url":"http://localhost:8000","maxConcurrentRequests":5,"inProgress":1,"connections":1,"idle":0,"requests":1023,"http2":1023,"failures":0}
+     *
+     * @return the statistics
+     */
+    @Override
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("url", new JsonPrimitive(baseUrl));
+        stats.add("maxConcurrentRequests", new JsonPrimitive(maxConcurrentRequests));
+        stats.add("inProgress", new JsonPrimitive(inProgress.get()));
+        stats.add("connections", new JsonPrimitive(client.connectionPool().connectionCount()));
+        stats.add("idle", new JsonPrimitive(client.connectionPool().idleConnectionCount()));
+        stats.add("requests", new JsonPrimitive(requests.get()));
+        stats.add("http2", new JsonPrimitive(http2.get()));
+        stats.add("failures", new JsonPrimitive(failures.get()));
+        return stats;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+}
@@ -0,0 +1,183 @@
+/* This class implements the stream of an HTTP/1.1 response body
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of an HTTP/1.1 response, delimited by the Content-Length header,
+ * by the chunked transfer coding or by the end of the connection.
+ * <p>
+ * When the body has been read completely or the stream is closed, the
+ * underlying connection is given back to the pool. Closing the stream before
+ * the end of the body discards the remaining bytes (if they are only a few) or
+ * the connection.
+ */
+public class HTTPBodyInputStream extends InputStream {
+
+    /**
+     * The maximum number of unread bytes discarded on close to keep the connection alive.
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    enum Delimiter {
+        CONTENT_LENGTH, CHUNKED, CONNECTION_CLOSE
+    }
+
+    private final HTTPConnection connection;
+    private final InputStream in;
+    private final Delimiter delimiter;
+    private final Runnable release;
+
+    /**
+     * The bytes left in the body (CONTENT_LENGTH) or in the current chunk (CHUNKED).
+     */
+    private long remaining;
+
+    private boolean firstChunk = true;
+    private boolean eof = false;
+    private boolean closed = false;
+    private boolean released = false;
+
+    HTTPBodyInputStream(HTTPConnection connection, InputStream in, Delimiter delimiter, long contentLength, Runnable release) {
+        this.connection = connection;
+        this.in = in;
+        this.delimiter = delimiter;
+        this.release = release;
+        this.remaining = (delimiter == Delimiter.CONTENT_LENGTH ? contentLength : 0);
+
+        if (delimiter == Delimiter.CONTENT_LENGTH && contentLength == 0) finish();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        while ((n = read(b, 0, 1)) == 0) ;
+        return (n == -1 ? -1 : b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (eof) return -1;
+        if (len == 0) return 0;
+
+        try {
+            switch (delimiter) {
+                case CONTENT_LENGTH:
+                    return readRemaining(b, off, len);
+                case CHUNKED:
+                    if (remaining == 0) {
+                        if (!firstChunk) connection.readLine();
+                        firstChunk = false;
+                        remaining = connection.readChunkSize();
+                        if (remaining == 0) {
+                            // Trailers
+                            while (!connection.readLine().isEmpty()) ;
+                            finish();
+                            return -1;
+                        }
+                    }
+                    return readRemaining(b, off, len);
+                default:
+                    int n = in.read(b, off, len);
+                    if (n == -1) finish();
+                    return n;
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private int readRemaining(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) throw new EOFException("Unexpected end of stream");
+        remaining -= n;
+        if (remaining == 0 && delimiter == Delimiter.CONTENT_LENGTH) finish();
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed || eof) return 0;
+        if (delimiter == Delimiter.CONNECTION_CLOSE) return in.available();
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+
+        // Discard the rest of the body (if small enough) to keep the connection alive
+        if (!eof) {
+            if (delimiter == Delimiter.CONNECTION_CLOSE) connection.close();
+            else {
+                byte[] buffer = new byte[4096];
+                long drained = 0;
+                try {
+                    int n;
+                    while (drained < MAX_DRAIN && (n = read(buffer, 0, buffer.length)) != -1) drained += n;
+                } catch (IOException e) {
+                    connection.close();
+                }
+                if (!eof) connection.close();
+            }
+        }
+
+        closed = true;
+        release();
+    }
+
+    private void finish() {
+        eof = true;
+        release();
+    }
+
+    private void release() {
+        if (released) return;
+        released = true;
+        if (release != null) release.run();
+    }
+
+    /**
+     * Reads a stream until the end and closes it.
+     *
+     * @param in            the stream
+     * @param contentLength the expected length (e.g., from the Content-Length header) or -1 if unknown
+     * @return the bytes read
+     * @throws IOException
+     */
+    public static byte[] readFully(InputStream in, long contentLength) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                contentLength >= 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 4096);
+        try {
+            byte[] buffer = new byte[(contentLength >= 0 && contentLength < 8192 ? Math.max((int) contentLength, 1) : 8192)];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,45 @@
+/* This interface is the callback of the HTTP requests sent without blocking the caller
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+
+/**
+ * The callback of a request sent without blocking the caller (see
+ * {@link HTTPTransport#execute(HTTPRequest, int, HTTPCallback)}).
+ * <p>
+ * The callback is called by a thread of the transport (e.g., the selector
+ * thread of {@link NIOHTTPTransport}) and it must not block.
+ */
+public interface HTTPCallback {
+    /**
+     * Called when the response has been received. The body has been received
+     * completely: it can be read without blocking.
+     *
+     * @param response the response
+     */
+    void onResponse(HTTPResponse response);
+
+    /**
+     * Called if the request fails (e.g., I/O error, deadline expired or request cancelled).
+     *
+     * @param e the error
+     */
+    void onFailure(IOException e);
+}
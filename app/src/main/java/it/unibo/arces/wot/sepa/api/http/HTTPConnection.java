@@ -0,0 +1,254 @@
+/* This class implements a persistent (keep-alive) HTTP/1.1 connection
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A persistent HTTP/1.1 connection. Requests are sent one at a time: the
+ * connection can be reused by the next request once the body of the response
+ * has been read completely (see {@link HTTPBodyInputStream}).
+ * <p>
+ * The deadline of a request bounds the whole response (head and body): the
+ * timeout of each socket read is the time left until the deadline.
+ */
+class HTTPConnection {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final String hostHeader;
+
+    /**
+     * The last time (ms) the connection has been released to the pool.
+     */
+    private long lastUsed = System.currentTimeMillis();
+
+    /**
+     * False if the server asked to close the connection or if the connection
+     * is in an unknown state (e.g., after an I/O error).
+     */
+    private boolean reusable = true;
+
+    /**
+     * True as soon as the first byte of the response has been received.
+     */
+    private boolean responseStarted = false;
+
+    /**
+     * Number of requests sent on this connection.
+     */
+    private int requests = 0;
+
+    /**
+     * The deadline (ms) of the request in progress (0 means no deadline).
+     */
+    private long deadline = 0;
+
+    HTTPConnection(Socket socket, String hostHeader) throws IOException {
+        this.socket = socket;
+        this.hostHeader = hostHeader;
+        in = new BufferedInputStream(new DeadlineInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Sends a request and reads the response status line and headers. The body
+     * is streamed: <i>release</i> is run when it has been consumed (or
+     * discarded) and the connection can be used again.
+     *
+     * @param request  the request
+     * @param deadline the time (ms) by which the whole response must have been read (0 means no deadline)
+     * @param release  the task run when the response body has been consumed
+     * @return the response
+     * @throws IOException on I/O errors (the connection is not reusable anymore)
+     */
+    HTTPResponse execute(HTTPRequest request, long deadline, Runnable release) throws IOException {
+        requests++;
+        responseStarted = false;
+        this.deadline = deadline;
+
+        try {
+            // Cancelling the request closes the connection
+            request.setAbortTask(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+
+            writeRequest(request);
+
+            HTTPResponse response;
+            do {
+                response = readResponseHead();
+            } while (response.getCode() >= 100 && response.getCode() < 200);
+
+            String connection = response.getHeader("Connection");
+            if (connection != null && connection.toLowerCase().contains("close")) reusable = false;
+
+            response.setBody(openBody(request, response, release));
+
+            return response;
+        } catch (IOException e) {
+            reusable = false;
+            throw e;
+        }
+    }
+
+    private void writeRequest(HTTPRequest request) throws IOException {
+        out.write(request.encodeHead(hostHeader));
+        if (request.getBody() != null) out.write(request.getBody());
+        out.flush();
+    }
+
+    private HTTPResponse readResponseHead() throws IOException {
+        String statusLine = readLine();
+        responseStarted = true;
+
+        HTTPResponse response = HTTPResponse.parseStatusLine(statusLine);
+
+        // HTTP/1.0 servers close the connection unless told otherwise
+        if (statusLine.startsWith("HTTP/1.0")) reusable = false;
+
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            response.addHeader(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+
+        return response;
+    }
+
+    private HTTPBodyInputStream openBody(HTTPRequest request, HTTPResponse response, Runnable release) throws IOException {
+        int code = response.getCode();
+        if (request.getMethod().equals("HEAD") || code == 204 || code == 304)
+            return new HTTPBodyInputStream(this, in, HTTPBodyInputStream.Delimiter.CONTENT_LENGTH, 0, release);
+
+        String transferEncoding = response.getHeader("Transfer-Encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked"))
+            return new HTTPBodyInputStream(this, in, HTTPBodyInputStream.Delimiter.CHUNKED, -1, release);
+
+        long contentLength = response.getContentLength();
+        if (contentLength >= 0)
+            return new HTTPBodyInputStream(this, in, HTTPBodyInputStream.Delimiter.CONTENT_LENGTH, contentLength, release);
+
+        // Body delimited by the connection close
+        reusable = false;
+        return new HTTPBodyInputStream(this, in, HTTPBodyInputStream.Delimiter.CONNECTION_CLOSE, -1, release);
+    }
+
+    int readChunkSize() throws IOException {
+        String line = readLine();
+        int extension = line.indexOf(';');
+        if (extension != -1) line = line.substring(0, extension);
+        try {
+            return Integer.parseInt(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + line);
+        }
+    }
+
+    String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int last = line.length() - 1;
+                if (last >= 0 && line.charAt(last) == '\r') line.setLength(last);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        throw new EOFException("Unexpected end of stream");
+    }
+
+    boolean isReusable() {
+        return reusable && !socket.isClosed();
+    }
+
+    boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    int getRequests() {
+        return requests;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    void close() {
+        reusable = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * The socket input: each read waits at most until the deadline.
+     */
+    private class DeadlineInputStream extends FilterInputStream {
+        private int soTimeout = -1;
+
+        DeadlineInputStream(InputStream in) {
+            super(in);
+        }
+
+        private void setTimeout() throws IOException {
+            int timeout = 0;
+            if (deadline > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new SocketTimeoutException("Deadline expired waiting for the response from " + hostHeader);
+                timeout = (int) Math.min(remaining, Integer.MAX_VALUE);
+            }
+            if (timeout != soTimeout) {
+                socket.setSoTimeout(timeout);
+                soTimeout = timeout;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            setTimeout();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            setTimeout();
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/* This class implements a pool of persistent HTTP/1.1 connections towards a single endpoint
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+/**
+ * A pool of persistent (keep-alive) HTTP/1.1 connections towards a single
+ * host and port.
+ * <p>
+ * At most <i>maxConnections</i> requests are in progress at the same time
+ * (further requests wait for a free connection). Connections left idle for
+ * more than <i>idleTimeout</i> ms are closed by a background evictor shared by
+ * all the pools.
+ * <p>
+ * Being based on blocking I/O, requests sent without blocking the caller
+ * (see {@link #execute(HTTPRequest, int, HTTPCallback)}) are executed by the
+ * threads of the pool (at most <i>maxConnections</i>).
+ */
+public class HTTPConnectionPool implements HTTPTransport {
+
+    /**
+     * The Constant logger.
+     */
+    private static final Logger logger = LogManager.getLogger("HTTPConnectionPool");
+
+    /**
+     * The idle connections evictor (a single daemon thread for all the pools).
+     */
+    private static final Timer evictor = new Timer("HTTPConnectionPool-evictor", true);
+
+    private final String host;
+    private final int port;
+    private final String unixSocket;
+    private final String hostHeader;
+    private final int maxConnections;
+    private final long idleTimeout;
+
+    /**
+     * One permit for each connection that can be in use.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The idle connections (most recently used first).
+     */
+    private final ArrayDeque<HTTPConnection> idle = new ArrayDeque<HTTPConnection>();
+
+    private final TimerTask evictionTask;
+
+    /**
+     * The threads executing the asynchronous requests (created on demand).
+     */
+    private final ThreadPoolExecutor executor;
+
+    private boolean closed = false;
+
+    // Statistics
+    private final AtomicInteger leased = new AtomicInteger(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    /**
+     * Instantiates a new connection pool.
+     *
+     * @param host           the host
+     * @param port           the port
+     * @param maxConnections the maximum number of connections (i.e., concurrent requests)
+     * @param idleTimeout    the time (ms) after that an idle connection is closed
+     */
+    public HTTPConnectionPool(String host, int port, int maxConnections, long idleTimeout) {
+        this(host, port, null, maxConnections, idleTimeout);
+    }
+
+    /**
+     * Instantiates a new connection pool towards a server listening on a Unix
+     * domain socket (e.g., a broker running on the same host).
+     *
+     * @param host           the host (used by the Host header)
+     * @param port           the port (used by the Host header)
+     * @param unixSocket     the path of the socket (null to use TCP)
+     * @param maxConnections the maximum number of connections (i.e., concurrent requests)
+     * @param idleTimeout    the time (ms) after that an idle connection is closed
+     */
+    public HTTPConnectionPool(String host, int port, String unixSocket, int maxConnections, long idleTimeout) {
+        if (maxConnections <= 0) throw new IllegalArgumentException("Max connections must be > 0");
+
+        this.host = host;
+        this.port = port;
+        this.unixSocket = unixSocket;
+        this.hostHeader = host + ":" + port;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+
+        permits = new Semaphore(maxConnections, true);
+
+        executor = new ThreadPoolExecutor(maxConnections, maxConnections, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HTTPConnectionPool-" + hostHeader);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        evictionTask = new TimerTask() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        };
+        if (idleTimeout > 0) {
+            long period = Math.max(idleTimeout / 2, 1000);
+            evictor.schedule(evictionTask, period, period);
+        }
+    }
+
+    /**
+     * Sends a request on a pooled connection.
+     * <p>
+     * The connection remains leased until the body of the response has been
+     * read completely or closed (see {@link HTTPResponse#getBody()}).
+     * <p>
+     * If a reused connection has been closed by the server while idle (i.e.,
+     * no response byte has been received), an idempotent request is sent
+     * again on a new connection. The others (e.g., updates) fail: the server
+     * may have received and processed them before closing the connection.
+     *
+     * @param request the request
+     * @param timeout the maximum time (ms) to wait for a free connection and then for the whole response, body included (0 means infinite)
+     * @return the response
+     * @throws IOException
+     */
+    @Override
+    public HTTPResponse execute(HTTPRequest request, int timeout) throws IOException {
+        if (request.isCancelled()) throw new InterruptedIOException("Request cancelled");
+        long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+
+        acquire(timeout);
+        leased.incrementAndGet();
+        requests.incrementAndGet();
+
+        try {
+            HTTPConnection connection = takeIdle();
+
+            if (connection != null) {
+                reused.incrementAndGet();
+                try {
+                    return connection.execute(request, deadline, releaseTask(connection, request));
+                } catch (IOException e) {
+                    connection.close();
+                    if (connection.isResponseStarted() || request.isCancelled() || !request.isIdempotent()) throw e;
+                    logger.debug("Stale connection (" + connection.getRequests() + " requests): " + e.getMessage());
+                }
+            }
+
+            connection = connect(remaining(deadline));
+            try {
+                return connection.execute(request, deadline, releaseTask(connection, request));
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            request.clearAbortTask();
+            failures.incrementAndGet();
+            leased.decrementAndGet();
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request using a thread of the pool. The body of the response is
+     * read completely before calling the callback.
+     *
+     * @param request  the request
+     * @param timeout  the maximum time (ms) to wait for a free connection and then for the whole response, body included (0 means infinite)
+     * @param callback the callback
+     */
+    @Override
+    public void execute(final HTTPRequest request, final int timeout, final HTTPCallback callback) {
+        final long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    HTTPResponse response;
+                    try {
+                        // The deadline includes the time spent in the queue
+                        response = execute(request, deadline == 0 ? 0 : remaining(deadline));
+                        response.buffer();
+                    } catch (IOException e) {
+                        callback.onFailure(e);
+                        return;
+                    }
+                    callback.onResponse(response);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failures.incrementAndGet();
+            callback.onFailure(new IOException("Transport closed"));
+        }
+    }
+
+    /**
+     * The task run when the body of a response has been consumed: the
+     * connection is given back to the pool (if reusable) and can be leased
+     * again.
+     */
+    private Runnable releaseTask(final HTTPConnection connection, final HTTPRequest request) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                request.clearAbortTask();
+                release(connection);
+                leased.decrementAndGet();
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * Gets the time left until a deadline.
+     *
+     * @return the time in ms (0 if there is no deadline)
+     * @throws SocketTimeoutException if the deadline has expired
+     */
+    private int remaining(long deadline) throws SocketTimeoutException {
+        if (deadline == 0) return 0;
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw new SocketTimeoutException("Deadline expired waiting for a connection to " + hostHeader);
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    private void acquire(int timeout) throws IOException {
+        try {
+            if (timeout <= 0) permits.acquire();
+            else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new InterruptedIOException("Timeout waiting for a connection to " + hostHeader);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private HTTPConnection connect(int timeout) throws IOException {
+        Socket socket = (unixSocket != null ? new UnixSocket(unixSocket) : new Socket());
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(unixSocket != null ? null : new InetSocketAddress(host, port), timeout);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e1) {
+            }
+            throw e;
+        }
+
+        created.incrementAndGet();
+        return new HTTPConnection(socket, hostHeader);
+    }
+
+    private synchronized HTTPConnection takeIdle() {
+        long now = System.currentTimeMillis();
+        HTTPConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (connection.isReusable() && (idleTimeout <= 0 || now - connection.getLastUsed() < idleTimeout))
+                return connection;
+            evicted.incrementAndGet();
+            connection.close();
+        }
+        return null;
+    }
+
+    private synchronized void release(HTTPConnection connection) {
+        if (closed || !connection.isReusable()) {
+            connection.close();
+            return;
+        }
+        connection.setLastUsed(System.currentTimeMillis());
+        idle.addFirst(connection);
+    }
+
+    /**
+     * Closes the connections that have been idle for more than the idle timeout.
+     */
+    public synchronized void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<HTTPConnection> it = idle.iterator();
+        while (it.hasNext()) {
+            HTTPConnection connection = it.next();
+            if (!connection.isReusable() || now - connection.getLastUsed() >= idleTimeout) {
+                it.remove();
+                connection.close();
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Closes all the idle connections and stops the eviction of this pool.
+     * Connections in use are closed when released.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        evictionTask.cancel();
+        executor.shutdown();
+        for (HTTPConnection connection : idle) connection.close();
+        idle.clear();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the path of the Unix domain socket.
+     *
+     * @return the path or <i>null</i> if TCP is used
+     */
+    public String getUnixSocket() {
+        return unixSocket;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Gets the pool statistics.
+     * <p>
+     * {"host":"localhost","port":8000,"maxConnections":5,"leased":1,"idle":2,"requests":1023,"created":3,"reused":1020,"evicted":0,"failures":0}
+     *
+     * @return the statistics
+     */
+    @Override
+    public synchronized JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("host", new JsonPrimitive(host));
+        stats.add("port", new JsonPrimitive(port));
+        if (unixSocket != null) stats.add("unixSocket", new JsonPrimitive(unixSocket));
+        stats.add("maxConnections", new JsonPrimitive(maxConnections));
+        stats.add("leased", new JsonPrimitive(leased.get()));
+        stats.add("idle", new JsonPrimitive(idle.size()));
+        stats.add("requests", new JsonPrimitive(requests.get()));
+        stats.add("created", new JsonPrimitive(created.get()));
+        stats.add("reused", new JsonPrimitive(reused.get()));
+        stats.add("evicted", new JsonPrimitive(evicted.get()));
+        stats.add("failures", new JsonPrimitive(failures.get()));
+        return stats;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+}
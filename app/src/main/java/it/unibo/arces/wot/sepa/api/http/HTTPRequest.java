@@ -0,0 +1,218 @@
+/* This class represents an HTTP/1.1 request sent by the SPARQL 1.1 Protocol client
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request: method, request target (path and query string), headers and
+ * an optional body.
+ * <p>
+ * A request in progress can be cancelled by any thread (see {@link #cancel()}).
+ */
+public class HTTPRequest {
+
+    /**
+     * The method (e.g., GET, POST).
+     */
+    private final String method;
+
+    /**
+     * The request target (e.g., /update or /query?query=...).
+     */
+    private final String path;
+
+    /**
+     * The headers.
+     */
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    /**
+     * The body (may be null).
+     */
+    private byte[] body = null;
+
+    /**
+     * The task aborting the request in progress (set by the transport).
+     */
+    private Runnable abort = null;
+
+    private boolean cancelled = false;
+
+    /**
+     * If the request can be sent again after a failure.
+     */
+    private boolean idempotent;
+
+    /**
+     * Instantiates a new HTTP request without body. GET, HEAD, OPTIONS, PUT
+     * and DELETE requests are idempotent (see {@link #setIdempotent(boolean)}).
+     *
+     * @param method the method
+     * @param path   the request target
+     */
+    public HTTPRequest(String method, String path) {
+        this.method = method;
+        this.path = path;
+        this.idempotent = method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS")
+                || method.equals("PUT") || method.equals("DELETE");
+    }
+
+    /**
+     * Instantiates a new HTTP request with a UTF-8 encoded body.
+     *
+     * @param method the method
+     * @param path   the request target
+     * @param body   the body
+     * @throws UnsupportedEncodingException
+     */
+    public HTTPRequest(String method, String path, String body) throws UnsupportedEncodingException {
+        this(method, path);
+        if (body != null) this.body = body.getBytes("UTF-8");
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public void setHeader(String name, String value) {
+        if (value != null) headers.put(name, value);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Checks if the request can be sent again (e.g., on a new connection when
+     * a reused one has been closed by the server) without side effects.
+     *
+     * @return true, if the request is idempotent
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Marks a request as idempotent (e.g., a SPARQL query sent with POST) or
+     * not (e.g., a SPARQL update).
+     *
+     * @param idempotent true, if the request can be sent again
+     */
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    /**
+     * Compresses the body with gzip and sets the Content-Encoding header.
+     *
+     * @throws IOException
+     */
+    public void compressBody() throws IOException {
+        if (body == null) return;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(body);
+        gzip.close();
+
+        body = compressed.toByteArray();
+        headers.put("Content-Encoding", "gzip");
+    }
+
+    /**
+     * Cancels the request. If the request is in progress (i.e., the response
+     * is awaited or its body is being read) the connection is closed and the
+     * thread executing it gets an IOException. If the request has not been
+     * sent yet, it will not be sent.
+     */
+    public void cancel() {
+        Runnable task;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            task = abort;
+            abort = null;
+        }
+        if (task != null) task.run();
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sets the task aborting the request while it is in progress.
+     *
+     * @param task the task
+     * @throws InterruptedIOException if the request has been cancelled
+     */
+    synchronized void setAbortTask(Runnable task) throws InterruptedIOException {
+        if (cancelled) throw new InterruptedIOException("Request cancelled");
+        abort = task;
+    }
+
+    /**
+     * Removes the abort task (the request is not in progress anymore).
+     */
+    synchronized void clearAbortTask() {
+        abort = null;
+    }
+
+    /**
+     * Encodes the request line and the headers (including Host and Content-Length).
+     *
+     * @param hostHeader the value of the Host header
+     * @return the request head
+     * @throws UnsupportedEncodingException
+     */
+    byte[] encodeHead(String hostHeader) throws UnsupportedEncodingException {
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(hostHeader).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        if (body != null) head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("\r\n");
+
+        return head.toString().getBytes("ISO-8859-1");
+    }
+
+    public String toString() {
+        return method + " " + path;
+    }
+}
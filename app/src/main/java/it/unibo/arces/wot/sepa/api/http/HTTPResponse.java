@@ -0,0 +1,212 @@
+/* This class represents an HTTP/1.1 response received by the SPARQL 1.1 Protocol client
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An HTTP response: status code, headers (names are stored lower case) and body.
+ * <p>
+ * The body is a stream that must be read until the end or closed: the
+ * connection it comes from is not reused before.
+ */
+public class HTTPResponse {
+
+    /**
+     * The status code.
+     */
+    private final int code;
+
+    /**
+     * The headers (lower case names).
+     */
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    /**
+     * The body.
+     */
+    private InputStream body = new ByteArrayInputStream(new byte[0]);
+
+    /**
+     * The decoded body (see Content-Encoding).
+     */
+    private InputStream content = null;
+
+    /**
+     * Instantiates a new HTTP response.
+     *
+     * @param code the status code
+     */
+    public HTTPResponse(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Instantiates a new HTTP response from the status line (e.g., HTTP/1.1 200 OK).
+     *
+     * @param statusLine the status line
+     * @return the response (without headers)
+     * @throws IOException if the status line is malformed
+     */
+    static HTTPResponse parseStatusLine(String statusLine) throws IOException {
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/"))
+            throw new IOException("Malformed status line: " + statusLine);
+
+        try {
+            return new HTTPResponse(Integer.parseInt(status[1]));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Gets a header value.
+     *
+     * @param name the header name (case insensitive)
+     * @return the header value or <i>null</i> if not present
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    void addHeader(String name, String value) {
+        String key = name.toLowerCase();
+        if (headers.containsKey(key)) headers.put(key, headers.get(key) + ", " + value);
+        else headers.put(key, value);
+    }
+
+    /**
+     * Gets the body length.
+     *
+     * @return the value of the Content-Length header or -1 if it is not present
+     */
+    public long getContentLength() {
+        String contentLength = getHeader("Content-Length");
+        if (contentLength == null) return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the body stream (as received, see {@link #getContent()}). The stream
+     * must be read until the end or closed.
+     *
+     * @return the body
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    void setBody(InputStream body) {
+        this.body = body;
+    }
+
+    /**
+     * Reads the body until the end, so that it can be read later without
+     * blocking (e.g., by a callback).
+     *
+     * @throws IOException
+     */
+    void buffer() throws IOException {
+        if (body == null) return;
+        body = new ByteArrayInputStream(HTTPBodyInputStream.readFully(body, getContentLength()));
+        content = null;
+    }
+
+    /**
+     * Gets the body stream decoded according to the Content-Encoding header
+     * (gzip, deflate or identity). Closing it closes the body stream.
+     *
+     * @return the decoded body
+     * @throws IOException if the compressed stream header is not valid
+     */
+    public InputStream getContent() throws IOException {
+        if (content != null) return content;
+
+        String encoding = getHeader("Content-Encoding");
+        if (encoding == null || encoding.trim().equalsIgnoreCase("identity")) content = body;
+        else if (encoding.trim().equalsIgnoreCase("gzip") || encoding.trim().equalsIgnoreCase("x-gzip"))
+            content = new GZIPInputStream(body, 8192);
+        else if (encoding.trim().equalsIgnoreCase("deflate")) content = inflate(body);
+        else throw new IOException("Unsupported content encoding: " + encoding);
+
+        return content;
+    }
+
+    /**
+     * "deflate" should be a zlib stream (RFC 1950), but some servers send a raw
+     * deflate stream (RFC 1951): the two are told apart by the zlib header.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 8192);
+        buffered.mark(2);
+        int cmf = buffered.read();
+        int flg = buffered.read();
+        buffered.reset();
+
+        boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(buffered, inflater, 8192) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the whole (decoded) body as UTF-8 string and closes the body stream.
+     *
+     * @return the body
+     * @throws IOException
+     */
+    public String getBodyAsString() throws IOException {
+        InputStream in = getContent();
+        return new String(HTTPBodyInputStream.readFully(in, in == body ? getContentLength() : -1), "UTF-8");
+    }
+
+    public String toString() {
+        return code + " " + headers;
+    }
+}
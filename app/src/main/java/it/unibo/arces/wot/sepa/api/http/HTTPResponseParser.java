@@ -0,0 +1,244 @@
+/* This class implements an incremental parser of HTTP/1.1 responses
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Parses an HTTP/1.1 response as its bytes are received (e.g., from a
+ * non-blocking channel). The response is available as soon as its head has
+ * been parsed: the bytes of the body are appended to the body stream as they
+ * are received.
+ * <p>
+ * The body may be delimited by the Content-Length header, by the chunked
+ * transfer coding or by the end of the connection (see {@link #end()}).
+ */
+class HTTPResponseParser {
+
+    /**
+     * The maximum length of the status line, of a header or of a chunk size line.
+     */
+    private static final int MAX_LINE = 64 * 1024;
+
+    private enum State {
+        STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, CONNECTION_CLOSE, DONE
+    }
+
+    private final boolean head;
+
+    private State state = State.STATUS;
+    private final StringBuilder line = new StringBuilder(64);
+
+    private HTTPResponse response = null;
+    private final NIOBodyInputStream body;
+
+    /**
+     * False if the body stream has reached its limit.
+     */
+    private boolean accepting = true;
+
+    /**
+     * The bytes left in the body (Content-Length) or in the current chunk.
+     */
+    private long remaining = 0;
+
+    private boolean started = false;
+    private boolean reusable = true;
+
+    /**
+     * Instantiates a new response parser.
+     *
+     * @param request the request the response refers to (the response to a HEAD request has no body)
+     * @param body    the body stream
+     */
+    HTTPResponseParser(HTTPRequest request, NIOBodyInputStream body) {
+        head = request.getMethod().equals("HEAD");
+        this.body = body;
+    }
+
+    /**
+     * Parses the received bytes.
+     *
+     * @param buffer the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @return true if the response is complete
+     * @throws IOException if the response is malformed
+     */
+    boolean parse(byte[] buffer, int offset, int length) throws IOException {
+        if (length > 0) started = true;
+
+        int i = offset;
+        int end = offset + length;
+        while (i < end && state != State.DONE) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA:
+                    int n = (int) Math.min(remaining, end - i);
+                    accepting &= body.append(buffer, i, n);
+                    i += n;
+                    remaining -= n;
+                    if (remaining == 0) state = (state == State.BODY ? State.DONE : State.CHUNK_END);
+                    break;
+                case CONNECTION_CLOSE:
+                    accepting &= body.append(buffer, i, end - i);
+                    i = end;
+                    break;
+                default:
+                    byte b = buffer[i++];
+                    if (b != '\n') {
+                        if (line.length() == MAX_LINE) throw new IOException("Line too long");
+                        line.append((char) (b & 0xff));
+                        break;
+                    }
+                    int last = line.length() - 1;
+                    if (last >= 0 && line.charAt(last) == '\r') line.setLength(last);
+                    String text = line.toString();
+                    line.setLength(0);
+                    parseLine(text);
+            }
+        }
+
+        // Pipelining is not used: further bytes mean that the connection is in an unknown state
+        if (i < end) reusable = false;
+
+        return state == State.DONE;
+    }
+
+    private void parseLine(String text) throws IOException {
+        switch (state) {
+            case STATUS:
+                response = HTTPResponse.parseStatusLine(text);
+                // HTTP/1.0 servers close the connection unless told otherwise
+                if (text.startsWith("HTTP/1.0")) reusable = false;
+                state = State.HEADERS;
+                break;
+            case HEADERS:
+                if (!text.isEmpty()) {
+                    int colon = text.indexOf(':');
+                    if (colon > 0) response.addHeader(text.substring(0, colon).trim(), text.substring(colon + 1).trim());
+                    break;
+                }
+                // Interim responses (1xx) are followed by the final one
+                if (response.getCode() >= 100 && response.getCode() < 200) {
+                    state = State.STATUS;
+                    break;
+                }
+                openBody();
+                break;
+            case CHUNK_SIZE:
+                int extension = text.indexOf(';');
+                if (extension != -1) text = text.substring(0, extension);
+                try {
+                    remaining = Integer.parseInt(text.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + text);
+                }
+                state = (remaining == 0 ? State.TRAILERS : State.CHUNK_DATA);
+                break;
+            case CHUNK_END:
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.isEmpty()) state = State.DONE;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void openBody() {
+        String connection = response.getHeader("Connection");
+        if (connection != null && connection.toLowerCase().contains("close")) reusable = false;
+
+        int code = response.getCode();
+        long contentLength = response.getContentLength();
+        String transferEncoding = response.getHeader("Transfer-Encoding");
+
+        response.setBody(body);
+
+        if (head || code == 204 || code == 304) {
+            state = State.DONE;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = (contentLength == 0 ? State.DONE : State.BODY);
+        } else {
+            reusable = false;
+            state = State.CONNECTION_CLOSE;
+        }
+    }
+
+    /**
+     * Signals the end of the connection.
+     *
+     * @return true if the response is complete (i.e., the body is delimited by the end of the connection)
+     * @throws EOFException if the response is not complete
+     */
+    boolean end() throws EOFException {
+        reusable = false;
+        if (state == State.CONNECTION_CLOSE) state = State.DONE;
+        if (state != State.DONE) throw new EOFException("Unexpected end of stream");
+        return true;
+    }
+
+    /**
+     * Gets the response (the body is streamed, see {@link NIOBodyInputStream}).
+     *
+     * @return the response or <i>null</i> if its head has not been parsed yet
+     */
+    HTTPResponse getResponse() {
+        return (state == State.STATUS || state == State.HEADERS ? null : response);
+    }
+
+    /**
+     * Checks if the body stream can accept more bytes. Once its limit has been
+     * reached, the reception should be paused until the bytes are read (and
+     * then {@link #resume()} called).
+     *
+     * @return false if the reception should be paused
+     */
+    boolean isAccepting() {
+        return accepting;
+    }
+
+    void resume() {
+        accepting = true;
+    }
+
+    /**
+     * Checks if at least one byte of the response has been received.
+     *
+     * @return true if the response has started
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Checks if the connection can be reused for the next request.
+     *
+     * @return false if the server asked to close the connection or if its state is unknown
+     */
+    boolean isReusable() {
+        return reusable;
+    }
+}
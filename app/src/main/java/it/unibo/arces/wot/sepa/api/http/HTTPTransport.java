@@ -0,0 +1,81 @@
+/* This interface includes the methods of the transports used by the SPARQL 1.1 Protocol client
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A transport sends HTTP requests to a single endpoint (host and port) and
+ * returns the responses.
+ * <p>
+ * The available transports are:
+ * <ul>
+ * <li>{@link HTTPConnectionPool}: blocking I/O, one thread for each request in progress</li>
+ * <li>{@link NIOHTTPTransport}: non-blocking I/O, all the requests in progress are served by a single selector thread</li>
+ * <li>{@link HTTP2Transport}: the requests are multiplexed over a single HTTP/2 connection</li>
+ * </ul>
+ * Requests can be sent blocking the caller until the response is available
+ * ({@link #execute(HTTPRequest, int)}) or without blocking it
+ * ({@link #execute(HTTPRequest, int, HTTPCallback)}).
+ *
+ * @see it.unibo.arces.wot.sepa.api.SPARQL11Properties#getHTTPTransport()
+ */
+public interface HTTPTransport {
+    /**
+     * Sends a request and waits for the response.
+     * <p>
+     * The body of the response must be read until the end or closed (see
+     * {@link HTTPResponse#getBody()}). The timeout is a deadline for the whole
+     * request, including the wait for a free connection and reading the body:
+     * once expired, the request fails with a {@link java.net.SocketTimeoutException}.
+     * The request can be cancelled at any time (see {@link HTTPRequest#cancel()}).
+     *
+     * @param request the request
+     * @param timeout the timeout in ms (0 means infinite)
+     * @return the response
+     * @throws IOException
+     */
+    HTTPResponse execute(HTTPRequest request, int timeout) throws IOException;
+
+    /**
+     * Sends a request without blocking the caller: the callback is called with
+     * the response (once its body has been received completely) or with the
+     * error. As for {@link #execute(HTTPRequest, int)}, the timeout is a
+     * deadline for the whole request and the request can be cancelled.
+     *
+     * @param request  the request
+     * @param timeout  the timeout in ms (0 means infinite)
+     * @param callback the callback
+     */
+    void execute(HTTPRequest request, int timeout, HTTPCallback callback);
+
+    /**
+     * Closes the idle connections. Requests in progress are completed.
+     */
+    void close();
+
+    /**
+     * Gets the transport statistics (e.g., requests, connections created and reused).
+     *
+     * @return the statistics
+     */
+    JsonObject getStatistics();
+}
@@ -0,0 +1,175 @@
+/* This class is the body of an HTTP response received by the non-blocking transport
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * The body of a response received by {@link NIOHTTPTransport}: the selector
+ * thread appends the received bytes, the caller reads them.
+ * <p>
+ * At most <i>limit</i> bytes are buffered: once reached, the selector thread
+ * stops reading from the connection until the caller has read at least half
+ * of them (<i>resume</i> is then run by the caller thread). Closing the stream
+ * before the end of the body runs <i>abort</i> (e.g., the connection is
+ * closed).
+ */
+class NIOBodyInputStream extends InputStream {
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private final int limit;
+    private final Runnable resume;
+    private final Runnable abort;
+
+    // The bytes buffered and the offset of the first byte in the first chunk
+    private int buffered = 0;
+    private int offset = 0;
+
+    private boolean paused = false;
+    private boolean eof = false;
+    private boolean closed = false;
+    private IOException error = null;
+
+    /**
+     * Instantiates a new body.
+     *
+     * @param limit  the maximum number of buffered bytes
+     * @param resume the task resuming the reception (run after the limit has been reached and half of the bytes have been read)
+     * @param abort  the task run if the stream is closed before the end of the body
+     */
+    NIOBodyInputStream(int limit, Runnable resume, Runnable abort) {
+        this.limit = limit;
+        this.resume = resume;
+        this.abort = abort;
+    }
+
+    /**
+     * Appends the received bytes (selector thread).
+     *
+     * @return false if the limit has been reached (i.e., the reception must be paused)
+     */
+    synchronized boolean append(byte[] b, int off, int len) {
+        if (closed || len == 0) return true;
+
+        byte[] chunk = new byte[len];
+        System.arraycopy(b, off, chunk, 0, len);
+        chunks.addLast(chunk);
+        buffered += len;
+        notifyAll();
+
+        if (buffered < limit) return true;
+        paused = true;
+        return false;
+    }
+
+    /**
+     * Signals the end of the body (selector thread).
+     */
+    synchronized void finish() {
+        eof = true;
+        notifyAll();
+    }
+
+    /**
+     * Signals an error (selector thread): the bytes already received can be read.
+     */
+    synchronized void fail(IOException e) {
+        if (eof) return;
+        error = e;
+        notifyAll();
+    }
+
+    synchronized boolean isComplete() {
+        return eof;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        while ((n = read(b, 0, 1)) == 0) ;
+        return (n == -1 ? -1 : b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+
+        int n = 0;
+        boolean resumed = false;
+
+        synchronized (this) {
+            if (closed) throw new IOException("Stream closed");
+
+            try {
+                while (chunks.isEmpty() && !eof && error == null) wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+
+            if (chunks.isEmpty()) {
+                if (eof) return -1;
+                throw error;
+            }
+
+            while (n < len && !chunks.isEmpty()) {
+                byte[] chunk = chunks.peekFirst();
+                int count = Math.min(len - n, chunk.length - offset);
+                System.arraycopy(chunk, offset, b, off + n, count);
+                n += count;
+                offset += count;
+                if (offset == chunk.length) {
+                    chunks.pollFirst();
+                    offset = 0;
+                }
+            }
+            buffered -= n;
+
+            if (paused && buffered <= limit / 2) {
+                paused = false;
+                resumed = true;
+            }
+        }
+
+        if (resumed && resume != null) resume.run();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffered;
+    }
+
+    @Override
+    public void close() {
+        boolean aborted;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            aborted = !eof;
+            chunks.clear();
+            buffered = 0;
+            notifyAll();
+        }
+        if (aborted && abort != null) abort.run();
+    }
+}
@@ -0,0 +1,805 @@
+/* This class implements a non-blocking HTTP/1.1 transport
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+/**
+ * A non-blocking HTTP/1.1 transport towards a single host and port.
+ * <p>
+ * The I/O of all the requests in progress (of all the NIO transports of the
+ * process) is done by a single selector thread: no thread is blocked reading
+ * from a socket. Requests sent with {@link #execute(HTTPRequest, int, HTTPCallback)}
+ * do not block any thread: the selector thread calls the callback when the
+ * response has been received, or when the deadline expires. A process can
+ * then have many more requests in progress than threads.
+ * {@link #execute(HTTPRequest, int)} instead blocks the caller until the head
+ * of the response has been received: the body is streamed (the selector
+ * thread stops reading from the connection if the caller does not keep up).
+ * <p>
+ * As {@link HTTPConnectionPool}, connections are persistent (keep-alive) and
+ * at most <i>maxConnections</i> requests are in progress at the same time:
+ * further requests are queued (without blocking the caller) until a
+ * connection is free. The timeout of a request applies to the whole request,
+ * from the time it is queued to the end of the body.
+ * <p>
+ * The address of the host is resolved by a resolver thread (the lookup may
+ * block): neither the caller (e.g., the main thread of an activity) nor the
+ * selector thread wait for the DNS.
+ */
+public class NIOHTTPTransport implements HTTPTransport {
+
+    private static final Logger logger = LogManager.getLogger("NIOHTTPTransport");
+
+    /**
+     * The idle connections evictor (a single daemon thread for all the transports).
+     */
+    private static final Timer evictor = new Timer("NIOHTTPTransport-evictor", true);
+
+    /**
+     * The host name resolver (a single daemon thread for all the transports,
+     * stopped when idle).
+     */
+    private static final ExecutorService resolver = newResolver();
+
+    /**
+     * The maximum number of bytes of a streamed body received and not read yet.
+     */
+    private static final int MAX_BUFFERED = 256 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final int maxConnections;
+    private final long idleTimeout;
+
+    private final NIOSelector selector;
+
+    /**
+     * The address of the host (resolved once by the first request, and again
+     * after a connection failure). Selector thread only.
+     */
+    private InetSocketAddress address = null;
+
+    /**
+     * The requests waiting for the address of the host (null if it is not
+     * being resolved). Selector thread only.
+     */
+    private ArrayDeque<Exchange> resolving = null;
+
+    /**
+     * The idle connections (most recently used first). Selector thread only.
+     */
+    private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+    /**
+     * The requests waiting for a free connection and the number of requests
+     * in progress. Selector thread only.
+     */
+    private final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+    private int active = 0;
+
+    private final TimerTask evictionTask;
+
+    private volatile boolean closed = false;
+
+    // Statistics
+    private final AtomicInteger leased = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicInteger idleConnections = new AtomicInteger(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+    /**
+     * Instantiates a new non-blocking transport.
+     *
+     * @param host           the host
+     * @param port           the port
+     * @param maxConnections the maximum number of connections (i.e., concurrent requests)
+     * @param idleTimeout    the time (ms) after that an idle connection is closed
+     * @throws IOException if the selector cannot be opened
+     */
+    public NIOHTTPTransport(String host, int port, int maxConnections, long idleTimeout) throws IOException {
+        if (maxConnections <= 0) throw new IllegalArgumentException("Max connections must be > 0");
+
+        this.host = host;
+        this.port = port;
+        this.hostHeader = host + ":" + port;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+
+        selector = NIOSelector.getInstance();
+
+        evictionTask = new TimerTask() {
+            @Override
+            public void run() {
+                selector.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        evictIdleConnections();
+                    }
+                });
+            }
+        };
+        if (idleTimeout > 0) {
+            long period = Math.max(idleTimeout / 2, 1000);
+            evictor.schedule(evictionTask, period, period);
+        }
+    }
+
+    /**
+     * Sends a request and waits for the head of the response. The request is
+     * written and the response is read by the selector thread.
+     * <p>
+     * If a reused connection has been closed by the server while idle (i.e.,
+     * no response byte has been received), an idempotent request is sent
+     * again on a new connection (see {@link HTTPRequest#isIdempotent()}).
+     *
+     * @param request the request
+     * @param timeout the maximum time (ms) to wait for a free connection and then for the whole response (0 means infinite)
+     * @return the response (the body is streamed)
+     * @throws IOException
+     */
+    @Override
+    public HTTPResponse execute(HTTPRequest request, int timeout) throws IOException {
+        if (closed) throw new IOException("Transport closed");
+        long deadline = (timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+
+        Exchange exchange;
+        try {
+            exchange = new Exchange(request, null);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+        submit(exchange, timeout);
+        return exchange.await(deadline);
+    }
+
+    /**
+     * Sends a request without blocking the caller. The callback is called by
+     * the selector thread (or by the caller, if the request cannot be sent).
+     *
+     * @param request  the request
+     * @param timeout  the maximum time (ms) to wait for a free connection and then for the whole response (0 means infinite)
+     * @param callback the callback
+     */
+    @Override
+    public void execute(HTTPRequest request, int timeout, HTTPCallback callback) {
+        Exchange exchange;
+        try {
+            if (closed) throw new IOException("Transport closed");
+            exchange = new Exchange(request, callback);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            callback.onFailure(e);
+            return;
+        }
+        submit(exchange, timeout);
+    }
+
+    private void submit(final Exchange exchange, int timeout) {
+        requests.incrementAndGet();
+
+        try {
+            exchange.request.setAbortTask(new Runnable() {
+                @Override
+                public void run() {
+                    selector.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(exchange, new InterruptedIOException("Request cancelled"));
+                        }
+                    });
+                }
+            });
+        } catch (InterruptedIOException e) {
+            failures.incrementAndGet();
+            exchange.deliver(e);
+            return;
+        }
+
+        selector.execute(new Runnable() {
+            @Override
+            public void run() {
+                start(exchange);
+            }
+        });
+        if (timeout > 0) exchange.timer = selector.schedule(exchange.expiration(timeout), timeout);
+    }
+
+    private static ExecutorService newResolver() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "NIOHTTPTransport-resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Sends the request if a connection is available, otherwise queues it (selector thread).
+     */
+    private void start(Exchange exchange) {
+        if (exchange.finished) return;
+
+        if (active >= maxConnections) {
+            waiting.addLast(exchange);
+            queued.incrementAndGet();
+            return;
+        }
+
+        active++;
+        leased.incrementAndGet();
+        exchange.active = true;
+
+        Connection connection = takeIdle();
+        if (connection != null) {
+            reused.incrementAndGet();
+            exchange.reused = true;
+            connection.send(exchange);
+            return;
+        }
+
+        connect(exchange);
+    }
+
+    private void connect(Exchange exchange) {
+        if (address == null) {
+            resolve(exchange);
+            return;
+        }
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector.getSelector(), 0, connection);
+            created.incrementAndGet();
+
+            exchange.reused = false;
+            if (channel.connect(address)) connection.send(exchange);
+            else connection.attach(exchange, SelectionKey.OP_CONNECT);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                }
+            }
+            // The address is resolved again by the next request
+            address = null;
+            finish(exchange, e);
+        }
+    }
+
+    /**
+     * Connects the request once the address of the host has been resolved by
+     * the resolver thread (selector thread). The requests arriving in the
+     * meanwhile wait for the same lookup.
+     */
+    private void resolve(Exchange exchange) {
+        if (resolving != null) {
+            resolving.addLast(exchange);
+            return;
+        }
+
+        resolving = new ArrayDeque<Exchange>();
+        resolving.addLast(exchange);
+        resolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                final InetSocketAddress resolved = new InetSocketAddress(host, port);
+                selector.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resolved(resolved);
+                    }
+                });
+            }
+        });
+    }
+
+    private void resolved(InetSocketAddress resolved) {
+        ArrayDeque<Exchange> pending = resolving;
+        resolving = null;
+        if (!resolved.isUnresolved()) address = resolved;
+
+        for (Exchange exchange : pending) {
+            // Cancelled or expired while waiting
+            if (exchange.finished) continue;
+
+            if (resolved.isUnresolved()) finish(exchange, new UnknownHostException(host));
+            else connect(exchange);
+        }
+    }
+
+    /**
+     * Fails a request (selector thread): if it is in progress, its connection is closed.
+     */
+    private void fail(Exchange exchange, IOException e) {
+        if (exchange.finished) return;
+        Connection connection = exchange.connection;
+        if (connection != null && connection.exchange == exchange) connection.fail(e);
+        else finish(exchange, e);
+    }
+
+    /**
+     * Ends a request (selector thread): the response (or the error) is
+     * delivered and the next queued request (if any) is started.
+     *
+     * @param error the error (null if the response has been received completely)
+     */
+    private void finish(Exchange exchange, IOException error) {
+        if (exchange.finished) return;
+        exchange.finished = true;
+
+        if (exchange.timer != null) exchange.timer.cancel();
+        exchange.request.clearAbortTask();
+
+        if (error == null) exchange.body.finish();
+        else {
+            failures.incrementAndGet();
+            exchange.body.fail(error);
+        }
+        exchange.deliver(error);
+
+        if (!exchange.active) {
+            if (waiting.remove(exchange)) queued.decrementAndGet();
+            return;
+        }
+
+        exchange.active = false;
+        active--;
+        leased.decrementAndGet();
+
+        Exchange next;
+        while ((next = waiting.pollFirst()) != null) {
+            queued.decrementAndGet();
+            if (!next.finished) {
+                start(next);
+                break;
+            }
+        }
+    }
+
+    private Connection takeIdle() {
+        long now = System.currentTimeMillis();
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleConnections.decrementAndGet();
+            if (connection.isOpen() && (idleTimeout <= 0 || now - connection.lastUsed < idleTimeout))
+                return connection;
+            evicted.incrementAndGet();
+            connection.close();
+        }
+        return null;
+    }
+
+    private void release(Connection connection) {
+        if (closed) {
+            connection.close();
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        // Reading while idle detects the connections closed by the server
+        connection.key.interestOps(SelectionKey.OP_READ);
+        idle.addFirst(connection);
+        idleConnections.incrementAndGet();
+    }
+
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = idle.iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (!connection.isOpen() || now - connection.lastUsed >= idleTimeout) {
+                it.remove();
+                idleConnections.decrementAndGet();
+                connection.close();
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Closes all the idle connections and stops the eviction of this transport.
+     * Connections in use are closed when the response has been received.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictionTask.cancel();
+        selector.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Connection connection : idle) connection.close();
+                idle.clear();
+                idleConnections.set(0);
+            }
+        });
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Gets the transport statistics.
+     * <p>
+     * {"host":"localhost","port":8000,"maxConnections":5,"leased":1,"queued":0,"idle":2,"requests":1023,"created":3,"reused":1020,"evicted":0,"failures":0,"timeouts":0}
+     *
+     * @return the statistics
+     */
+    @Override
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("host", new JsonPrimitive(host));
+        stats.add("port", new JsonPrimitive(port));
+        stats.add("maxConnections", new JsonPrimitive(maxConnections));
+        stats.add("leased", new JsonPrimitive(leased.get()));
+        stats.add("queued", new JsonPrimitive(queued.get()));
+        stats.add("idle", new JsonPrimitive(idleConnections.get()));
+        stats.add("requests", new JsonPrimitive(requests.get()));
+        stats.add("created", new JsonPrimitive(created.get()));
+        stats.add("reused", new JsonPrimitive(reused.get()));
+        stats.add("evicted", new JsonPrimitive(evicted.get()));
+        stats.add("failures", new JsonPrimitive(failures.get()));
+        stats.add("timeouts", new JsonPrimitive(timeouts.get()));
+        return stats;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+
+    /**
+     * A request in progress. The request and the response are handled by the
+     * selector thread. The response is delivered to the callback once
+     * received completely or, if there is no callback, to the thread waiting
+     * for it as soon as its head has been received.
+     */
+    private class Exchange {
+        final ByteBuffer out;
+        final HTTPRequest request;
+        final HTTPCallback callback;
+        final NIOBodyInputStream body;
+
+        volatile NIOSelector.Timer timer = null;
+
+        // Selector thread only
+        HTTPResponseParser parser;
+        Connection connection = null;
+        boolean reused = false;
+        boolean retried = false;
+        boolean active = false;
+        boolean finished = false;
+
+        // Completion (the head of the response for the thread waiting for it)
+        private boolean done = false;
+        private HTTPResponse response = null;
+        private IOException error = null;
+
+        Exchange(HTTPRequest request, HTTPCallback callback) throws IOException {
+            this.request = request;
+            this.callback = callback;
+
+            // The body of the responses delivered to a callback is received completely
+            body = new NIOBodyInputStream(callback == null ? MAX_BUFFERED : Integer.MAX_VALUE, new Runnable() {
+                @Override
+                public void run() {
+                    selector.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (connection != null && connection.exchange == Exchange.this) connection.resume();
+                        }
+                    });
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    selector.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(Exchange.this, new IOException("Response body closed before the end"));
+                        }
+                    });
+                }
+            });
+            parser = new HTTPResponseParser(request, body);
+
+            byte[] head = request.encodeHead(hostHeader);
+            byte[] content = request.getBody();
+            out = ByteBuffer.allocate(head.length + (content == null ? 0 : content.length));
+            out.put(head);
+            if (content != null) out.put(content);
+            out.flip();
+        }
+
+        /**
+         * Prepares the request to be sent again.
+         */
+        void rewind() {
+            out.rewind();
+            parser = new HTTPResponseParser(request, body);
+        }
+
+        /**
+         * The task failing the request when the deadline expires.
+         */
+        Runnable expiration(final int timeout) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (finished) return;
+                    timeouts.incrementAndGet();
+                    fail(Exchange.this, new SocketTimeoutException("Deadline expired (" + timeout + " ms) waiting for the response from " + hostHeader));
+                }
+            };
+        }
+
+        /**
+         * Delivers the response (or the error) to the callback or to the waiting thread.
+         */
+        void deliver(IOException error) {
+            if (callback == null) {
+                complete(error == null ? parser.getResponse() : null, error);
+                return;
+            }
+
+            try {
+                if (error != null) callback.onFailure(error);
+                else callback.onResponse(parser.getResponse());
+            } catch (RuntimeException e) {
+                logger.error("Callback exception: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Sets the response or the error (only the first call has effect).
+         */
+        synchronized void complete(HTTPResponse response, IOException error) {
+            if (done) return;
+            done = true;
+            this.response = response;
+            this.error = error;
+            notifyAll();
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Waits for the head of the response.
+         *
+         * @param deadline the time (ms) by which the response must be complete (0 means no deadline)
+         */
+        synchronized HTTPResponse await(long deadline) throws IOException {
+            try {
+                while (!done) {
+                    if (deadline == 0) wait();
+                    else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) break;
+                        wait(remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                complete(null, new InterruptedIOException(e.getMessage()));
+                abandon(error);
+            }
+
+            if (!done) {
+                complete(null, new SocketTimeoutException("Deadline expired waiting for the response from " + hostHeader));
+                abandon(error);
+            }
+
+            if (error != null) throw error;
+            return response;
+        }
+
+        /**
+         * Closes the connection of a request that has been abandoned (e.g., timeout).
+         */
+        private void abandon(final IOException e) {
+            selector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (e instanceof SocketTimeoutException && !finished) timeouts.incrementAndGet();
+                    fail(Exchange.this, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * A persistent connection. Requests are sent one at a time. Selector thread only.
+     */
+    private class Connection implements NIOSelector.Handler {
+        final SocketChannel channel;
+        SelectionKey key = null;
+
+        // The request in progress (null if idle)
+        Exchange exchange = null;
+
+        long lastUsed = System.currentTimeMillis();
+        int requests = 0;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void send(Exchange exchange) {
+            requests++;
+            attach(exchange, SelectionKey.OP_WRITE);
+        }
+
+        void attach(Exchange exchange, int ops) {
+            this.exchange = exchange;
+            exchange.connection = this;
+            key.interestOps(ops);
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) send(exchange);
+                    return;
+                }
+                if (key.isWritable() && exchange != null) {
+                    channel.write(exchange.out);
+                    if (!exchange.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (key.isReadable()) read();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buffer = selector.getReadBuffer();
+            buffer.clear();
+            int n = channel.read(buffer);
+
+            if (exchange == null) {
+                // Idle: the server closed the connection (or it sent unexpected bytes)
+                if (idle.remove(this)) idleConnections.decrementAndGet();
+                evicted.incrementAndGet();
+                close();
+                return;
+            }
+
+            Exchange current = exchange;
+            boolean complete;
+            if (n == -1) complete = current.parser.end();
+            else complete = current.parser.parse(buffer.array(), buffer.arrayOffset(), n);
+
+            // The thread waiting for the response reads the body as it is received
+            if (current.callback == null && !current.isDone() && current.parser.getResponse() != null)
+                current.complete(current.parser.getResponse(), null);
+
+            if (complete) {
+                exchange = null;
+                if (current.parser.isReusable()) release(this);
+                else close();
+                finish(current, null);
+                return;
+            }
+
+            // Too many bytes not read yet: wait for the reader
+            if (!current.parser.isAccepting()) key.interestOps(0);
+        }
+
+        /**
+         * Reads again after the reader has consumed the buffered body.
+         */
+        void resume() {
+            if (exchange == null || !key.isValid()) return;
+            exchange.parser.resume();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection and completes the request in progress (if any)
+         * with the error.
+         */
+        void fail(IOException e) {
+            Exchange failed = exchange;
+            exchange = null;
+            close();
+
+            if (failed == null) return;
+
+            if (failed.reused && !failed.retried && failed.request.isIdempotent() && !failed.parser.isStarted()
+                    && !(e instanceof InterruptedIOException)) {
+                logger.debug("Stale connection (" + requests + " requests): " + e.getMessage());
+                failed.retried = true;
+                failed.rewind();
+                connect(failed);
+                return;
+            }
+
+            finish(failed, e);
+        }
+
+        boolean isOpen() {
+            return channel.isOpen() && key.isValid();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/* This class implements the selector thread shared by the non-blocking HTTP transports
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import it.unibo.arces.wot.sepa.android.logging.LogManager;
+import it.unibo.arces.wot.sepa.android.logging.Logger;
+
+/**
+ * A single selector thread serves the channels of all the non-blocking
+ * transports of the process.
+ * <p>
+ * Channels are registered with a {@link Handler} as attachment. Channels,
+ * selection keys and handlers must be accessed only by the selector thread:
+ * other threads submit tasks (see {@link #execute(Runnable)}). Tasks can also
+ * be run after a delay (e.g., request deadlines, see {@link #schedule(Runnable, long)}).
+ */
+class NIOSelector implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger("NIOSelector");
+
+    /**
+     * The handler of the I/O events of a channel (the attachment of the selection key).
+     */
+    interface Handler {
+        /**
+         * Called by the selector thread when the channel is ready for the interest operations.
+         *
+         * @param key the selection key
+         */
+        void ready(SelectionKey key);
+    }
+
+    /**
+     * A task run by the selector thread after a delay.
+     */
+    static class Timer implements Comparable<Timer> {
+        private final long time;
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+
+        private Timer(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+
+        /**
+         * Cancels the task (if not run yet).
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return (time < other.time ? -1 : (time == other.time ? 0 : 1));
+        }
+    }
+
+    private static NIOSelector instance = null;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+
+    // Selector thread only (cancelled timers are removed when expired)
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+    // Channels are read one at a time: the buffer is shared
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(32 * 1024);
+
+    private NIOSelector() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "NIOHTTPTransport-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the selector (the selector thread is started by the first call).
+     *
+     * @return the selector
+     * @throws IOException if the selector cannot be opened
+     */
+    static synchronized NIOSelector getInstance() throws IOException {
+        if (instance == null) instance = new NIOSelector();
+        return instance;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Gets the buffer used to read from the channels (selector thread only).
+     *
+     * @return the read buffer
+     */
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Runs a task on the selector thread.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    /**
+     * Runs a task on the selector thread after a delay.
+     *
+     * @param task  the task
+     * @param delay the delay in ms
+     * @return the timer (to cancel the task)
+     */
+    Timer schedule(Runnable task, long delay) {
+        final Timer timer = new Timer(System.currentTimeMillis() + delay, task);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                timers.add(timer);
+            }
+        });
+        return timer;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Tasks submitted by the selector thread itself do not wake up the selector
+                if (!tasks.isEmpty()) selector.selectNow();
+                else if (timers.isEmpty()) selector.select();
+                else {
+                    long delay = timers.peek().time - System.currentTimeMillis();
+                    if (delay > 0) selector.select(delay);
+                    else selector.selectNow();
+                }
+            } catch (IOException e) {
+                logger.error("Select failed: " + e.getMessage());
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) run(task);
+
+            long now = System.currentTimeMillis();
+            while (!timers.isEmpty() && timers.peek().time <= now) {
+                Timer timer = timers.poll();
+                if (!timer.cancelled) run(timer.task);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                try {
+                    ((Handler) key.attachment()).ready(key);
+                } catch (RuntimeException e) {
+                    logger.error("Handler failed: " + e);
+                }
+            }
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.error("Task failed: " + e);
+        }
+    }
+}
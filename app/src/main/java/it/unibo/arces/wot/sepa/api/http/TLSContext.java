@@ -0,0 +1,303 @@
+/* This class implements the TLS context shared by the secure connections of the process
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import okhttp3.internal.tls.OkHostnameVerifier;
+
+/**
+ * The TLS context of the secure connections towards the broker and the
+ * authorization server: the HTTPS requests (both with HttpURLConnection and
+ * with {@link HTTP2Transport}) and the secure WebSockets.
+ * <p>
+ * The client session cache belongs to the context: a new connection to a
+ * server contacted before resumes the TLS session (i.e., an abbreviated
+ * handshake without the certificates) while the server keeps it. Using the
+ * same context for all the connections of the process (see
+ * {@link #getDefault()}) lets the WebSocket and the HTTPS requests share the
+ * sessions.
+ * <p>
+ * The handshakes of the sockets created by {@link #getSocketFactory()} are
+ * counted. A resumed session keeps the creation time of the session of the
+ * first handshake with the same server (the identifier may change, e.g., with
+ * session tickets): that is how it is recognized.
+ */
+public class TLSContext {
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT = 24 * 3600;
+
+    // The sessions already established (to recognize the resumed ones)
+    private static final int SESSIONS = 256;
+
+    private static TLSContext defaultContext = null;
+
+    private final SSLContext context;
+    private final X509TrustManager trustManager;
+    private final SSLSocketFactory factory;
+    private final HostnameVerifier hostnameVerifier = OkHostnameVerifier.INSTANCE;
+
+    private final LinkedHashMap<String, Boolean> sessions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SESSIONS;
+        }
+    };
+
+    // Statistics
+    private final AtomicLong handshakes = new AtomicLong(0);
+    private final AtomicLong resumed = new AtomicLong(0);
+
+    private final HandshakeCompletedListener listener = new HandshakeCompletedListener() {
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            handshakes.incrementAndGet();
+            if (isResumed(event.getSession())) resumed.incrementAndGet();
+        }
+    };
+
+    /**
+     * Instantiates a new context trusting the certificates trusted by the
+     * platform.
+     *
+     * @throws GeneralSecurityException
+     */
+    public TLSContext() throws GeneralSecurityException {
+        this(null);
+    }
+
+    /**
+     * Instantiates a new context.
+     *
+     * @param trustStore the certificates to be trusted (e.g., the self-signed certificate of a broker) or null to use the ones trusted by the platform
+     * @throws GeneralSecurityException
+     */
+    public TLSContext(KeyStore trustStore) throws GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+
+        X509TrustManager x509 = null;
+        for (TrustManager manager : trustManagerFactory.getTrustManagers())
+            if (manager instanceof X509TrustManager) x509 = (X509TrustManager) manager;
+        if (x509 == null) throw new GeneralSecurityException("X509 trust manager not found");
+        trustManager = x509;
+
+        context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{trustManager}, null);
+
+        setSessionCache(SESSION_CACHE_SIZE, SESSION_TIMEOUT);
+
+        factory = new SessionSocketFactory(context.getSocketFactory());
+    }
+
+    /**
+     * Gets the context shared by the secure connections of the process (a new
+     * one trusting the certificates of the platform, if not set).
+     *
+     * @return the context
+     * @throws IllegalStateException if the platform does not support TLS
+     */
+    public static synchronized TLSContext getDefault() {
+        if (defaultContext == null) {
+            try {
+                defaultContext = new TLSContext();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("TLS not available: " + e.getMessage(), e);
+            }
+        }
+        return defaultContext;
+    }
+
+    /**
+     * Sets the context used by the connections opened from now on (e.g., one
+     * trusting the certificate of a test broker).
+     *
+     * @param context the context (null to use a new one trusting the certificates of the platform)
+     */
+    public static synchronized void setDefault(TLSContext context) {
+        defaultContext = context;
+    }
+
+    /**
+     * Sets the client session cache.
+     *
+     * @param size    the maximum number of cached sessions (0 means no limit)
+     * @param timeout the time (s) after that a session cannot be resumed (0 means no limit)
+     */
+    public void setSessionCache(int size, int timeout) {
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext == null) return;
+        sessionContext.setSessionCacheSize(size);
+        sessionContext.setSessionTimeout(timeout);
+    }
+
+    /**
+     * Gets the factory of the sockets using the session cache. The same
+     * factory is returned each time (HttpURLConnection keeps alive only the
+     * connections created by the same factory).
+     *
+     * @return the socket factory
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return factory;
+    }
+
+    public X509TrustManager getTrustManager() {
+        return trustManager;
+    }
+
+    public HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier;
+    }
+
+    /**
+     * Creates a (not connected) socket, e.g., for a secure WebSocket. The
+     * host name is not verified: see {@link #verify(String, SSLSocket)}.
+     *
+     * @return the socket
+     * @throws IOException
+     */
+    public SSLSocket createSocket() throws IOException {
+        return (SSLSocket) factory.createSocket();
+    }
+
+    /**
+     * Checks that the certificate of a connected socket belongs to the host.
+     *
+     * @param host   the host name (or address) used to connect
+     * @param socket the socket (the handshake is done if not done yet)
+     * @throws SSLPeerUnverifiedException if the certificate does not match the host
+     */
+    public void verify(String host, SSLSocket socket) throws SSLPeerUnverifiedException {
+        SSLSession session = socket.getSession();
+        if (!hostnameVerifier.verify(host, session))
+            throw new SSLPeerUnverifiedException("Certificate does not match the host: " + host);
+    }
+
+    private boolean isResumed(SSLSession session) {
+        String key = session.getPeerHost() + ":" + session.getPeerPort() + "@" + session.getCreationTime();
+        synchronized (sessions) {
+            return sessions.put(key, Boolean.TRUE) != null;
+        }
+    }
+
+    private Socket watch(Socket socket) {
+        if (socket instanceof SSLSocket) ((SSLSocket) socket).addHandshakeCompletedListener(listener);
+        return socket;
+    }
+
+    /**
+     * Gets the handshake counters.
+     * <p>
+     * {"handshakes":42,"resumed":39,"sessionCacheSize":64,"sessionTimeout":86400}
+     *
+     * @return the statistics
+     */
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.add("handshakes", new JsonPrimitive(handshakes.get()));
+        stats.add("resumed", new JsonPrimitive(resumed.get()));
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext != null) {
+            stats.add("sessionCacheSize", new JsonPrimitive(sessionContext.getSessionCacheSize()));
+            stats.add("sessionTimeout", new JsonPrimitive(sessionContext.getSessionTimeout()));
+        }
+        return stats;
+    }
+
+    public String toString() {
+        return getStatistics().toString();
+    }
+
+    /**
+     * The factory of the sockets of the context: the handshakes are counted.
+     */
+    private class SessionSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        SessionSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return watch(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return watch(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return watch(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return watch(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return watch(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return watch(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
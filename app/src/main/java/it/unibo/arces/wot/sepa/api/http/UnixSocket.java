@@ -0,0 +1,198 @@
+/* This class adapts a Unix domain socket to the java.net.Socket API
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import javax.net.SocketFactory;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+/**
+ * A Unix domain socket (a file system path) used where a TCP socket is
+ * expected: by the HTTP transports and by the WebSocket client.
+ * <p>
+ * Any address passed to {@link #connect(SocketAddress, int)} is ignored: the
+ * socket always connects to its path. The host and the port are still used to
+ * build the Host header and the URLs. TCP options are ignored.
+ */
+public class UnixSocket extends Socket {
+
+    private final String path;
+    private final LocalSocket socket = new LocalSocket();
+
+    private boolean connected = false;
+    private boolean closed = false;
+
+    /**
+     * Instantiates a new (not connected) Unix domain socket.
+     *
+     * @param path the path of the socket file
+     */
+    public UnixSocket(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Gets a factory of sockets connected to the path (e.g., for OkHttp).
+     *
+     * @param path the path of the socket file
+     * @return the socket factory
+     */
+    public static SocketFactory factory(final String path) {
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                return new UnixSocket(path);
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return connected();
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+                return connected();
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return connected();
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+                return connected();
+            }
+
+            private Socket connected() throws IOException {
+                UnixSocket socket = new UnixSocket(path);
+                socket.connect(null, 0);
+                return socket;
+            }
+        };
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Connects to the path of the socket (the endpoint and the timeout are
+     * ignored: connecting to a local socket does not block).
+     */
+    @Override
+    public synchronized void connect(SocketAddress endpoint, int timeout) throws IOException {
+        if (closed) throw new SocketException("Socket is closed");
+        if (connected) throw new SocketException("Already connected");
+        socket.connect(new LocalSocketAddress(path, LocalSocketAddress.Namespace.FILESYSTEM));
+        connected = true;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!connected) throw new SocketException("Socket is not connected");
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!connected) throw new SocketException("Socket is not connected");
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        try {
+            socket.setSoTimeout(timeout);
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        try {
+            return socket.getSoTimeout();
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) {
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        socket.close();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public synchronized boolean isBound() {
+        return connected;
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public String toString() {
+        return "UnixSocket[" + path + "]";
+    }
+}
@@ -37,6 +37,11 @@ import it.unibo.arces.wot.sepa.commons.sparqlresults.ARBindingsResults;
 
 public class Notification extends Response {
 
+    /**
+     * The results (created on first access).
+     */
+    private ARBindingsResults results = null;
+
     /**
      * Instantiates a new notification.
      *
@@ -82,9 +87,9 @@ public class Notification extends Response {
      * @return the AR bindings results
      */
     public ARBindingsResults getARBindingsResults() {
-        if (json.getAsJsonObject("results") != null)
-            return new ARBindingsResults(json.getAsJsonObject("results"));
-        return null;
+        if (results == null && json.getAsJsonObject("results") != null)
+            results = new ARBindingsResults(json.getAsJsonObject("results"));
+        return results;
     }
 
     /**
@@ -18,6 +18,12 @@
 
 package it.unibo.arces.wot.sepa.commons.sparqlresults;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
@@ -36,6 +42,12 @@ public class ARBindingsResults {
      */
     JsonObject results = new JsonObject();
 
+    /**
+     * The added and removed bindings (views created on first access).
+     */
+    private BindingsResults added = null;
+    private BindingsResults removed = null;
+
     /**
      * Instantiates a new AR bindings results.
      *
@@ -103,10 +115,8 @@ public class ARBindingsResults {
      * @return the added bindings
      */
     public BindingsResults getAddedBindings() {
-        JsonObject ret = new JsonObject();
-        ret.add("results", results.get("addedresults"));
-        ret.add("head", results.get("head"));
-        return new BindingsResults(ret);
+        if (added == null) added = new BindingsResults(results.get("head"), results.get("addedresults"));
+        return added;
     }
 
     /**
@@ -115,9 +125,48 @@ public class ARBindingsResults {
      * @return the removed bindings
      */
     public BindingsResults getRemovedBindings() {
-        JsonObject ret = new JsonObject();
-        ret.add("results", results.get("removedresults"));
-        ret.add("head", results.get("head"));
-        return new BindingsResults(ret);
+        if (removed == null) removed = new BindingsResults(results.get("head"), results.get("removedresults"));
+        return removed;
+    }
+
+    /**
+     * Merges two consecutive notifications into their net effect: a binding
+     * added by the first and removed by the second (or vice versa) is not
+     * present in the result.
+     *
+     * @param first  the first results
+     * @param second the results that follow the first ones
+     * @return the merged results
+     */
+    public static ARBindingsResults merge(ARBindingsResults first, ARBindingsResults second) {
+        // Bindings ==> net multiplicity (added > 0, removed < 0)
+        LinkedHashMap<JsonObject, Integer> net = new LinkedHashMap<JsonObject, Integer>();
+        Set<String> variables = new LinkedHashSet<String>();
+
+        for (ARBindingsResults results : new ARBindingsResults[]{first, second}) {
+            if (results.results.get("head") != null) {
+                variables.addAll(results.getRemovedBindings().getVariables());
+                if (results.results.get("removedresults") != null)
+                    for (Bindings bindings : results.getRemovedBindings()) count(net, bindings, -1);
+                if (results.results.get("addedresults") != null)
+                    for (Bindings bindings : results.getAddedBindings()) count(net, bindings, 1);
+            }
+        }
+
+        ArrayList<Bindings> added = new ArrayList<Bindings>();
+        ArrayList<Bindings> removed = new ArrayList<Bindings>();
+        for (Map.Entry<JsonObject, Integer> entry : net.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) added.add(new Bindings(entry.getKey()));
+            for (int i = 0; i > entry.getValue(); i--) removed.add(new Bindings(entry.getKey()));
+        }
+
+        return new ARBindingsResults(new BindingsResults(variables, added), new BindingsResults(variables, removed));
+    }
+
+    private static void count(Map<JsonObject, Integer> net, Bindings bindings, int n) {
+        Integer current = net.get(bindings.toJson());
+        int value = (current == null ? 0 : current) + n;
+        if (value == 0) net.remove(bindings.toJson());
+        else net.put(bindings.toJson(), value);
     }
 }
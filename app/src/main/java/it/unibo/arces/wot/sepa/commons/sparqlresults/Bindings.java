@@ -175,7 +175,7 @@ public class Bindings {
      * @return true, if successful
      */
     public boolean equals(Bindings qs) {
-        return this.solution.equals(qs.solution);
+        return toJson().equals(qs.toJson());
     }
 
     /**
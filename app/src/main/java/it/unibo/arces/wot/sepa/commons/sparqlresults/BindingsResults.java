@@ -18,7 +18,8 @@
 package it.unibo.arces.wot.sepa.commons.sparqlresults;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -39,13 +40,19 @@ import com.google.gson.JsonPrimitive;
  * results in JSON format
  */
 
-public class BindingsResults {
+public class BindingsResults implements Iterable<Bindings> {
 
     /**
      * The results.
      */
     private JsonObject results;
 
+    /**
+     * The "head" and "results" members of a view (see {@link #BindingsResults(JsonElement, JsonElement)}).
+     */
+    private JsonElement head = null;
+    private JsonElement body = null;
+
     /**
      * Instantiates a new bindings results.
      *
@@ -55,6 +62,26 @@ public class BindingsResults {
         this.results = results;
     }
 
+    /**
+     * Instantiates a view over the members of a parsed document (e.g., the
+     * added results of a notification). The JSON object is built only if
+     * requested by {@link #toJson()}.
+     *
+     * @param head    the "head" member
+     * @param results the "results" member
+     */
+    BindingsResults(JsonElement head, JsonElement results) {
+        this.head = head;
+        this.body = results;
+    }
+
+    /**
+     * Instantiates the results of a different representation (see
+     * {@link ColumnarBindingsResults}).
+     */
+    BindingsResults() {
+    }
+
     /**
      * Instantiates a new bindings results.
      *
@@ -111,10 +138,10 @@ public class BindingsResults {
     /**
      * Gets the variables.
      *
-     * @return the variables
+     * @return the variables (in the order of the head)
      */
     public Set<String> getVariables() {
-        Set<String> vars = new HashSet<String>();
+        Set<String> vars = new LinkedHashSet<String>();
         JsonArray variables = getVariablesArray();
         if (variables == null)
             return vars;
@@ -125,28 +152,63 @@ public class BindingsResults {
     }
 
     /**
-     * Gets the bindings.
+     * Gets the bindings (a copy: changing the list does not change the
+     * results). Use {@link #iterator()} to go through the bindings without
+     * copying them.
      *
      * @return the bindings
      */
     public List<Bindings> getBindings() {
-        List<Bindings> list = new ArrayList<Bindings>();
         JsonArray bindings = getBindingsArray();
         if (bindings == null)
-            return list;
+            return new ArrayList<Bindings>();
 
+        List<Bindings> list = new ArrayList<Bindings>(bindings.size());
         for (JsonElement solution : bindings) {
             list.add(new Bindings(solution.getAsJsonObject()));
         }
         return list;
     }
 
+    /**
+     * Iterates over the bindings without copying them into a list.
+     *
+     * @return the bindings iterator
+     */
+    @Override
+    public Iterator<Bindings> iterator() {
+        JsonArray bindings = getBindingsArray();
+        final Iterator<JsonElement> solutions = (bindings == null ? new JsonArray().iterator() : bindings.iterator());
+
+        return new Iterator<Bindings>() {
+            @Override
+            public boolean hasNext() {
+                return solutions.hasNext();
+            }
+
+            @Override
+            public Bindings next() {
+                return new Bindings(solutions.next().getAsJsonObject());
+            }
+
+            @Override
+            public void remove() {
+                solutions.remove();
+            }
+        };
+    }
+
     /**
      * To json.
      *
      * @return the json object
      */
     public JsonObject toJson() {
+        if (results == null) {
+            results = new JsonObject();
+            results.add("results", body);
+            results.add("head", head);
+        }
         return results;
     }
 
@@ -156,7 +218,7 @@ public class BindingsResults {
      * @see java.lang.Object#toString()
      */
     public String toString() {
-        return results.toString();
+        return toJson().toString();
     }
 
     /**
@@ -236,10 +298,8 @@ public class BindingsResults {
      * @return the bindings array
      */
     private JsonArray getBindingsArray() {
-        JsonElement varArray;
-        if (results == null)
-            return null;
-        if ((varArray = results.get("results")) == null)
+        JsonElement varArray = (results != null ? results.get("results") : body);
+        if (varArray == null || varArray.isJsonNull())
             return null;
         if ((varArray = varArray.getAsJsonObject().get("bindings")) == null)
             return null;
@@ -253,10 +313,8 @@ public class BindingsResults {
      * @return the variables array
      */
     private JsonArray getVariablesArray() {
-        JsonElement varArray;
-        if (results == null)
-            return null;
-        if ((varArray = results.get("head")) == null)
+        JsonElement varArray = (results != null ? results.get("head") : head);
+        if (varArray == null || varArray.isJsonNull())
             return null;
         if ((varArray = varArray.getAsJsonObject().get("vars")) == null)
             return null;
@@ -0,0 +1,257 @@
+/* This class implements a streaming parser of the SPARQL 1.1 Query Results JSON Format
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.commons.sparqlresults;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * This class parses the results of a SPARQL 1.1 Query (application/sparql-results+json)
+ * as a stream: the query solutions are returned one at a time, without
+ * building the JSON tree of the whole document.
+ * <p>
+ * This conforms with the following: - SPARQL 1.1 Query Results JSON Format
+ * https://www.w3.org/TR/2013/REC-sparql11-results-json-20130321/
+ * <p>
+ * It can be used as an iterator (pull) or with an {@link IBindingsHandler} (push):
+ * <p>
+ * <pre>
+ * BindingsResultsReader results = new BindingsResultsReader(reader);
+ * while (results.hasNext()) {
+ *     Bindings solution = results.next();
+ *     ...
+ * }
+ * results.close();
+ * </pre>
+ * Errors while reading or parsing are thrown as (unchecked) JsonParseException.
+ */
+public class BindingsResultsReader implements IBindingsResultsReader {
+
+    private final JsonReader json;
+
+    /**
+     * The variables (available once the "head" member has been parsed).
+     */
+    private final Set<String> variables = new LinkedHashSet<String>();
+
+    /**
+     * The ASK query result (if any).
+     */
+    private Boolean askResult = null;
+
+    /**
+     * True while the reader is positioned inside the "bindings" array.
+     */
+    private boolean inBindings = false;
+
+    /**
+     * True when the whole document has been parsed.
+     */
+    private boolean end = false;
+
+    /**
+     * The handler notified when the variables are parsed (may be null).
+     */
+    private IBindingsHandler handler = null;
+
+    /**
+     * Instantiates a new reader and parses the document up to the first query solution.
+     *
+     * @param reader the JSON document
+     * @throws IOException
+     */
+    public BindingsResultsReader(Reader reader) throws IOException {
+        this(reader, null);
+    }
+
+    private BindingsResultsReader(Reader reader, IBindingsHandler handler) throws IOException {
+        this.handler = handler;
+        json = new JsonReader(reader);
+        json.beginObject();
+        advance();
+    }
+
+    /**
+     * Parses a document and calls the handler for each query solution.
+     *
+     * @param reader  the JSON document
+     * @param handler the handler
+     * @return the number of query solutions
+     * @throws IOException
+     */
+    public static int parse(Reader reader, IBindingsHandler handler) throws IOException {
+        BindingsResultsReader results = new BindingsResultsReader(reader, handler);
+        int n = 0;
+        try {
+            while (results.hasNext()) {
+                handler.onBindings(results.next());
+                n++;
+            }
+        } finally {
+            results.close();
+        }
+        return n;
+    }
+
+    /**
+     * Gets the variables.
+     *
+     * @return the variables (empty if the "head" member has not been parsed yet)
+     */
+    @Override
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Gets the result of an ASK query.
+     *
+     * @return the boolean result or <i>null</i> if not present
+     */
+    @Override
+    public Boolean getBoolean() {
+        return askResult;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return inBindings;
+    }
+
+    @Override
+    public Bindings next() {
+        if (!inBindings) throw new NoSuchElementException();
+
+        try {
+            Bindings solution = new Bindings(readSolution());
+            if (!json.hasNext()) {
+                json.endArray();
+                inBindings = false;
+                // "results" object members after "bindings"
+                skipMembers();
+                json.endObject();
+                advance();
+            }
+            return solution;
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        json.close();
+    }
+
+    /**
+     * Moves to the next query solution (or to the end of the document),
+     * parsing the members found on the way.
+     */
+    private void advance() throws IOException {
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("head")) {
+                readHead();
+            } else if (name.equals("boolean")) {
+                askResult = json.nextBoolean();
+            } else if (name.equals("results") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    if (json.nextName().equals("bindings") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        json.beginArray();
+                        if (json.hasNext()) {
+                            inBindings = true;
+                            return;
+                        }
+                        json.endArray();
+                    } else json.skipValue();
+                }
+                json.endObject();
+            } else json.skipValue();
+        }
+        json.endObject();
+        end = true;
+    }
+
+    private void skipMembers() throws IOException {
+        while (json.hasNext()) {
+            json.nextName();
+            json.skipValue();
+        }
+    }
+
+    private void readHead() throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            if (json.nextName().equals("vars") && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                while (json.hasNext()) variables.add(json.nextString());
+                json.endArray();
+            } else json.skipValue();
+        }
+        json.endObject();
+
+        if (handler != null) handler.onVariables(variables);
+    }
+
+    /**
+     * { "x" : { "type": "bnode", "value": "r2" }, "name" : { "type": "literal", "value": "Bob", "xml:lang": "en" } }
+     */
+    private JsonObject readSolution() throws IOException {
+        JsonObject solution = new JsonObject();
+        json.beginObject();
+        while (json.hasNext()) {
+            String variable = json.nextName();
+            JsonObject term = new JsonObject();
+            json.beginObject();
+            while (json.hasNext()) {
+                String key = json.nextName();
+                if (json.peek() == JsonToken.STRING) term.add(key, new JsonPrimitive(json.nextString()));
+                else json.skipValue();
+            }
+            json.endObject();
+            solution.add(variable, term);
+        }
+        json.endObject();
+        return solution;
+    }
+
+    /**
+     * Checks if the whole document has been parsed.
+     *
+     * @return true, if the end of the document has been reached
+     */
+    public boolean isEnd() {
+        return end;
+    }
+}
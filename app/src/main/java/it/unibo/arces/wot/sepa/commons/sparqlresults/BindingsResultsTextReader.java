@@ -0,0 +1,318 @@
+/* This class implements a streaming parser of the SPARQL 1.1 Query Results CSV and TSV Formats
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.commons.sparqlresults;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.gson.JsonObject;
+
+/**
+ * This class parses the results of a SPARQL 1.1 Query in CSV (text/csv) or
+ * TSV (text/tab-separated-values) format, one query solution at a time.
+ * <p>
+ * This conforms with the following: - SPARQL 1.1 Query Results CSV and TSV
+ * Formats https://www.w3.org/TR/2013/REC-sparql11-results-csv-tsv-20130321/
+ * <p>
+ * TSV encodes RDF terms in the Turtle syntax, so the solutions are the same as
+ * the JSON format. CSV does not: blank nodes are recognized by the "_:" prefix,
+ * values that look like absolute IRIs are URIs and any other value is a plain
+ * literal (datatypes and language tags are lost).
+ * <p>
+ * Errors while reading or parsing are thrown as (unchecked) IllegalStateException.
+ */
+public class BindingsResultsTextReader implements IBindingsResultsReader {
+
+    private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+    private final BufferedReader in;
+    private final boolean tsv;
+
+    private final List<String> header = new ArrayList<String>();
+    private final Set<String> variables = new LinkedHashSet<String>();
+
+    // The next record (null at the end)
+    private List<String> record;
+
+    private BindingsResultsTextReader(Reader reader, boolean tsv) throws IOException {
+        this.in = (reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 8192));
+        this.tsv = tsv;
+
+        List<String> names = readRecord();
+        if (names != null) {
+            for (String name : names) {
+                if (name == null) name = "";
+                // TSV variables include the "?" (or "$") prefix
+                if (tsv && (name.startsWith("?") || name.startsWith("$"))) name = name.substring(1);
+                header.add(name);
+                variables.add(name);
+            }
+        }
+
+        record = readRecord();
+    }
+
+    /**
+     * Instantiates a new reader of CSV results.
+     *
+     * @param reader the CSV document
+     * @return the reader
+     * @throws IOException
+     */
+    public static BindingsResultsTextReader csv(Reader reader) throws IOException {
+        return new BindingsResultsTextReader(reader, false);
+    }
+
+    /**
+     * Instantiates a new reader of TSV results.
+     *
+     * @param reader the TSV document
+     * @return the reader
+     * @throws IOException
+     */
+    public static BindingsResultsTextReader tsv(Reader reader) throws IOException {
+        return new BindingsResultsTextReader(reader, true);
+    }
+
+    @Override
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    @Override
+    public Boolean getBoolean() {
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return record != null;
+    }
+
+    @Override
+    public Bindings next() {
+        if (record == null) throw new NoSuchElementException();
+
+        JsonObject solution = new JsonObject();
+        for (int i = 0; i < header.size() && i < record.size(); i++) {
+            String value = record.get(i);
+            if (value == null) continue;
+            RDFTerm term = (tsv ? parseTerm(value) : inferTerm(value));
+            solution.add(header.get(i), term.toJson());
+        }
+
+        try {
+            record = readRecord();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return new Bindings(solution);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads a record.
+     *
+     * @return the fields (null for the empty fields, i.e., unbound variables) or <i>null</i> at the end
+     */
+    private List<String> readRecord() throws IOException {
+        if (tsv) {
+            String line = in.readLine();
+            // A trailing empty line is not a solution (a solution with no bound variables has as many tabs as variables - 1)
+            if (line == null || (line.isEmpty() && header.size() != 1)) return null;
+            if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+
+            List<String> fields = new ArrayList<String>(Math.max(header.size(), 4));
+            int start = 0;
+            int tab;
+            while ((tab = line.indexOf('\t', start)) != -1) {
+                fields.add(tab > start ? line.substring(start, tab) : null);
+                start = tab + 1;
+            }
+            fields.add(start < line.length() ? line.substring(start) : null);
+            return fields;
+        }
+
+        // RFC 4180: fields may be quoted ("" is an escaped quote) and quoted fields may include line breaks
+        int c = in.read();
+        if (c == -1) return null;
+
+        List<String> fields = new ArrayList<String>(Math.max(header.size(), 4));
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        while (true) {
+            if (c == '"' && field.length() == 0 && !quoted) {
+                quoted = true;
+                while (true) {
+                    c = in.read();
+                    if (c == -1) throw new IllegalStateException("Unterminated quoted field");
+                    if (c == '"') {
+                        in.mark(1);
+                        if (in.read() == '"') field.append('"');
+                        else {
+                            in.reset();
+                            break;
+                        }
+                    } else field.append((char) c);
+                }
+                c = in.read();
+                continue;
+            }
+
+            if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+                fields.add(field.length() == 0 && !quoted ? null : field.toString());
+                field.setLength(0);
+                quoted = false;
+
+                if (c == ',') {
+                    c = in.read();
+                    continue;
+                }
+                if (c == '\r') {
+                    in.mark(1);
+                    if (in.read() != '\n') in.reset();
+                }
+                return fields;
+            }
+
+            field.append((char) c);
+            c = in.read();
+        }
+    }
+
+    /**
+     * CSV: the type of the term is guessed.
+     */
+    private static RDFTerm inferTerm(String value) {
+        if (value.startsWith("_:")) return new RDFTermBNode(value.substring(2));
+        if (isAbsoluteIRI(value)) return new RDFTermURI(value);
+        return new RDFTermLiteral(value);
+    }
+
+    private static boolean isAbsoluteIRI(String value) {
+        int colon = value.indexOf(':');
+        if (colon <= 0 || colon == value.length() - 1) return false;
+        if (!Character.isLetter(value.charAt(0))) return false;
+        for (int i = 1; i < colon; i++) {
+            char c = value.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') return false;
+        }
+        for (int i = colon + 1; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c) || c == '"' || c == '<' || c == '>') return false;
+        }
+        return true;
+    }
+
+    /**
+     * TSV: RDF terms are encoded in the Turtle syntax.
+     */
+    private static RDFTerm parseTerm(String value) {
+        if (value.startsWith("<") && value.endsWith(">")) return new RDFTermURI(value.substring(1, value.length() - 1));
+        if (value.startsWith("_:")) return new RDFTermBNode(value.substring(2));
+
+        char quote = value.charAt(0);
+        if (quote == '"' || quote == '\'') {
+            StringBuilder lexical = new StringBuilder(value.length());
+            int i = 1;
+            for (; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == quote) break;
+                if (c != '\\' || i + 1 == value.length()) {
+                    lexical.append(c);
+                    continue;
+                }
+                c = value.charAt(++i);
+                switch (c) {
+                    case 't':
+                        lexical.append('\t');
+                        break;
+                    case 'n':
+                        lexical.append('\n');
+                        break;
+                    case 'r':
+                        lexical.append('\r');
+                        break;
+                    case 'b':
+                        lexical.append('\b');
+                        break;
+                    case 'f':
+                        lexical.append('\f');
+                        break;
+                    case 'u':
+                    case 'U':
+                        int digits = (c == 'u' ? 4 : 8);
+                        if (i + digits >= value.length())
+                            throw new IllegalStateException("Malformed escape sequence: " + value);
+                        lexical.appendCodePoint(Integer.parseInt(value.substring(i + 1, i + 1 + digits), 16));
+                        i += digits;
+                        break;
+                    default:
+                        lexical.append(c);
+                }
+            }
+            if (i >= value.length()) throw new IllegalStateException("Unterminated literal: " + value);
+
+            String suffix = value.substring(i + 1);
+            if (suffix.startsWith("@")) return new RDFTermLiteral(lexical.toString(), suffix.substring(1), true);
+            if (suffix.startsWith("^^<") && suffix.endsWith(">"))
+                return new RDFTermLiteral(lexical.toString(), suffix.substring(3, suffix.length() - 1), false);
+            return new RDFTermLiteral(lexical.toString());
+        }
+
+        // Turtle abbreviations
+        if (value.equals("true") || value.equals("false")) return new RDFTermLiteral(value, XSD + "boolean", false);
+        if (isNumber(value)) {
+            if (value.indexOf('e') != -1 || value.indexOf('E') != -1)
+                return new RDFTermLiteral(value, XSD + "double", false);
+            if (value.indexOf('.') != -1) return new RDFTermLiteral(value, XSD + "decimal", false);
+            return new RDFTermLiteral(value, XSD + "integer", false);
+        }
+
+        throw new IllegalStateException("Malformed RDF term: " + value);
+    }
+
+    private static boolean isNumber(String value) {
+        boolean digits = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') digits = true;
+            else if ((c == '+' || c == '-') && (i == 0 || value.charAt(i - 1) == 'e' || value.charAt(i - 1) == 'E')) continue;
+            else if (c != '.' && c != 'e' && c != 'E') return false;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,788 @@
+/* This class represents the results of a SPARQL 1.1 Query stored by columns
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package it.unibo.arces.wot.sepa.commons.sparqlresults;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The results of a SPARQL 1.1 Query stored by columns: each variable has an
+ * array with the type of the terms, an array with the values and (only if
+ * needed) an array with the datatypes or language tags, as indexes in a table
+ * shared by all the columns.
+ * <p>
+ * A cell takes a few bytes besides the value, while a solution in the JSON
+ * representation takes a tree of objects for each term (e.g., large results
+ * or the results kept by a subscription take several times less memory).
+ * <p>
+ * The accessors are the ones of {@link BindingsResults}: the query solutions
+ * are views over a row, valid until a row is removed (the following rows are
+ * shifted): a view used afterwards throws
+ * {@link ConcurrentModificationException}, as does an iterator. The JSON
+ * representation is built by {@link #toJson()} each time it is called. The
+ * results can be collected while parsing a response, without building the
+ * JSON tree (e.g., as the {@link IBindingsHandler} of a query).
+ * <p>
+ * The terms can also be accessed by row and column (see
+ * {@link #getColumn(String)}), without creating the views.
+ * <p>
+ * The rows are indexed by the hash of their bindings (an open addressing
+ * table of ints): {@link #contains(Bindings)} and {@link #remove(Bindings)}
+ * find the row without scanning the rows. {@link #removeAny(Bindings)} also
+ * does not shift the following rows (e.g., results kept as a multiset, whose
+ * order does not matter).
+ */
+public class ColumnarBindingsResults extends BindingsResults implements IBindingsHandler {
+    // The types of the terms
+    private static final byte UNBOUND = 0;
+    private static final byte URI = 1;
+    private static final byte BNODE = 2;
+    private static final byte LITERAL = 3;
+    private static final byte TYPED_LITERAL = 4;
+    private static final byte LANG_LITERAL = 5;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The variables (in the order of the columns).
+     */
+    private final ArrayList<String> variables = new ArrayList<String>();
+    private final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+
+    /**
+     * The columns: [column][row].
+     */
+    private byte[][] types = new byte[0][];
+    private String[][] values = new String[0][];
+    // The datatype or language tag (index + 1 in the table, 0 if none) or null if the column has none
+    private int[][] qualifiers = new int[0][];
+
+    /**
+     * The datatypes and the language tags.
+     */
+    private final ArrayList<String> qualifierTable = new ArrayList<String>();
+    private final HashMap<String, Integer> qualifierIndex = new HashMap<String, Integer>();
+
+    private int rows = 0;
+    private int capacity = 0;
+
+    // Incremented when a row is removed (i.e., the views over the following rows are no longer valid)
+    private int modCount = 0;
+
+    /**
+     * The hash index: the hash of each row and an open addressing table of
+     * row + 1 (0 if the slot is empty), at most half full.
+     */
+    private int[] hashes = new int[0];
+    private int[] table = new int[0];
+
+    /**
+     * Instantiates empty results (the variables are added by
+     * {@link #onVariables(Set)} or with the solutions).
+     */
+    public ColumnarBindingsResults() {
+        super();
+    }
+
+    /**
+     * Instantiates empty results.
+     *
+     * @param variables the variables
+     */
+    public ColumnarBindingsResults(Set<String> variables) {
+        super();
+        if (variables != null) onVariables(variables);
+    }
+
+    /**
+     * Instantiates the results from the JSON representation.
+     *
+     * @param results the results (SPARQL 1.1 Query Results JSON Format)
+     * @throws IllegalArgumentException if a term is not valid
+     */
+    public ColumnarBindingsResults(JsonObject results) {
+        this(new BindingsResults(results));
+    }
+
+    /**
+     * Instantiates a copy of other results.
+     *
+     * @param results the results
+     * @throws IllegalArgumentException if a term is not valid
+     */
+    public ColumnarBindingsResults(BindingsResults results) {
+        super();
+        if (results == null) return;
+        onVariables(results.getVariables());
+        for (Bindings solution : results) add(solution);
+    }
+
+    /**
+     * Instantiates the results read from a parser (e.g.,
+     * {@link BindingsResultsReader}). The parser is closed.
+     *
+     * @param results the parser
+     * @throws IOException
+     */
+    public ColumnarBindingsResults(IBindingsResultsReader results) throws IOException {
+        super();
+        try {
+            onVariables(results.getVariables());
+            while (results.hasNext()) add(results.next());
+            // "head" may follow "results"
+            onVariables(results.getVariables());
+        } finally {
+            results.close();
+        }
+    }
+
+    @Override
+    public void onVariables(Set<String> variables) {
+        for (String variable : variables) column(variable);
+    }
+
+    @Override
+    public void onBindings(Bindings bindings) {
+        add(bindings);
+    }
+
+    /**
+     * Gets the variables.
+     *
+     * @return the variables (in the order of the columns)
+     */
+    @Override
+    public Set<String> getVariables() {
+        return new LinkedHashSet<String>(variables);
+    }
+
+    /**
+     * Gets the bindings. The list is a read-only view: each solution is a view
+     * over a row.
+     *
+     * @return the bindings
+     */
+    @Override
+    public List<Bindings> getBindings() {
+        return new AbstractList<Bindings>() {
+            @Override
+            public Bindings get(int index) {
+                if (index < 0 || index >= rows) throw new IndexOutOfBoundsException("Index: " + index);
+                return new Row(index);
+            }
+
+            @Override
+            public int size() {
+                return rows;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Bindings> iterator() {
+        return new Iterator<Bindings>() {
+            private int next = 0;
+            private boolean removable = false;
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override
+            public Bindings next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (next >= rows) throw new NoSuchElementException();
+                removable = true;
+                return new Row(next++);
+            }
+
+            @Override
+            public void remove() {
+                if (!removable) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                removable = false;
+                removeRow(--next);
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    /**
+     * Builds the JSON representation.
+     *
+     * @return the json object
+     */
+    @Override
+    public JsonObject toJson() {
+        JsonArray vars = new JsonArray();
+        for (String variable : variables) vars.add(new JsonPrimitive(variable));
+        JsonObject head = new JsonObject();
+        head.add("vars", vars);
+
+        JsonArray bindings = new JsonArray();
+        for (int row = 0; row < rows; row++) bindings.add(toJson(row));
+        JsonObject body = new JsonObject();
+        body.add("bindings", bindings);
+
+        JsonObject results = new JsonObject();
+        results.add("head", head);
+        results.add("results", body);
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return rows == 0;
+    }
+
+    @Override
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Adds a solution (the variables not yet known are added as columns).
+     *
+     * @param binding the solution
+     * @throws IllegalArgumentException if a term is not valid
+     */
+    @Override
+    public void add(Bindings binding) {
+        if (binding == null) return;
+
+        if (binding instanceof Row) {
+            Row other = (Row) binding;
+            other.check();
+            ColumnarBindingsResults source = other.results();
+            int row = newRow();
+            for (int c = 0; c < source.variables.size(); c++) {
+                if (source.types[c][other.row] == UNBOUND) continue;
+                int column = column(source.variables.get(c));
+                set(column, row, source.types[c][other.row], source.values[c][other.row], source.qualifier(c, other.row));
+            }
+            index(row);
+            return;
+        }
+
+        // Validated before adding the row
+        JsonObject solution = binding.toJson();
+        for (Map.Entry<String, JsonElement> term : solution.entrySet()) type(term.getValue());
+
+        int row = newRow();
+        for (Map.Entry<String, JsonElement> term : solution.entrySet()) {
+            JsonObject json = term.getValue().getAsJsonObject();
+            byte type = type(json);
+            String qualifier = null;
+            if (type == TYPED_LITERAL) qualifier = json.get("datatype").getAsString();
+            else if (type == LANG_LITERAL) qualifier = json.get("xml:lang").getAsString();
+            set(column(term.getKey()), row, type, json.get("value").getAsString(), qualifier);
+        }
+        index(row);
+    }
+
+    @Override
+    public boolean contains(Bindings solution) {
+        return indexOf(solution) != -1;
+    }
+
+    /**
+     * Removes the first row equal to the solution.
+     *
+     * @param solution the solution
+     */
+    @Override
+    public void remove(Bindings solution) {
+        int row = indexOf(solution);
+        if (row != -1) removeRow(row);
+    }
+
+    /**
+     * Removes a row equal to the solution: the last row is moved in its place
+     * (i.e., the order of the rows is not kept, but the following rows are not
+     * shifted).
+     *
+     * @param solution the solution
+     * @return true if a row has been removed
+     */
+    public boolean removeAny(Bindings solution) {
+        int row = indexOf(solution);
+        if (row == -1) return false;
+
+        unindex(row);
+        int last = rows - 1;
+        if (row != last) {
+            unindex(last);
+            for (int c = 0; c < variables.size(); c++) {
+                types[c][row] = types[c][last];
+                values[c][row] = values[c][last];
+                if (qualifiers[c] != null) qualifiers[c][row] = qualifiers[c][last];
+            }
+            hashes[row] = hashes[last];
+            insert(row);
+        }
+        for (int c = 0; c < variables.size(); c++) {
+            types[c][last] = UNBOUND;
+            values[c][last] = null;
+        }
+        rows--;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Gets the column of a variable.
+     *
+     * @param variable the variable
+     * @return the column (-1 if the variable is unknown)
+     */
+    public int getColumn(String variable) {
+        Integer column = columns.get(variable);
+        return (column == null ? -1 : column);
+    }
+
+    /**
+     * Gets the value of a term.
+     *
+     * @param row    the row
+     * @param column the column
+     * @return the value (null if the variable is not bound)
+     */
+    public String getValue(int row, int column) {
+        check(row);
+        return values[column][row];
+    }
+
+    /**
+     * Gets the datatype of a literal.
+     *
+     * @param row    the row
+     * @param column the column
+     * @return the datatype (null if the term is not a typed literal)
+     */
+    public String getDatatype(int row, int column) {
+        check(row);
+        return (types[column][row] == TYPED_LITERAL ? qualifier(column, row) : null);
+    }
+
+    /**
+     * Gets the language tag of a literal.
+     *
+     * @param row    the row
+     * @param column the column
+     * @return the language tag (null if the term is not a literal with a language tag)
+     */
+    public String getLanguage(int row, int column) {
+        check(row);
+        return (types[column][row] == LANG_LITERAL ? qualifier(column, row) : null);
+    }
+
+    public boolean isURI(int row, int column) {
+        check(row);
+        return types[column][row] == URI;
+    }
+
+    public boolean isBNode(int row, int column) {
+        check(row);
+        return types[column][row] == BNODE;
+    }
+
+    public boolean isLiteral(int row, int column) {
+        check(row);
+        return types[column][row] >= LITERAL;
+    }
+
+    private void check(int row) {
+        if (row < 0 || row >= rows) throw new IndexOutOfBoundsException("Row: " + row);
+    }
+
+    private static byte type(JsonElement term) {
+        if (term == null || !term.isJsonObject()) throw new IllegalArgumentException("Invalid RDF term: " + term);
+        JsonObject json = term.getAsJsonObject();
+        if (json.get("type") == null || json.get("value") == null)
+            throw new IllegalArgumentException("Invalid RDF term: " + term);
+
+        String type = json.get("type").getAsString();
+        if (type.equals("uri")) return URI;
+        if (type.equals("bnode")) return BNODE;
+        // "typed-literal" of the SPARQL Query Results JSON Format 1.0
+        if (type.equals("literal") || type.equals("typed-literal")) {
+            if (json.get("xml:lang") != null) return LANG_LITERAL;
+            if (json.get("datatype") != null) return TYPED_LITERAL;
+            return LITERAL;
+        }
+        throw new IllegalArgumentException("Unknown RDF term type: " + type);
+    }
+
+    private int column(String variable) {
+        Integer column = columns.get(variable);
+        if (column != null) return column;
+
+        int n = variables.size();
+        variables.add(variable);
+        columns.put(variable, n);
+
+        types = Arrays.copyOf(types, n + 1);
+        values = Arrays.copyOf(values, n + 1);
+        qualifiers = Arrays.copyOf(qualifiers, n + 1);
+        types[n] = new byte[capacity];
+        values[n] = new String[capacity];
+        return n;
+    }
+
+    private int newRow() {
+        if (rows == capacity) {
+            capacity = Math.max(INITIAL_CAPACITY, capacity * 2);
+            for (int c = 0; c < variables.size(); c++) {
+                types[c] = Arrays.copyOf(types[c], capacity);
+                values[c] = Arrays.copyOf(values[c], capacity);
+                if (qualifiers[c] != null) qualifiers[c] = Arrays.copyOf(qualifiers[c], capacity);
+            }
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        return rows++;
+    }
+
+    private void set(int column, int row, byte type, String value, String qualifier) {
+        types[column][row] = type;
+        values[column][row] = value;
+
+        if (qualifier == null) {
+            if (qualifiers[column] != null) qualifiers[column][row] = 0;
+            return;
+        }
+
+        Integer index = qualifierIndex.get(qualifier);
+        if (index == null) {
+            qualifierTable.add(qualifier);
+            index = qualifierTable.size();
+            qualifierIndex.put(qualifier, index);
+        }
+        if (qualifiers[column] == null) qualifiers[column] = new int[capacity];
+        qualifiers[column][row] = index;
+    }
+
+    private String qualifier(int column, int row) {
+        if (qualifiers[column] == null || qualifiers[column][row] == 0) return null;
+        return qualifierTable.get(qualifiers[column][row] - 1);
+    }
+
+    private void removeRow(int row) {
+        unindex(row);
+        int moved = rows - row - 1;
+        for (int c = 0; c < variables.size(); c++) {
+            System.arraycopy(types[c], row + 1, types[c], row, moved);
+            System.arraycopy(values[c], row + 1, values[c], row, moved);
+            values[c][rows - 1] = null;
+            types[c][rows - 1] = UNBOUND;
+            if (qualifiers[c] != null) System.arraycopy(qualifiers[c], row + 1, qualifiers[c], row, moved);
+        }
+        System.arraycopy(hashes, row + 1, hashes, row, moved);
+        rows--;
+        modCount++;
+
+        // The following rows have been shifted
+        for (int i = 0; i < table.length; i++)
+            if (table[i] > row + 1) table[i]--;
+    }
+
+    /**
+     * Gets the first row equal to a solution.
+     *
+     * @return the row (-1 if there is none)
+     */
+    private int indexOf(Bindings solution) {
+        if (solution == null || rows == 0) return -1;
+
+        int hash = hash(solution);
+        int mask = table.length - 1;
+        int ret = -1;
+        for (int i = slot(hash, mask); table[i] != 0; i = (i + 1) & mask) {
+            int row = table[i] - 1;
+            if (hashes[row] == hash && (ret == -1 || row < ret) && matches(row, solution)) ret = row;
+        }
+        return ret;
+    }
+
+    private static int hash(String variable, String value) {
+        return variable.hashCode() * 31 + value.hashCode();
+    }
+
+    /**
+     * The hash of a solution: it does not depend on the order of the variables.
+     */
+    private static int hash(Bindings solution) {
+        int ret = 0;
+        for (String variable : solution.getVariables()) {
+            String value = solution.getBindingValue(variable);
+            if (value != null) ret += hash(variable, value);
+        }
+        return ret;
+    }
+
+    private int hash(int row) {
+        int ret = 0;
+        for (int c = 0; c < variables.size(); c++)
+            if (types[c][row] != UNBOUND) ret += hash(variables.get(c), values[c][row]);
+        return ret;
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Adds a row (whose bindings have been set) to the index.
+     */
+    private void index(int row) {
+        hashes[row] = hash(row);
+        if (rows * 2 <= table.length) {
+            insert(row);
+            return;
+        }
+
+        // The table is resized and filled again
+        int size = 16;
+        while (size < rows * 4) size <<= 1;
+        table = new int[size];
+        for (int r = 0; r < rows; r++) insert(r);
+    }
+
+    private void insert(int row) {
+        int mask = table.length - 1;
+        int i = slot(hashes[row], mask);
+        while (table[i] != 0) i = (i + 1) & mask;
+        table[i] = row + 1;
+    }
+
+    /**
+     * Removes a row from the index (backward shift deletion).
+     */
+    private void unindex(int row) {
+        int mask = table.length - 1;
+        int i = slot(hashes[row], mask);
+        while (table[i] != row + 1) i = (i + 1) & mask;
+
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = slot(hashes[table[j] - 1], mask);
+            // The entry stays if its home slot is cyclically in (i, j]
+            if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+            table[i] = table[j];
+            i = j;
+        }
+        table[i] = 0;
+    }
+
+    /**
+     * Checks if a row is equal to a solution (i.e., the same variables bound to the same terms).
+     */
+    private boolean matches(int row, Bindings solution) {
+        int bound = 0;
+        for (int c = 0; c < variables.size(); c++) {
+            String variable = variables.get(c);
+            byte type = types[c][row];
+            if (type == UNBOUND) {
+                if (solution.getBindingValue(variable) != null) return false;
+                continue;
+            }
+            bound++;
+
+            if (!values[c][row].equals(solution.getBindingValue(variable))) return false;
+            switch (type) {
+                case URI:
+                    if (!solution.isURI(variable)) return false;
+                    break;
+                case BNODE:
+                    if (!solution.isBNode(variable)) return false;
+                    break;
+                default:
+                    if (!solution.isLiteral(variable)) return false;
+                    if (!equals(getDatatype(row, c), solution.getDatatype(variable))) return false;
+                    if (!equals(getLanguage(row, c), solution.getLanguage(variable))) return false;
+            }
+        }
+        return bound == solution.getVariables().size();
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null ? b == null : a.equals(b));
+    }
+
+    private JsonObject toJson(int row) {
+        JsonObject solution = new JsonObject();
+        for (int c = 0; c < variables.size(); c++) {
+            byte type = types[c][row];
+            if (type == UNBOUND) continue;
+
+            JsonObject term = new JsonObject();
+            if (type == URI) term.add("type", new JsonPrimitive("uri"));
+            else if (type == BNODE) term.add("type", new JsonPrimitive("bnode"));
+            else term.add("type", new JsonPrimitive("literal"));
+            term.add("value", new JsonPrimitive(values[c][row]));
+            if (type == TYPED_LITERAL) term.add("datatype", new JsonPrimitive(qualifier(c, row)));
+            else if (type == LANG_LITERAL) term.add("xml:lang", new JsonPrimitive(qualifier(c, row)));
+
+            solution.add(variables.get(c), term);
+        }
+        return solution;
+    }
+
+    /**
+     * A query solution: the view over a row.
+     */
+    private class Row extends Bindings {
+        private final int row;
+        private final int expectedModCount;
+
+        Row(int row) {
+            super((JsonObject) null);
+            this.row = row;
+            this.expectedModCount = modCount;
+        }
+
+        ColumnarBindingsResults results() {
+            return ColumnarBindingsResults.this;
+        }
+
+        /**
+         * Checks that the row has not been shifted (or removed).
+         */
+        void check() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException("Row " + row + " has been shifted");
+        }
+
+        private byte type(String variable) {
+            check();
+            Integer column = columns.get(variable);
+            return (column == null ? UNBOUND : types[column][row]);
+        }
+
+        @Override
+        public Set<String> getVariables() {
+            check();
+            Set<String> ret = new HashSet<String>();
+            for (int c = 0; c < variables.size(); c++)
+                if (types[c][row] != UNBOUND) ret.add(variables.get(c));
+            return ret;
+        }
+
+        @Override
+        public String getBindingValue(String variable) {
+            check();
+            Integer column = columns.get(variable);
+            return (column == null ? null : values[column][row]);
+        }
+
+        @Override
+        public String getDatatype(String variable) {
+            check();
+            Integer column = columns.get(variable);
+            return (column == null ? null : ColumnarBindingsResults.this.getDatatype(row, column));
+        }
+
+        @Override
+        public String getLanguage(String variable) {
+            check();
+            Integer column = columns.get(variable);
+            return (column == null ? null : ColumnarBindingsResults.this.getLanguage(row, column));
+        }
+
+        @Override
+        public boolean isLiteral(String variable) {
+            return type(variable) >= LITERAL;
+        }
+
+        @Override
+        public boolean isURI(String variable) {
+            return type(variable) == URI;
+        }
+
+        @Override
+        public boolean isBNode(String variable) {
+            return type(variable) == BNODE;
+        }
+
+        /**
+         * Binds a variable of the row (the variable is added as a column if not known).
+         *
+         * @param variable the variable
+         * @param value    the value
+         */
+        @Override
+        public void addBinding(String variable, RDFTerm value) {
+            check();
+            JsonObject json = value.toJson();
+            byte type = ColumnarBindingsResults.type(json);
+            String qualifier = null;
+            if (type == TYPED_LITERAL) qualifier = json.get("datatype").getAsString();
+            else if (type == LANG_LITERAL) qualifier = json.get("xml:lang").getAsString();
+
+            // The hash of the row changes
+            unindex(row);
+            set(column(variable), row, type, json.get("value").getAsString(), qualifier);
+            index(row);
+        }
+
+        @Override
+        public boolean equals(Bindings qs) {
+            check();
+            return matches(row, qs);
+        }
+
+        @Override
+        public JsonObject toJson() {
+            check();
+            return ColumnarBindingsResults.this.toJson(row);
+        }
+
+        @Override
+        public String toString() {
+            return toJson().toString();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            check();
+            for (int c = 0; c < variables.size(); c++)
+                if (types[c][row] != UNBOUND) return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/* This interface includes the methods called while the results of a SPARQL 1.1 Query are streamed
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.commons.sparqlresults;
+
+import java.util.Set;
+
+public interface IBindingsHandler {
+    /**
+     * Called with the variables of the results (usually before the first
+     * solution, but the SPARQL 1.1 Query Results JSON Format does not mandate
+     * the order of "head" and "results").
+     *
+     * @param variables the variables
+     */
+    void onVariables(Set<String> variables);
+
+    /**
+     * Called for each query solution, in the order they are received.
+     *
+     * @param bindings the query solution
+     */
+    void onBindings(Bindings bindings);
+}
@@ -0,0 +1,47 @@
+/* This interface includes the methods of the readers of SPARQL 1.1 Query Results
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.commons.sparqlresults;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A reader of query results that returns the query solutions one at a time
+ * (see {@link BindingsResultsReader} for JSON and {@link BindingsResultsTextReader}
+ * for CSV and TSV).
+ * <p>
+ * Errors while reading or parsing a solution are thrown by {@link #next()}
+ * as unchecked exceptions.
+ */
+public interface IBindingsResultsReader extends Iterator<Bindings>, Closeable {
+    /**
+     * Gets the variables.
+     *
+     * @return the variables (empty if they have not been parsed yet)
+     */
+    Set<String> getVariables();
+
+    /**
+     * Gets the result of an ASK query.
+     *
+     * @return the boolean result or <i>null</i> if not present
+     */
+    Boolean getBoolean();
+}
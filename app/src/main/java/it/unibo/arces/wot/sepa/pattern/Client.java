@@ -70,6 +70,14 @@ public abstract class Client {
         addNamespaces(appProfile);
     }
 
+    /**
+     * Closes the client: the subscriptions are unsubscribed and the connections
+     * are released.
+     */
+    public void close() {
+        if (protocolClient != null) protocolClient.close();
+    }
+
     protected String replaceBindings(String sparql, Bindings bindings) {
         if (bindings == null || sparql == null) return sparql;
 
@@ -87,6 +87,19 @@ public abstract class Consumer extends Client implements IConsumer {
         return response;
     }
 
+    /**
+     * Enables or disables the conflation of the notifications. When the
+     * handlers are slower than the notifications (e.g., a user interface),
+     * the queued notifications are merged into their net effect: the handlers
+     * catch up with a single call and bindings added and then removed are not
+     * notified at all.
+     *
+     * @param enabled true to conflate the notifications
+     */
+    public final void setConflation(boolean enabled) {
+        protocolClient.setNotificationConflation(enabled);
+    }
+
     public final Response unsubscribe() {
         logger.debug("UNSUBSCRIBE " + subID);
 
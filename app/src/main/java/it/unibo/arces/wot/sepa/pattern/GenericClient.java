@@ -21,6 +21,7 @@ package it.unibo.arces.wot.sepa.pattern;
 import it.unibo.arces.wot.sepa.api.ISubscriptionHandler;
 import it.unibo.arces.wot.sepa.api.SPARQL11SEProtocol;
 import it.unibo.arces.wot.sepa.commons.sparqlresults.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.IBindingsHandler;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPASecurityException;
 import it.unibo.arces.wot.sepa.commons.request.QueryRequest;
@@ -45,6 +46,10 @@ public abstract class GenericClient extends Client implements ISubscriptionHandl
         return protocolClient.query(new QueryRequest(prefixes() + replaceBindings(SPARQL_QUERY, forced)));
     }
 
+    public Response query(String SPARQL_QUERY, Bindings forced, IBindingsHandler handler) {
+        return protocolClient.query(new QueryRequest(prefixes() + replaceBindings(SPARQL_QUERY, forced)), handler);
+    }
+
     public Response subscribe(String SPARQL_SUBSCRIBE, Bindings forced) {
         return protocolClient.subscribe(new SubscribeRequest(prefixes() + replaceBindings(SPARQL_SUBSCRIBE, forced)));
     }
@@ -18,11 +18,18 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package it.unibo.arces.wot.sepa.pattern;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 import it.unibo.arces.wot.sepa.android.logging.LogManager;
 import it.unibo.arces.wot.sepa.android.logging.Logger;
 
 import it.unibo.arces.wot.sepa.commons.sparqlresults.Bindings;
+import it.unibo.arces.wot.sepa.api.IResponseHandler;
 import it.unibo.arces.wot.sepa.api.SPARQL11SEProtocol;
+import it.unibo.arces.wot.sepa.api.UpdateCoalescer;
 import it.unibo.arces.wot.sepa.commons.exceptions.SEPAProtocolException;
 import it.unibo.arces.wot.sepa.commons.request.UpdateRequest;
 import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
@@ -34,6 +41,9 @@ public class Producer extends Client implements IProducer {
 
     private static final Logger logger = LogManager.getLogger("Producer");
 
+    // Updates merged into a single request (null if coalescing is disabled)
+    private UpdateCoalescer coalescer = null;
+
     public Producer(ApplicationProfile appProfile, String updateID) throws SEPAProtocolException {
         super(appProfile);
 
@@ -47,6 +57,54 @@ public class Producer extends Client implements IProducer {
         sparqlUpdate = appProfile.update(updateID);
 
         protocolClient = new SPARQL11SEProtocol(appProfile);
+
+        if (appProfile.isUpdateCoalescingEnabled())
+            enableCoalescing(appProfile.getUpdateCoalescingMaxUpdates(), appProfile.getUpdateCoalescingMaxBytes(),
+                    appProfile.getUpdateCoalescingLinger());
+    }
+
+    /**
+     * Enables the coalescing of updates: the updates are buffered and sent as a
+     * single SPARQL 1.1 Update request (operations separated by ";") when
+     * <i>maxUpdates</i> updates or <i>maxBytes</i> bytes (UTF-8) have been
+     * buffered, or after <i>linger</i> ms.
+     * <p>
+     * It can be enabled also by the JSAP:
+     * "updateCoalescing" : { "maxUpdates" : 100, "maxBytes" : 65536, "linger" : 20 }
+     * <p>
+     * Each update gets the response of the request it has been sent with
+     * (the request is executed as a whole: it either succeeds or fails).
+     * {@link #update(Bindings)} blocks until that response is available, so
+     * coalescing is meant for {@link #updateAsync(Bindings, IResponseHandler)}
+     * or for updates issued by several threads.
+     *
+     * @param maxUpdates the maximum number of updates of a request
+     * @param maxBytes   the maximum length (UTF-8 bytes) of a request
+     * @param linger     the maximum time (ms) an update waits for other updates
+     */
+    public synchronized void enableCoalescing(int maxUpdates, int maxBytes, long linger) {
+        if (coalescer != null) coalescer.close();
+        coalescer = new UpdateCoalescer(protocolClient, prefixes(), maxUpdates, maxBytes, linger);
+    }
+
+    /**
+     * Sends the buffered updates and disables coalescing.
+     */
+    public synchronized void disableCoalescing() {
+        if (coalescer != null) coalescer.close();
+        coalescer = null;
+    }
+
+    /**
+     * Sends the buffered updates (if coalescing is enabled).
+     */
+    public void flush() {
+        UpdateCoalescer current = getCoalescer();
+        if (current != null) current.flush();
+    }
+
+    private synchronized UpdateCoalescer getCoalescer() {
+        return coalescer;
     }
 
     public Response update(Bindings forcedBindings) {
@@ -55,10 +113,50 @@ public class Producer extends Client implements IProducer {
             return new ErrorResponse(-1, 400, "Producer not initialized");
         }
 
+        UpdateCoalescer current = getCoalescer();
+        if (current != null) {
+            try {
+                return current.add(replaceBindings(sparqlUpdate, forcedBindings), null).get();
+            } catch (InterruptedException | ExecutionException e) {
+                return new ErrorResponse(-1, 500, e.getMessage());
+            } catch (IllegalStateException e) {
+                // Coalescing disabled meanwhile
+            }
+        }
+
         String sparql = prefixes() + replaceBindings(sparqlUpdate, forcedBindings);
 
         logger.debug("<UPDATE> ==> " + sparql);
 
         return protocolClient.update(new UpdateRequest(sparql));
     }
+
+    public Future<Response> updateAsync(Bindings forcedBindings, IResponseHandler handler) {
+        if (sparqlUpdate == null || protocolClient == null) {
+            logger.fatal("Producer not initialized");
+            FutureTask<Response> error = new FutureTask<Response>(new Callable<Response>() {
+                @Override
+                public Response call() {
+                    return new ErrorResponse(-1, 400, "Producer not initialized");
+                }
+            });
+            error.run();
+            return error;
+        }
+
+        UpdateCoalescer current = getCoalescer();
+        if (current != null) {
+            try {
+                return current.add(replaceBindings(sparqlUpdate, forcedBindings), handler);
+            } catch (IllegalStateException e) {
+                // Coalescing disabled meanwhile
+            }
+        }
+
+        String sparql = prefixes() + replaceBindings(sparqlUpdate, forcedBindings);
+
+        logger.debug("<UPDATE ASYNC> ==> " + sparql);
+
+        return protocolClient.updateAsync(new UpdateRequest(sparql), handler);
+    }
 }
@@ -0,0 +1,213 @@
+/* Unit tests of the CBOR encoding of the WebSocket messages
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CborCodecTest {
+    private static final String notification = "{\"notification\":{\"spuid\":\"sepa://subscription/1\",\"sequence\":3,\"results\":{"
+            + "\"head\":{\"vars\":[\"s\",\"o\"]},\"addedresults\":{\"bindings\":["
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://example.org/città\"},\"o\":{\"type\":\"literal\",\"value\":\"21.5\",\"datatype\":\"http://www.w3.org/2001/XMLSchema#decimal\"}},"
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://example.org/città\"},\"o\":{\"type\":\"literal\",\"value\":\"水\",\"xml:lang\":\"ja\"}}]},"
+            + "\"removedresults\":{\"bindings\":[{\"s\":{\"type\":\"bnode\",\"value\":\"b0\"},\"o\":{\"type\":\"literal\",\"value\":\"-1\"}}]}}}}";
+
+    private static JsonElement decode(String hex) {
+        return CborCodec.decode(ByteBuffer.wrap(bytes(hex)));
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] ret = new byte[hex.length() / 2];
+        for (int i = 0; i < ret.length; i++) ret[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return ret;
+    }
+
+    private static JsonElement json(String json) {
+        return new JsonParser().parse(json);
+    }
+
+    // RFC 8949, Appendix A
+
+    @Test
+    public void integers() {
+        assertEquals(0, decode("00").getAsLong());
+        assertEquals(23, decode("17").getAsLong());
+        assertEquals(24, decode("1818").getAsLong());
+        assertEquals(1000, decode("1903e8").getAsLong());
+        assertEquals(1000000000000L, decode("1b000000e8d4a51000").getAsLong());
+        assertEquals(new BigInteger("18446744073709551615"), decode("1bffffffffffffffff").getAsBigInteger());
+        assertEquals(-1, decode("20").getAsLong());
+        assertEquals(-1000, decode("3903e7").getAsLong());
+        assertEquals(new BigInteger("-18446744073709551616"), decode("3bffffffffffffffff").getAsBigInteger());
+    }
+
+    @Test
+    public void floats() {
+        assertEquals(0.0, decode("f90000").getAsDouble(), 0);
+        assertEquals(1.0, decode("f93c00").getAsDouble(), 0);
+        assertEquals(65504.0, decode("f97bff").getAsDouble(), 0);
+        assertEquals(5.960464477539063e-8, decode("f90001").getAsDouble(), 0);
+        assertEquals(-4.0, decode("f9c400").getAsDouble(), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, decode("f9fc00").getAsDouble(), 0);
+        assertEquals(100000.0, decode("fa47c35000").getAsDouble(), 0);
+        assertEquals(1.1, decode("fb3ff199999999999a").getAsDouble(), 0);
+    }
+
+    @Test
+    public void simpleValues() {
+        assertEquals(json("false"), decode("f4"));
+        assertEquals(json("true"), decode("f5"));
+        assertTrue(decode("f6").isJsonNull());
+        assertTrue(decode("f7").isJsonNull());
+    }
+
+    @Test
+    public void textStrings() {
+        assertEquals("", decode("60").getAsString());
+        assertEquals("IETF", decode("6449455446").getAsString());
+        assertEquals("\"\\", decode("62225c").getAsString());
+        assertEquals("ü", decode("62c3bc").getAsString());
+        assertEquals("水", decode("63e6b0b4").getAsString());
+        assertEquals("𐅑", decode("64f0908591").getAsString());
+        assertEquals("streaming", decode("7f657374726561646d696e67ff").getAsString());
+    }
+
+    @Test
+    public void byteStringsAreBase64() {
+        assertEquals("", decode("40").getAsString());
+        assertEquals("AQIDBA==", decode("4401020304").getAsString());
+        assertEquals("AQIDBAU=", decode("5f42010243030405ff").getAsString());
+        assertEquals("AQID", decode("43010203").getAsString());
+        assertEquals("/+8=", CborCodec.base64(new byte[]{(byte) 0xff, (byte) 0xef}));
+    }
+
+    @Test
+    public void arraysAndMaps() {
+        assertEquals(json("[1,[2,3],[4,5]]"), decode("8301820203820405"));
+        assertEquals(json("[1,[2,3],[4,5]]"), decode("9f01820203820405ff"));
+        assertEquals(json("[]"), decode("9fff"));
+        assertEquals(json("{\"a\":1,\"b\":[2,3]}"), decode("a26161016162820203"));
+        assertEquals(json("{\"a\":1,\"b\":[2,3]}"), decode("bf61610161629f0203ffff"));
+        // Keys that are not strings
+        assertEquals(json("{\"1\":2,\"3\":4}"), decode("a201020304"));
+    }
+
+    @Test
+    public void tagsAreIgnored() {
+        assertEquals("2013-03-21T20:04:00Z", decode("c074323031332d30332d32315432303a30343a30305a").getAsString());
+        assertEquals(1363896240, decode("c11a514b67b0").getAsLong());
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void truncatedItemIsRejected() {
+        decode("6449455");
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void trailingDataIsRejected() {
+        decode("0000");
+    }
+
+    // Stringref (http://cbor.schmorp.de/stringref)
+
+    @Test
+    public void stringrefs() {
+        // 256(["abc", 25(0), "ab", "ab", 25(0)]): "ab" is too short to be referred
+        JsonArray array = decode("d901008563616263d81900626162626162d81900").getAsJsonArray();
+        assertEquals(json("[\"abc\",\"abc\",\"ab\",\"ab\",\"abc\"]"), array);
+        assertSame(array.get(0).getAsString(), array.get(1).getAsString());
+    }
+
+    @Test
+    public void nonAsciiStringsAreReferredByTheirUtf8Length() {
+        // "éa" is 2 chars but 3 UTF-8 bytes: it gets index 0
+        JsonArray array = decode("d901008263c3a961d81900").getAsJsonArray();
+        assertEquals(json("[\"éa\",\"éa\"]"), array);
+
+        // Encoded once and then referred
+        assertArrayEquals(bytes("d901008263c3a961d81900"), CborCodec.encode(array, true));
+    }
+
+    @Test
+    public void byteStringsAreReferredByTheirRawLength() {
+        // h'0102' (2 bytes, "AQI=" in base64) is not added: "abc" gets index 0
+        assertEquals(json("[\"AQI=\",\"abc\",\"abc\"]"), decode("d901008342010263616263d81900"));
+        // h'010203' is added
+        assertEquals(json("[\"AQID\",\"AQID\"]"), decode("d901008243010203d81900"));
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void stringrefOutsideNamespaceIsRejected() {
+        decode("d81900");
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void unknownStringrefIsRejected() {
+        decode("d901008263616263d81901");
+    }
+
+    @Test
+    public void nestedNamespacesHaveTheirOwnTable() {
+        // 256(["abc", 256(["def", 25(0)]), 25(0)])
+        assertEquals(json("[\"abc\",[\"def\",\"def\"],\"abc\"]"), decode("d901008363616263d901008263646566d81900d81900"));
+    }
+
+    // Round trips
+
+    @Test
+    public void notificationRoundTrip() {
+        JsonElement expected = json(notification);
+
+        byte[] plain = CborCodec.encode(expected, false);
+        byte[] referred = CborCodec.encode(expected, true);
+        assertEquals(expected, CborCodec.decode(ByteBuffer.wrap(plain)));
+        assertEquals(expected, CborCodec.decode(ByteBuffer.wrap(referred)));
+        assertTrue(referred.length < plain.length);
+    }
+
+    @Test
+    public void numbersRoundTrip() {
+        JsonElement expected = json("[0,23,24,255,256,65535,65536,4294967296,-1,-24,-25,-4294967297,1.5,-0.1,1e300]");
+        JsonArray decoded = CborCodec.decode(ByteBuffer.wrap(CborCodec.encode(expected, false))).getAsJsonArray();
+        JsonArray array = expected.getAsJsonArray();
+        for (int i = 0; i < array.size(); i++)
+            assertEquals(array.get(i).getAsDouble(), decoded.get(i).getAsDouble(), 0);
+    }
+
+    @Test
+    public void manyStringsRoundTrip() {
+        // More than 24 and 256 strings: the references take 2 and 3 bytes
+        JsonArray expected = new JsonArray();
+        for (int i = 0; i < 300; i++) expected.add(json("\"s" + i + "è\""));
+        for (int i = 0; i < 300; i++) expected.add(json("\"s" + i + "è\""));
+        assertEquals(expected, CborCodec.decode(ByteBuffer.wrap(CborCodec.encode(expected, true))));
+    }
+}
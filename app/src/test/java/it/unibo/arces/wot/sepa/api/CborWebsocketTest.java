@@ -0,0 +1,182 @@
+/* Unit tests of the CBOR notifications received by the WebSocket client
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import it.unibo.arces.wot.sepa.commons.response.ErrorResponse;
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.response.Response;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.ARBindingsResults;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CborWebsocketTest {
+    private static final String results = "{\"head\":{\"vars\":[\"s\",\"o\"]},\"addedresults\":{\"bindings\":["
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://example.org/città\"},\"o\":{\"type\":\"literal\",\"value\":\"21.5\"}}]},"
+            + "\"removedresults\":{\"bindings\":[]}}";
+
+    // The subscribe requests received by the broker
+    private final BlockingQueue<JsonObject> requests = new LinkedBlockingQueue<JsonObject>();
+    // The notifications received by the client
+    private final BlockingQueue<Notification> notifications = new LinkedBlockingQueue<Notification>();
+
+    private WebSocketServer broker;
+    private SEPAWebsocketClient client;
+
+    /**
+     * Answers a subscribe request and sends a notification, both encoded in
+     * CBOR if the request accepts it.
+     */
+    private class Broker extends WebSocketServer {
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        Broker() {
+            super(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            JsonObject request = new JsonParser().parse(message).getAsJsonObject();
+            requests.add(request);
+
+            String alias = request.get("alias").getAsString();
+            String subscribed = "{\"subscribed\":\"sepa://subscription/1\",\"alias\":\"" + alias + "\"}";
+            String notification = "{\"spuid\":\"sepa://subscription/1\",\"sequence\":1,\"results\":" + results + "}";
+
+            if (request.get("accept") != null && request.get("accept").getAsString().equals(CborCodec.MEDIA_TYPE)) {
+                conn.send(CborCodec.encode(new JsonParser().parse(subscribed), true));
+                conn.send(CborCodec.encode(new JsonParser().parse(notification), true));
+            } else {
+                conn.send(subscribed);
+                conn.send(notification);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            // The client sends text frames only
+            conn.close();
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Broker broker = new Broker();
+        this.broker = broker;
+        broker.start();
+        assertTrue(broker.started.await(5, TimeUnit.SECONDS));
+
+        client = new SEPAWebsocketClient(new URI("ws://127.0.0.1:" + broker.getPort() + "/subscribe"), new ISubscriptionHandler() {
+            @Override
+            public void onSemanticEvent(Notification notify) {
+                notifications.add(notify);
+            }
+
+            @Override
+            public void onPing() {
+            }
+
+            @Override
+            public void onBrokenSocket() {
+            }
+
+            @Override
+            public void onError(ErrorResponse errorResponse) {
+            }
+        });
+        assertTrue(client.connectBlocking());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.closeBlocking();
+        broker.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void binaryNotifications() throws Exception {
+        client.setBinaryNotifications(true);
+        Response response = SEPAWebsocketClient.waitResponse(client.subscribe("SELECT * WHERE {?s ?p ?o}", "a", null), 5000);
+
+        // Negotiated by the subscribe request
+        assertEquals(CborCodec.MEDIA_TYPE, requests.take().get("accept").getAsString());
+
+        // The response and the notification are received as binary frames
+        assertTrue(response.isSubscribeResponse());
+        assertNotification(notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void textNotifications() throws Exception {
+        Response response = SEPAWebsocketClient.waitResponse(client.subscribe("SELECT * WHERE {?s ?p ?o}", "a", null), 5000);
+
+        assertNull(requests.take().get("accept"));
+        assertTrue(response.isSubscribeResponse());
+        assertNotification(notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    private static void assertNotification(Notification notification) {
+        assertNotNull(notification);
+        assertEquals("sepa://subscription/1", notification.getSpuid());
+        assertEquals(1, notification.getSequence().intValue());
+
+        ARBindingsResults results = notification.getARBindingsResults();
+        assertEquals(1, results.getAddedBindings().size());
+        assertEquals("http://example.org/città", results.getAddedBindings().getBindings().get(0).getBindingValue("s"));
+        assertEquals("21.5", results.getAddedBindings().getBindings().get(0).getBindingValue("o"));
+        assertEquals(0, results.getRemovedBindings().size());
+    }
+}
@@ -0,0 +1,211 @@
+/* Benchmark of the decoding of the notifications received on the subscribe WebSocket
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.BindingsResults;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bytes allocated to decode a notification (and a ping) received on the
+ * subscribe WebSocket and to read its bindings as a {@link it.unibo.arces.wot.sepa.pattern.Consumer}
+ * does: the streaming decoding with lazy views versus the tree parsing with
+ * copies used before.
+ * <p>
+ * The allocated bytes are the growth of the used heap over a batch of
+ * decodings: a batch during which the garbage collector ran (i.e., a weakly
+ * reachable sentinel has been cleared) is measured again with half the
+ * decodings. The median of the batches is reported. The used heap grows by
+ * thread local buffers, so an allocation smaller than a buffer per batch
+ * (e.g., the one of a ping) is reported as 0.
+ * <p>
+ * No VM specific counter is used, so it runs on any JVM (e.g., the host one
+ * or ART). It is not part of the unit tests: remove the {@link Ignore}
+ * annotation to run it.
+ */
+@Ignore("Benchmark: it takes some seconds and its figures depend on the VM")
+public class NotificationDecodingBenchmark {
+    private static final int WARMUP = 20000;
+    private static final int BATCH = 5000;
+    private static final int BATCHES = 15;
+    private static final int ATTEMPTS = 100;
+
+    private static final String ping = "{\"ping\":{\"timestamp\":\"2018-03-07T10:51:44.528Z\"}}";
+
+    private static final String notification = notification(10, 2);
+
+    private static long sink;
+
+    @Test
+    public void allocationPerNotification() {
+        assertEquals(legacy(notification), lazy(notification));
+
+        long legacyNotification = allocated(notification, true);
+        long lazyNotification = allocated(notification, false);
+        long legacyPing = allocated(ping, true);
+        long lazyPing = allocated(ping, false);
+
+        System.out.println("Notification (10 added, 2 removed): " + legacyNotification + " ==> " + lazyNotification
+                + " bytes (" + percent(legacyNotification, lazyNotification) + ")");
+        System.out.println("Ping: " + legacyPing + " ==> " + lazyPing + " bytes (" + percent(legacyPing, lazyPing) + ")");
+
+        assertTrue(lazyNotification < legacyNotification);
+        assertTrue(lazyPing < legacyPing);
+    }
+
+    /**
+     * @return the median of the bytes allocated per message
+     */
+    private static long allocated(String frame, boolean legacy) {
+        for (int i = 0; i < WARMUP; i++) sink += (legacy ? legacy(frame) : lazy(frame));
+
+        Runtime runtime = Runtime.getRuntime();
+        long[] samples = new long[BATCHES];
+        int n = 0;
+        int batch = BATCH;
+        for (int attempt = 0; attempt < ATTEMPTS && n < BATCHES; attempt++) {
+            System.gc();
+            WeakReference<Object> sentinel = new WeakReference<Object>(new Object());
+
+            long start = runtime.totalMemory() - runtime.freeMemory();
+            for (int i = 0; i < batch; i++) sink += (legacy ? legacy(frame) : lazy(frame));
+            long end = runtime.totalMemory() - runtime.freeMemory();
+
+            // Garbage collected during the batch: a shorter one is tried
+            if (sentinel.get() == null || end < start) {
+                batch = Math.max(batch / 2, 100);
+                continue;
+            }
+            samples[n++] = (end - start) / batch;
+        }
+
+        assertTrue("Garbage collected during each batch: increase the heap", n > 0);
+        assertTrue(sink > 0);
+        Arrays.sort(samples, 0, n);
+        return samples[n / 2];
+    }
+
+    private static String percent(long before, long after) {
+        return (before == 0 ? "-" : (100 * (after - before) / before) + "%");
+    }
+
+    /**
+     * The current path: streaming classification, cached results and lazy views.
+     */
+    private static int lazy(String frame) {
+        WebsocketMessage message = WebsocketMessage.parse(frame);
+        if (message.type != WebsocketMessage.Type.NOTIFICATION) return 1;
+
+        ARBindingsResults results = new Notification(message.json).getARBindingsResults();
+        return consume(results.getAddedBindings()) + consume(results.getRemovedBindings());
+    }
+
+    private static int consume(BindingsResults results) {
+        int n = 1;
+        if (results.isEmpty()) return n;
+        for (Bindings bindings : results) n += bindings.getBindingValue("s").length();
+        return n;
+    }
+
+    /**
+     * The previous path: the frame copied by the debug log, the JSON tree of
+     * the whole frame, a new JSON object wrapping the added and the removed
+     * results and the bindings copied into a new list.
+     */
+    private static int legacy(String frame) {
+        String log = "debug: " + ("@onMessage " + frame);
+        JsonObject notify = new JsonParser().parse(frame).getAsJsonObject();
+        if (notify.get("ping") != null) return log.length() > 0 ? 1 : 0;
+
+        JsonObject results = new ARBindingsResults(notify.getAsJsonObject("results")).toJson();
+        return legacyConsume(results, "addedresults") + legacyConsume(results, "removedresults");
+    }
+
+    private static int legacyConsume(JsonObject arResults, String member) {
+        JsonObject view = new JsonObject();
+        view.add("results", arResults.get(member));
+        view.add("head", arResults.get("head"));
+        BindingsResults results = new BindingsResults(view);
+
+        int n = 1;
+        if (results.isEmpty()) return n;
+        List<Bindings> list = new ArrayList<Bindings>();
+        for (JsonElement solution : view.getAsJsonObject("results").getAsJsonArray("bindings"))
+            list.add(new Bindings(solution.getAsJsonObject()));
+        for (Bindings bindings : list) n += bindings.getBindingValue("s").length();
+        return n;
+    }
+
+    private static String notification(int added, int removed) {
+        JsonObject head = new JsonObject();
+        JsonArray vars = new JsonArray();
+        for (String var : new String[]{"s", "p", "o"}) vars.add(new JsonPrimitive(var));
+        head.add("vars", vars);
+
+        JsonObject results = new JsonObject();
+        results.add("addedresults", bindings(added, 0));
+        results.add("removedresults", bindings(removed, added));
+        results.add("head", head);
+
+        JsonObject notify = new JsonObject();
+        notify.add("spuid", new JsonPrimitive("sepa://subscription/7a3c1bdf-5f8d-4a0e-9c4b-1f2a7e0d9b11"));
+        notify.add("sequence", new JsonPrimitive(42));
+        notify.add("results", results);
+        return notify.toString();
+    }
+
+    private static JsonObject bindings(int n, int first) {
+        JsonArray array = new JsonArray();
+        for (int i = first; i < first + n; i++) {
+            JsonObject solution = new JsonObject();
+            solution.add("s", term("uri", "http://wot.arces.unibo.it/sensor#" + i));
+            solution.add("p", term("uri", "http://wot.arces.unibo.it/monitor#hasValue"));
+            solution.add("o", term("literal", Integer.toString(20 + i)));
+            array.add(solution);
+        }
+        JsonObject ret = new JsonObject();
+        ret.add("bindings", array);
+        return ret;
+    }
+
+    private static JsonObject term(String type, String value) {
+        JsonObject term = new JsonObject();
+        term.add("type", new JsonPrimitive(type));
+        term.add("value", new JsonPrimitive(value));
+        return term;
+    }
+}
@@ -0,0 +1,109 @@
+/* Unit tests of the decoding of the WebSocket messages
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import it.unibo.arces.wot.sepa.commons.response.Notification;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.ARBindingsResults;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.Bindings;
+import it.unibo.arces.wot.sepa.commons.sparqlresults.BindingsResults;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WebsocketMessageTest {
+    private static final String notification = "{\"spuid\":\"sepa://subscription/1\",\"sequence\":42,\"results\":{"
+            + "\"addedresults\":{\"bindings\":[{\"s\":{\"type\":\"uri\",\"value\":\"http://a\"},\"o\":{\"type\":\"literal\",\"value\":\"21\",\"datatype\":\"http://www.w3.org/2001/XMLSchema#integer\"}},"
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://b\"},\"o\":{\"type\":\"literal\",\"value\":\"café\",\"xml:lang\":\"fr\"}}]},"
+            + "\"removedresults\":{\"bindings\":[{\"s\":{\"type\":\"bnode\",\"value\":\"b0\"}}]},"
+            + "\"head\":{\"vars\":[\"s\",\"o\"]}}}";
+
+    @Test
+    public void notificationIsParsedAsByGson() {
+        WebsocketMessage message = WebsocketMessage.parse(notification);
+        assertSame(WebsocketMessage.Type.NOTIFICATION, message.type);
+        assertEquals(new JsonParser().parse(notification), message.json);
+
+        ARBindingsResults results = new Notification(message.json).getARBindingsResults();
+        assertEquals(2, results.getAddedBindings().size());
+        assertEquals("café", results.getAddedBindings().getBindings().get(1).getBindingValue("o"));
+        assertEquals("b0", results.getRemovedBindings().getBindings().get(0).getBindingValue("s"));
+    }
+
+    @Test
+    public void valuesOfEveryTypeAreParsedAsByGson() {
+        String frame = "{\"results\":{\"n\":-1.5e3,\"i\":7,\"t\":true,\"f\":false,\"z\":null,\"a\":[1,[2,{\"x\":\"\\u0041\\n\"}],[]],\"o\":{}}}";
+        JsonObject expected = new JsonParser().parse(frame).getAsJsonObject();
+        JsonObject parsed = WebsocketMessage.parse(frame).json;
+        assertEquals(expected, parsed);
+
+        // Numbers are hashed as the ones parsed by Gson (e.g., the keys of the kept results)
+        HashMap<JsonObject, Integer> map = new HashMap<JsonObject, Integer>();
+        map.put(expected.getAsJsonObject("results"), 1);
+        assertEquals(Integer.valueOf(1), map.get(parsed.getAsJsonObject("results")));
+    }
+
+    @Test
+    public void responsesAreClassified() {
+        assertSame(WebsocketMessage.Type.SUBSCRIBED, WebsocketMessage.parse("{\"subscribed\":\"sepa://subscription/1\",\"alias\":\"a\",\"firstResults\":{}}").type);
+        assertSame(WebsocketMessage.Type.UNSUBSCRIBED, WebsocketMessage.parse("{\"unsubscribed\":\"sepa://subscription/1\"}").type);
+        assertSame(WebsocketMessage.Type.ERROR, WebsocketMessage.parse("{\"code\":400,\"body\":\"bad\"}").type);
+        assertSame(WebsocketMessage.Type.UNKNOWN, WebsocketMessage.parse("{\"other\":1}").type);
+    }
+
+    @Test
+    public void pingsAreRecognizedWithoutParsing() {
+        WebsocketMessage ping = WebsocketMessage.parse(" {\"ping\":{\"timestamp\":\"2018-03-07T10:51:44.528Z\"}}");
+        assertSame(WebsocketMessage.Type.PING, ping.type);
+        assertNull(ping.json);
+
+        // Also if "ping" is not the first member
+        assertSame(WebsocketMessage.Type.PING, WebsocketMessage.parse("{\"x\":1,\"ping\":{}}").type);
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void malformedFrame() {
+        WebsocketMessage.parse("{\"results\":[1,}");
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void notAnObject() {
+        WebsocketMessage.parse("[1,2]");
+    }
+
+    @Test
+    public void bindingsAreCopied() {
+        BindingsResults results = new BindingsResults(new JsonParser().parse(
+                "{\"head\":{\"vars\":[\"s\"]},\"results\":{\"bindings\":[{\"s\":{\"type\":\"uri\",\"value\":\"http://a\"}}]}}").getAsJsonObject());
+
+        List<Bindings> copy = results.getBindings();
+        copy.clear();
+        assertEquals(1, results.size());
+        assertEquals(1, results.getBindings().size());
+    }
+}
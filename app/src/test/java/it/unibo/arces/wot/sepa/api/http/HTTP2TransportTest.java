@@ -0,0 +1,163 @@
+/* Unit tests of the HTTP/2 transport
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HTTP2TransportTest {
+    private MockWebServer server;
+    private HTTP2Transport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setProtocols(Arrays.asList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (transport != null) transport.close();
+        server.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void cleartextWithPriorKnowledge() throws Exception {
+        transport = new HTTP2Transport("http", server.getHostName(), server.getPort(), 4, 60000);
+        server.enqueue(new MockResponse().setBody("{\"ok\":true}").setHeader("Content-Type", "application/json"));
+        server.enqueue(new MockResponse().setBody("second"));
+
+        HTTPRequest request = new HTTPRequest("POST", "/update", "update=INSERT%20DATA%20%7B%7D");
+        request.setHeader("Content-Type", "application/x-www-form-urlencoded");
+        HTTPResponse response = transport.execute(request, 5000);
+        assertEquals(200, response.getCode());
+        assertEquals("application/json", response.getHeader("Content-Type"));
+        assertEquals("{\"ok\":true}", response.getBodyAsString());
+
+        RecordedRequest recorded = server.takeRequest();
+        assertEquals("POST", recorded.getMethod());
+        assertEquals("/update", recorded.getPath());
+        assertEquals("update=INSERT%20DATA%20%7B%7D", recorded.getBody().readUtf8());
+
+        assertEquals("second", transport.execute(new HTTPRequest("GET", "/query"), 5000).getBodyAsString());
+
+        // Both requests are streams of the same HTTP/2 connection
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+        assertEquals(2, transport.getStatistics().get("http2").getAsInt());
+        assertEquals(1, transport.getStatistics().get("connections").getAsInt());
+    }
+
+    @Test(timeout = 10000)
+    public void streamIsReleasedWhenTheBodyIsClosed() throws Exception {
+        transport = new HTTP2Transport("http", server.getHostName(), server.getPort(), 1, 60000);
+        for (int i = 0; i < 3; i++) server.enqueue(new MockResponse().setBody("body " + i));
+
+        HTTPResponse first = transport.execute(new HTTPRequest("GET", "/query"), 5000);
+        assertEquals(1, transport.getStatistics().get("inProgress").getAsInt());
+
+        // The only stream is in use until the body is closed
+        try {
+            transport.execute(new HTTPRequest("GET", "/query"), 300);
+            fail("The stream limit has not been enforced");
+        } catch (InterruptedIOException e) {
+            // Expected
+        }
+
+        first.getBody().close();
+        assertEquals(0, transport.getStatistics().get("inProgress").getAsInt());
+
+        HTTPResponse second = transport.execute(new HTTPRequest("GET", "/query"), 5000);
+        assertEquals("body 1", second.getBodyAsString());
+        assertEquals(0, transport.getStatistics().get("inProgress").getAsInt());
+    }
+
+    @Test(timeout = 10000)
+    public void streamIsReleasedWhenTheBodyIsReadUntilTheEnd() throws Exception {
+        transport = new HTTP2Transport("http", server.getHostName(), server.getPort(), 1, 60000);
+        for (int i = 0; i < 2; i++) server.enqueue(new MockResponse().setBody("body " + i));
+
+        InputStream body = transport.execute(new HTTPRequest("GET", "/query"), 5000).getBody();
+        while (body.read() != -1) ;
+        assertEquals(0, transport.getStatistics().get("inProgress").getAsInt());
+
+        assertEquals("body 1", transport.execute(new HTTPRequest("GET", "/query"), 5000).getBodyAsString());
+    }
+
+    @Test(timeout = 10000)
+    public void deadlineIncludesTheBody() throws Exception {
+        transport = new HTTP2Transport("http", server.getHostName(), server.getPort(), 1, 60000);
+        server.enqueue(new MockResponse().setBody("a slow body").throttleBody(1, 1, TimeUnit.SECONDS));
+
+        long start = System.currentTimeMillis();
+        try {
+            transport.execute(new HTTPRequest("GET", "/query"), 500).getBodyAsString();
+            fail("The deadline has not been enforced");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertEquals(0, transport.getStatistics().get("inProgress").getAsInt());
+    }
+
+    @Test(timeout = 10000)
+    public void asynchronousRequest() throws Exception {
+        transport = new HTTP2Transport("http", server.getHostName(), server.getPort(), 2, 60000);
+        server.enqueue(new MockResponse().setBody("async"));
+
+        final AtomicReference<HTTPResponse> response = new AtomicReference<HTTPResponse>();
+        final CountDownLatch done = new CountDownLatch(1);
+        transport.execute(new HTTPRequest("GET", "/query"), 5000, new HTTPCallback() {
+            @Override
+            public void onResponse(HTTPResponse r) {
+                response.set(r);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(response.get());
+        assertEquals("async", response.get().getBodyAsString());
+        assertEquals(0, transport.getStatistics().get("inProgress").getAsInt());
+    }
+}
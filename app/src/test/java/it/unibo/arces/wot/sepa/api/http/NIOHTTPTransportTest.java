@@ -0,0 +1,110 @@
+/* Unit tests of the non-blocking HTTP/1.1 transport
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NIOHTTPTransportTest {
+    private NIOHTTPTransport transport;
+
+    @After
+    public void tearDown() {
+        if (transport != null) transport.close();
+    }
+
+    @Test(timeout = 10000)
+    public void requestsWaitForTheSameLookup() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.start();
+        try {
+            transport = new NIOHTTPTransport(server.getHostName(), server.getPort(), 2, 60000);
+            for (int i = 0; i < 3; i++) server.enqueue(new MockResponse().setBody("body " + i));
+
+            final CountDownLatch done = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++) {
+                transport.execute(new HTTPRequest("GET", "/query"), 5000, new HTTPCallback() {
+                    @Override
+                    public void onResponse(HTTPResponse response) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(IOException e) {
+                    }
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertEquals("body 2", transport.execute(new HTTPRequest("GET", "/query"), 5000).getBodyAsString());
+            assertEquals(0, transport.getStatistics().get("failures").getAsInt());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void unknownHostIsReportedToTheCallback() throws Exception {
+        transport = new NIOHTTPTransport("unknown.invalid", 80, 1, 60000);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        transport.execute(new HTTPRequest("GET", "/query"), 5000, new HTTPCallback() {
+            @Override
+            public void onResponse(HTTPResponse response) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                thread.set(Thread.currentThread());
+                error.set(e);
+                done.countDown();
+            }
+        });
+
+        // The lookup is not done by the caller
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), thread.get());
+        assertTrue(error.get() instanceof UnknownHostException);
+
+        try {
+            transport.execute(new HTTPRequest("GET", "/query"), 5000);
+            fail("The host has been resolved");
+        } catch (UnknownHostException e) {
+            // Expected
+        }
+        assertEquals(2, transport.getStatistics().get("failures").getAsInt());
+    }
+}
@@ -0,0 +1,112 @@
+/* Unit tests of the requests sent again when a reused connection has been closed by the server
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.api.http;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StaleConnectionTest {
+    private MockWebServer server;
+    private HTTPTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        // The second request is received on the reused connection, that is closed without a response
+        server.enqueue(new MockResponse().setBody("first"));
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setBody("again"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (transport != null) transport.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void idempotentRequestsOnly() {
+        assertTrue(new HTTPRequest("GET", "/query").isIdempotent());
+        assertTrue(new HTTPRequest("DELETE", "/graph").isIdempotent());
+        assertFalse(new HTTPRequest("POST", "/update").isIdempotent());
+
+        HTTPRequest query = new HTTPRequest("POST", "/query");
+        query.setIdempotent(true);
+        assertTrue(query.isIdempotent());
+    }
+
+    @Test(timeout = 10000)
+    public void queryIsSentAgain() throws Exception {
+        transport = new HTTPConnectionPool(server.getHostName(), server.getPort(), 1, 60000);
+        assertQueryIsSentAgain();
+    }
+
+    @Test(timeout = 10000)
+    public void updateIsNotSentAgain() throws Exception {
+        transport = new HTTPConnectionPool(server.getHostName(), server.getPort(), 1, 60000);
+        assertUpdateIsNotSentAgain();
+    }
+
+    @Test(timeout = 10000)
+    public void queryIsSentAgainByTheNonBlockingTransport() throws Exception {
+        transport = new NIOHTTPTransport(server.getHostName(), server.getPort(), 1, 60000);
+        assertQueryIsSentAgain();
+    }
+
+    @Test(timeout = 10000)
+    public void updateIsNotSentAgainByTheNonBlockingTransport() throws Exception {
+        transport = new NIOHTTPTransport(server.getHostName(), server.getPort(), 1, 60000);
+        assertUpdateIsNotSentAgain();
+    }
+
+    private void assertQueryIsSentAgain() throws IOException {
+        assertEquals("first", transport.execute(new HTTPRequest("GET", "/query"), 5000).getBodyAsString());
+
+        HTTPRequest query = new HTTPRequest("POST", "/query", "SELECT * WHERE {?s ?p ?o}");
+        query.setIdempotent(true);
+        assertEquals("again", transport.execute(query, 5000).getBodyAsString());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    private void assertUpdateIsNotSentAgain() throws IOException {
+        assertEquals("first", transport.execute(new HTTPRequest("GET", "/query"), 5000).getBodyAsString());
+
+        try {
+            transport.execute(new HTTPRequest("POST", "/update", "INSERT DATA {<a> <b> <c>}"), 5000);
+            fail("The update has been sent again");
+        } catch (IOException e) {
+            // Expected: the server may have processed it
+        }
+        assertEquals(2, server.getRequestCount());
+    }
+}
@@ -0,0 +1,221 @@
+/* Unit tests of the results stored by columns
+ *
+ * Author: Luca Roffia (luca.roffia@unibo.it)
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package it.unibo.arces.wot.sepa.commons.sparqlresults;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarBindingsResultsTest {
+    private static final String results = "{\"head\":{\"vars\":[\"s\",\"o\"]},\"results\":{\"bindings\":["
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://a\"},\"o\":{\"type\":\"literal\",\"value\":\"21\",\"datatype\":\"http://www.w3.org/2001/XMLSchema#integer\"}},"
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://b\"},\"o\":{\"type\":\"literal\",\"value\":\"città\",\"xml:lang\":\"it\"}},"
+            + "{\"s\":{\"type\":\"bnode\",\"value\":\"b0\"},\"o\":{\"type\":\"literal\",\"value\":\"plain\"}},"
+            + "{\"s\":{\"type\":\"uri\",\"value\":\"http://c\"}}]}}";
+
+    private static JsonObject json(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+
+    private static Bindings solution(String s, String o) {
+        Bindings ret = new Bindings();
+        ret.addBinding("s", new RDFTermURI(s));
+        if (o != null) ret.addBinding("o", new RDFTermLiteral(o));
+        return ret;
+    }
+
+    @Test
+    public void toJsonRoundTrip() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json(results));
+        assertEquals(json(results), columnar.toJson());
+        assertEquals(json(results), new ColumnarBindingsResults(columnar).toJson());
+        assertEquals(json(results), new ColumnarBindingsResults(new BindingsResults(columnar.toJson())).toJson());
+    }
+
+    @Test
+    public void accessorsAreTheOnesOfTheJsonResults() {
+        BindingsResults expected = new BindingsResults(json(results));
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(expected);
+
+        assertEquals(expected.size(), columnar.size());
+        assertEquals(expected.getVariables(), columnar.getVariables());
+        for (int i = 0; i < expected.size(); i++) {
+            Bindings a = expected.getBindings().get(i);
+            Bindings b = columnar.getBindings().get(i);
+            assertEquals(a.getVariables(), b.getVariables());
+            for (String variable : a.getVariables()) {
+                assertEquals(a.getBindingValue(variable), b.getBindingValue(variable));
+                assertEquals(a.getDatatype(variable), b.getDatatype(variable));
+                assertEquals(a.getLanguage(variable), b.getLanguage(variable));
+                assertEquals(a.isURI(variable), b.isURI(variable));
+                assertEquals(a.isBNode(variable), b.isBNode(variable));
+                assertEquals(a.isLiteral(variable), b.isLiteral(variable));
+            }
+            assertEquals(a.toJson(), b.toJson());
+            assertTrue(b.equals(a));
+        }
+
+        // Unbound variable
+        assertNull(columnar.getBindings().get(3).getBindingValue("o"));
+    }
+
+    @Test
+    public void addRemoveContains() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(new LinkedHashSet<String>());
+        assertTrue(columnar.isEmpty());
+
+        columnar.add(solution("http://a", "1"));
+        columnar.add(solution("http://a", "1"));
+        columnar.add(solution("http://b", null));
+        assertEquals(3, columnar.size());
+        assertTrue(columnar.contains(solution("http://a", "1")));
+        assertTrue(columnar.contains(solution("http://b", null)));
+        // The same variables bound to the same terms
+        assertFalse(columnar.contains(solution("http://b", "1")));
+        assertFalse(columnar.contains(solution("http://a", null)));
+
+        // A multiset: one row at a time
+        columnar.remove(solution("http://a", "1"));
+        assertEquals(2, columnar.size());
+        assertTrue(columnar.contains(solution("http://a", "1")));
+        columnar.remove(solution("http://a", "1"));
+        assertFalse(columnar.contains(solution("http://a", "1")));
+        columnar.remove(solution("http://a", "1"));
+        assertEquals(1, columnar.size());
+
+        // Rows of other results
+        ColumnarBindingsResults copy = new ColumnarBindingsResults();
+        for (Bindings row : columnar) copy.add(row);
+        assertEquals(columnar.toJson().get("results"), copy.toJson().get("results"));
+    }
+
+    @Test
+    public void typedLiteralOfTheOldFormatIsALiteral() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json("{\"head\":{\"vars\":[\"o\"]},\"results\":{\"bindings\":["
+                + "{\"o\":{\"type\":\"typed-literal\",\"value\":\"1\",\"datatype\":\"http://www.w3.org/2001/XMLSchema#integer\"}}]}}"));
+        Bindings row = columnar.getBindings().get(0);
+        assertTrue(row.isLiteral("o"));
+        assertEquals("http://www.w3.org/2001/XMLSchema#integer", row.getDatatype("o"));
+        assertEquals("literal", row.toJson().getAsJsonObject("o").get("type").getAsString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTermIsRejected() {
+        new ColumnarBindingsResults(json("{\"head\":{\"vars\":[\"o\"]},\"results\":{\"bindings\":[{\"o\":{\"value\":\"1\"}}]}}"));
+    }
+
+    @Test
+    public void rowWithoutBoundVariablesIsEmpty() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json("{\"head\":{\"vars\":[\"s\"]},\"results\":{\"bindings\":[{},"
+                + "{\"s\":{\"type\":\"uri\",\"value\":\"http://a\"}}]}}"));
+        assertTrue(columnar.getBindings().get(0).isEmpty());
+        assertFalse(columnar.getBindings().get(1).isEmpty());
+        assertEquals(json("{}"), columnar.getBindings().get(0).toJson());
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void rowIsNotValidAfterARowIsRemoved() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json(results));
+        Bindings second = columnar.getBindings().get(1);
+        columnar.remove(columnar.getBindings().get(0));
+        second.getBindingValue("s");
+    }
+
+    @Test
+    public void iteratorRemovesRows() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json(results));
+        Iterator<Bindings> it = columnar.iterator();
+        while (it.hasNext()) if (it.next().isURI("s")) it.remove();
+        assertEquals(1, columnar.size());
+        assertEquals("b0", columnar.getBindings().get(0).getBindingValue("s"));
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void iteratorFailsAfterARowIsRemoved() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json(results));
+        Iterator<Bindings> it = columnar.iterator();
+        it.next();
+        columnar.remove(solution("http://c", null));
+        it.next();
+    }
+
+    @Test
+    public void removeAnyMovesTheLastRow() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults(json(results));
+        assertTrue(columnar.removeAny(columnar.getBindings().get(0)));
+        assertEquals(3, columnar.size());
+        // The last row is now the first one
+        assertEquals("http://c", columnar.getBindings().get(0).getBindingValue("s"));
+        assertEquals("http://b", columnar.getBindings().get(1).getBindingValue("s"));
+        assertFalse(columnar.removeAny(solution("http://a", null)));
+        assertTrue(columnar.removeAny(solution("http://c", null)));
+        assertFalse(columnar.contains(solution("http://c", null)));
+        assertEquals(2, columnar.size());
+    }
+
+    @Test
+    public void indexIsConsistentWithTheRows() {
+        // Compared with a list of solutions (a multiset) after random additions and removals
+        Random random = new Random(42);
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults();
+        ArrayList<Bindings> expected = new ArrayList<Bindings>();
+        for (int i = 0; i < 5000; i++) {
+            Bindings solution = solution("http://" + random.nextInt(50), random.nextBoolean() ? null : "" + random.nextInt(3));
+            int operation = random.nextInt(3);
+            if (operation == 0) {
+                columnar.add(solution);
+                expected.add(solution);
+            } else {
+                int found = -1;
+                for (int j = 0; j < expected.size() && found == -1; j++)
+                    if (expected.get(j).toJson().equals(solution.toJson())) found = j;
+                assertEquals(found != -1, columnar.contains(solution));
+                if (found == -1) continue;
+                expected.remove(found);
+                if (operation == 1) columnar.remove(solution);
+                else assertTrue(columnar.removeAny(solution));
+            }
+            assertEquals(expected.size(), columnar.size());
+        }
+
+        for (Bindings solution : expected) assertTrue(columnar.removeAny(solution));
+        assertTrue(columnar.isEmpty());
+    }
+
+    @Test
+    public void rowsBoundLaterAreFound() {
+        ColumnarBindingsResults columnar = new ColumnarBindingsResults();
+        columnar.add(solution("http://a", null));
+        columnar.getBindings().get(0).addBinding("o", new RDFTermLiteral("1"));
+        assertTrue(columnar.contains(solution("http://a", "1")));
+        assertFalse(columnar.contains(solution("http://a", null)));
+    }
+}